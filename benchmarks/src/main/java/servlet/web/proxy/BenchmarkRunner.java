@@ -0,0 +1,28 @@
+package servlet.web.proxy;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options, adding the GC
+ * profiler (allocation rate per operation) unless other profilers are
+ * given.
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList()
+				|| commandLineOptions.shouldListProfilers() || commandLineOptions.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+		if (commandLineOptions.getProfilers().isEmpty())
+			options.addProfiler(GCProfiler.class);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,88 @@
+package servlet.web.proxy;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per request work of {@link HTTPProxyClient} before and after the
+ * target is called: URI rewriting and header copying.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HTTPProxyClientBenchmark {
+	protected static final String TARGET_URI = "http://backend:8080/target";
+
+	protected HTTPProxyClient proxyClient;
+	protected URI targetObj;
+	protected HttpServletRequest request;
+	protected HttpServletResponse response;
+	protected HttpResponse proxyResponse;
+	protected final long[] writes = new long[1];
+
+	@Setup
+	public void setUp() throws Exception {
+		proxyClient = new HTTPProxyClient("proxy");
+		targetObj = new URI(TARGET_URI);
+		request = new MockServlet.Request("GET", "http", "localhost", 8080, "/app", "/proxy", "/items/42",
+				"name=value&q=a b&page=2#top").header("Host", "localhost:8080")
+						.header("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/115.0")
+						.header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+						.header("Accept-Language", "en-US,en;q=0.5").header("Accept-Encoding", "gzip, deflate")
+						.header("Connection", "keep-alive")
+						.header("Cookie", "JSESSIONID=0123456789ABCDEF; !Proxy!proxySESSION=abc; theme=dark")
+						.header("X-Requested-With", "XMLHttpRequest").build();
+		response = MockServlet.response(writes);
+
+		proxyResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_MOVED_TEMPORARILY, "Found");
+		proxyResponse.addHeader("Date", "Sun, 18 Oct 2026 10:00:00 GMT");
+		proxyResponse.addHeader("Server", "backend");
+		proxyResponse.addHeader("Content-Type", "text/html; charset=UTF-8");
+		proxyResponse.addHeader("Cache-Control", "no-cache");
+		proxyResponse.addHeader("Transfer-Encoding", "chunked");
+		proxyResponse.addHeader("Location", TARGET_URI + "/items/43");
+		proxyResponse.addHeader("Set-Cookie", "SESSION=abc; Path=/target; HttpOnly");
+		proxyResponse.addHeader("Set-Cookie", "theme=dark; Path=/; Max-Age=3600");
+	}
+
+	@Benchmark
+	public String rewriteUrlFromRequest() {
+		return proxyClient.rewriteUrlFromRequest(request, TARGET_URI, null, true, "/proxy/*");
+	}
+
+	@Benchmark
+	public HttpRequest copyRequestHeaders() {
+		HttpRequest proxyRequest = new BasicHttpRequest("GET", TARGET_URI + "/items/42");
+		proxyClient.copyRequestHeaders(request, proxyRequest, targetObj);
+		return proxyRequest;
+	}
+
+	@Benchmark
+	public long copyResponseHeaders() {
+		proxyClient.copyResponseHeaders(proxyResponse, request, response, TARGET_URI, null, false, null);
+		return writes[0];
+	}
+}
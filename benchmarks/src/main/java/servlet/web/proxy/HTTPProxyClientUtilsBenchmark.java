@@ -0,0 +1,108 @@
+package servlet.web.proxy;
+
+import java.util.Formatter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Query encoding, cookie and redirect rewriting of
+ * {@link HTTPProxyClientUtils}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HTTPProxyClientUtilsBenchmark {
+	/** Query strings: already valid, needing escaping, non-ASCII. */
+	@State(Scope.Benchmark)
+	public static class Query {
+		@Param({ "name=value&foo=bar&page=2&sort=desc#top", "q=a b|c\"d<e>f&path=/x y/z%20&empty=",
+				"city=M\u00fcnchen&name=\u00c5ngstr\u00f6m" })
+		public String value;
+	}
+
+	protected final StringBuilder builder = new StringBuilder(256);
+	protected String cookie;
+	protected HttpServletRequest request;
+
+	@Setup
+	public void setUp() {
+		cookie = "JSESSIONID=0123456789ABCDEF; !Proxy!proxy" + "SESSION=abc=def; theme=dark; !Proxy!proxy"
+				+ "token=eyJhbGciOiJIUzI1NiJ9.eyJzdWIiOiIxIn0=; lang=en";
+		request = new MockServlet.Request("GET", "http", "localhost", 8080, "/app", "/proxy", "/items/42", "page=2")
+				.build();
+	}
+
+	@Benchmark
+	public CharSequence encodeUriQuery(Query query) {
+		return HTTPProxyClientUtils.encodeUriQuery(query.value, false);
+	}
+
+	@Benchmark
+	public CharSequence encodeUriPath(Query query) {
+		return HTTPProxyClientUtils.encodeUriQuery(query.value, true);
+	}
+
+	/** Appending to a builder reused across requests. */
+	@Benchmark
+	public StringBuilder encodeUriQueryAppending(Query query) {
+		builder.setLength(0);
+		return HTTPProxyClientUtils.encodeUriQuery(query.value, false, builder);
+	}
+
+	/** The previous encoder (Formatter per escaped string), as a baseline. */
+	@Benchmark
+	public CharSequence encodeUriQueryFormatter(Query query) {
+		CharSequence in = query.value;
+		StringBuilder outBuf = null;
+		Formatter formatter = null;
+		for (int i = 0; i < in.length(); i++) {
+			char c = in.charAt(i);
+			boolean escape = true;
+			if (c < 128) {
+				if (HTTPProxyClientUtils.asciiQueryChars.get((int) c))
+					escape = false;
+			} else if (!Character.isISOControl(c) && !Character.isSpaceChar(c)) {
+				escape = false;
+			}
+			if (!escape) {
+				if (outBuf != null)
+					outBuf.append(c);
+			} else {
+				if (outBuf == null) {
+					outBuf = new StringBuilder(in.length() + 5 * 3);
+					outBuf.append(in, 0, i);
+					formatter = new Formatter(outBuf);
+				}
+				formatter.format("%%%02X", (int) c);
+			}
+		}
+		return outBuf != null ? outBuf : in;
+	}
+
+	@Benchmark
+	public String getRealCookie() {
+		return HTTPProxyClientUtils.getRealCookie("proxy", cookie, false, null);
+	}
+
+	@Benchmark
+	public String rewriteUrlFromResponse() {
+		return HTTPProxyClientUtils.rewriteUrlFromResponse(request, "http://backend:8080/target",
+				"http://backend:8080/target/items/43?page=2", false, null);
+	}
+}
@@ -0,0 +1,144 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends GET requests to a URI for a given time and records their latency.
+ * <ul>
+ * <li>closed loop: {@code concurrency} clients each send their next request
+ * when the previous one completed, the throughput is the result.</li>
+ * <li>open loop: requests are started at a fixed {@code rate}, whatever the
+ * response times, by up to {@code concurrency} clients. The latency is
+ * measured from the time the request should have been sent, so that the
+ * requests waiting for a client are not hidden (coordinated omission).</li>
+ * </ul>
+ */
+public class LoadGenerator implements AutoCloseable {
+	protected final String uri;
+	protected final int concurrency;
+	protected final CloseableHttpClient httpClient;
+	protected final LatencyHistogram histogram;
+	protected final LongAdder errors;
+
+	public LoadGenerator(String uri, int concurrency) {
+		super();
+		this.uri = uri;
+		this.concurrency = concurrency;
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(concurrency);
+		connectionManager.setDefaultMaxPerRoute(concurrency);
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).disableAutomaticRetries()
+				.disableContentCompression().build();
+		histogram = new LatencyHistogram();
+		errors = new LongAdder();
+	}
+
+	/** Runs {@code concurrency} clients in a loop for {@code durationMillis}. */
+	public Result runClosedLoop(long durationMillis) throws InterruptedException {
+		reset();
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		Thread[] clients = new Thread[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			clients[i] = new Thread(() -> {
+				while (System.nanoTime() < end)
+					send(System.nanoTime());
+			}, "load-client-" + i);
+			clients[i].start();
+		}
+		for (Thread client : clients)
+			client.join();
+
+		return new Result(histogram.snapshot(), errors.sum(), System.nanoTime() - start);
+	}
+
+	/** Starts {@code rate} requests per second for {@code durationMillis}. */
+	public Result runOpenLoop(double rate, long durationMillis) throws InterruptedException {
+		reset();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>());
+		try {
+			long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			long start = System.nanoTime();
+			long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+			for (long intended = start; intended < end; intended += interval) {
+				long now;
+				while ((now = System.nanoTime()) < intended)
+					LockSupport.parkNanos(intended - now);
+				final long scheduled = intended;
+				executor.execute(() -> send(scheduled));
+			}
+			shutdown(executor);
+			return new Result(histogram.snapshot(), errors.sum(), System.nanoTime() - start);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	protected void send(long startNanos) {
+		try {
+			HttpResponse response = httpClient.execute(new HttpGet(uri));
+			EntityUtils.consume(response.getEntity());
+			if (response.getStatusLine().getStatusCode() >= 400)
+				errors.increment();
+		} catch (IOException e) {
+			errors.increment();
+		}
+		histogram.recordSince(startNanos);
+	}
+
+	protected void reset() {
+		histogram.reset();
+		errors.reset();
+	}
+
+	protected static void shutdown(ExecutorService executor) throws InterruptedException {
+		executor.shutdown();
+		if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+			throw new IllegalStateException("Requests still running after a minute");
+	}
+
+	@Override
+	public void close() throws IOException {
+		httpClient.close();
+	}
+
+	public static class Result {
+		protected final LatencyHistogram.Snapshot latency;
+		protected final long errors;
+		protected final long elapsedNanos;
+
+		public Result(LatencyHistogram.Snapshot latency, long errors, long elapsedNanos) {
+			super();
+			this.latency = latency;
+			this.errors = errors;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public LatencyHistogram.Snapshot getLatency() {
+			return latency;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		/** Completed requests per second. */
+		public double getThroughput() {
+			return latency.getCount() / (elapsedNanos / 1e9);
+		}
+	}
+}
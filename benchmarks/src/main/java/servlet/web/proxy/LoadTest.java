@@ -0,0 +1,161 @@
+package servlet.web.proxy;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * End to end load test: a {@link ProxyServlet} in an embedded Jetty, in front
+ * of a {@link StubBackendServlet} in another one, driven by a
+ * {@link LoadGenerator}. Reports the latency percentiles, the throughput and
+ * the heap and GC activity of the JVM (the load generator and the backend
+ * run in the same JVM as the proxy).
+ * <p>
+ * Arguments are {@code name=value} pairs, see {@link #DEFAULTS}. Arguments
+ * starting with {@code proxy.} are init parameters of the proxy servlet, e.g.
+ * {@code proxy.async=true}. With {@code results=file}, a CSV line per run is
+ * appended to the file to compare runs, e.g. before and after an upgrade.
+ * </p>
+ */
+public class LoadTest {
+	public static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+	static {
+		DEFAULTS.put("mode", "closed");// or open
+		DEFAULTS.put("concurrency", "16");// clients
+		DEFAULTS.put("rate", "1000");// requests per second, open loop
+		DEFAULTS.put("warmup", "5");// seconds
+		DEFAULTS.put("duration", "20");// seconds
+		DEFAULTS.put("latency", "0");// backend latency in milliseconds
+		DEFAULTS.put("bodyBytes", "4096");
+		DEFAULTS.put("chunked", "false");
+		DEFAULTS.put("keepAlive", "true");
+		DEFAULTS.put("serverThreads", "200");// of each Jetty
+		DEFAULTS.put("results", "");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+		Map<String, String> proxyParams = new LinkedHashMap<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals == -1)
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			String name = arg.substring(0, equals);
+			if (name.startsWith("proxy."))
+				proxyParams.put(name.substring("proxy.".length()), arg.substring(equals + 1));
+			else if (options.containsKey(name))
+				options.put(name, arg.substring(equals + 1));
+			else
+				throw new IllegalArgumentException("Unknown option " + name + ", expected one of " + DEFAULTS.keySet());
+		}
+
+		int serverThreads = Integer.parseInt(options.get("serverThreads"));
+		Server backend = startServer(serverThreads,
+				new ServletHolder(new StubBackendServlet(Long.parseLong(options.get("latency")),
+						Integer.parseInt(options.get("bodyBytes")), Boolean.parseBoolean(options.get("chunked")),
+						Boolean.parseBoolean(options.get("keepAlive")))), "/backend/*");
+		ServletHolder proxyHolder = new ServletHolder(ProxyServlet.class);
+		proxyHolder.setInitParameters(proxyParams);
+		proxyHolder.setInitParameter("targetUri", "http://localhost:" + port(backend) + "/backend");
+		proxyHolder.setAsyncSupported(true);
+		Server proxy = startServer(serverThreads, proxyHolder, "/proxy/*");
+
+		int concurrency = Integer.parseInt(options.get("concurrency"));
+		boolean open = "open".equals(options.get("mode"));
+		double rate = Double.parseDouble(options.get("rate"));
+		try (LoadGenerator generator = new LoadGenerator("http://localhost:" + port(proxy) + "/proxy/resource",
+				concurrency)) {
+			System.out.println("Options " + options + ", proxy " + proxyParams);
+			run(generator, open, rate, TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("warmup"))));
+
+			System.gc();
+			GcStats before = new GcStats();
+			LoadGenerator.Result result = run(generator, open, rate,
+					TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration"))));
+			GcStats gc = new GcStats().minus(before);
+			MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+			System.out.printf("Throughput: %.1f req/s, errors: %d%n", result.getThroughput(), result.getErrors());
+			System.out.println("Latency: " + result.getLatency());
+			System.out.printf("GC: %d collections, %d ms; heap used %d MB of %d MB%n", gc.collections, gc.millis,
+					heap.getUsed() >> 20, heap.getMax() >> 20);
+
+			if (!options.get("results").isEmpty())
+				writeResult(new File(options.get("results")), options, proxyParams, result, gc);
+		} finally {
+			proxy.stop();
+			backend.stop();
+		}
+	}
+
+	protected static LoadGenerator.Result run(LoadGenerator generator, boolean open, double rate, long millis)
+			throws InterruptedException {
+		return open ? generator.runOpenLoop(rate, millis) : generator.runClosedLoop(millis);
+	}
+
+	protected static Server startServer(int threads, ServletHolder holder, String pathSpec) throws Exception {
+		Server server = new Server(new QueuedThreadPool(threads));
+		ServerConnector connector = new ServerConnector(server);
+		connector.setPort(0);
+		server.addConnector(connector);
+		ServletContextHandler context = new ServletContextHandler();
+		context.addServlet(holder, pathSpec);
+		server.setHandler(context);
+		server.start();
+		return server;
+	}
+
+	protected static int port(Server server) {
+		return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+	}
+
+	protected static void writeResult(File file, Map<String, String> options, Map<String, String> proxyParams,
+			LoadGenerator.Result result, GcStats gc) throws IOException {
+		boolean header = !file.exists();
+		try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+			if (header)
+				out.println("mode,concurrency,rate,latency,bodyBytes,chunked,keepAlive,proxy,"
+						+ "throughput,errors,p50Ms,p99Ms,p999Ms,maxMs,gcCollections,gcMs");
+			LatencyHistogram.Snapshot latency = result.getLatency();
+			out.printf("%s,%s,%s,%s,%s,%s,%s,\"%s\",%.1f,%d,%.3f,%.3f,%.3f,%.3f,%d,%d%n", options.get("mode"),
+					options.get("concurrency"), options.get("rate"), options.get("latency"),
+					options.get("bodyBytes"), options.get("chunked"), options.get("keepAlive"), proxyParams,
+					result.getThroughput(), result.getErrors(), latency.getMillisAtPercentile(50),
+					latency.getMillisAtPercentile(99), latency.getMillisAtPercentile(99.9), latency.getMax() / 1e6,
+					gc.collections, gc.millis);
+		}
+	}
+
+	/** Collections and time spent in GC since the start of the JVM. */
+	protected static class GcStats {
+		protected long collections;
+		protected long millis;
+
+		public GcStats() {
+			super();
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				collections += Math.max(0, gc.getCollectionCount());
+				millis += Math.max(0, gc.getCollectionTime());
+			}
+		}
+
+		public GcStats minus(GcStats other) {
+			collections -= other.collections;
+			millis -= other.millis;
+			return this;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package servlet.web.proxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal servlet requests and responses for the benchmarks, built with
+ * dynamic proxies: the request answers the usual URI, header and attribute
+ * getters, the response counts what is written to it.
+ */
+public class MockServlet {
+	private MockServlet() {
+	}
+
+	public static class Request {
+		protected final Map<String, Object> properties = new HashMap<>();
+		protected final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+		public Request(String method, String scheme, String serverName, int serverPort, String contextPath,
+				String servletPath, String pathInfo, String queryString) {
+			super();
+			properties.put("getMethod", method);
+			properties.put("getScheme", scheme);
+			properties.put("getServerName", serverName);
+			properties.put("getServerPort", serverPort);
+			properties.put("getContextPath", contextPath);
+			properties.put("getServletPath", servletPath);
+			properties.put("getPathInfo", pathInfo);
+			properties.put("getQueryString", queryString);
+			properties.put("getRemoteAddr", "127.0.0.1");
+			properties.put("getRequestURI", contextPath + servletPath + (pathInfo != null ? pathInfo : ""));
+		}
+
+		public Request header(String name, String value) {
+			headers.computeIfAbsent(name.toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(value);
+			return this;
+		}
+
+		public HttpServletRequest build() {
+			final Map<String, Object> attributes = new HashMap<>();
+			final List<String> headerNames = new ArrayList<>(headers.keySet());
+			InvocationHandler handler = new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					switch (name) {
+					case "getRequestURL":
+						return new StringBuffer(128).append(properties.get("getScheme")).append("://")
+								.append(properties.get("getServerName")).append(':')
+								.append(properties.get("getServerPort")).append(properties.get("getRequestURI"));
+					case "getHeaderNames":
+						return Collections.enumeration(headerNames);
+					case "getHeaders":
+						List<String> values = headers.get(((String) args[0]).toLowerCase(Locale.ROOT));
+						return Collections.enumeration(values != null ? values : Collections.<String>emptyList());
+					case "getHeader":
+						values = headers.get(((String) args[0]).toLowerCase(Locale.ROOT));
+						return values != null ? values.get(0) : null;
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						attributes.put((String) args[0], args[1]);
+						return null;
+					case "removeAttribute":
+						attributes.remove(args[0]);
+						return null;
+					default:
+						if (properties.containsKey(name))
+							return properties.get(name);
+						return defaultValue(method.getReturnType());
+					}
+				}
+			};
+			return (HttpServletRequest) Proxy.newProxyInstance(MockServlet.class.getClassLoader(),
+					new Class<?>[] { HttpServletRequest.class }, handler);
+		}
+	}
+
+	/** A response counting the headers and cookies added to it. */
+	public static HttpServletResponse response(final long[] writes) {
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().startsWith("add") || method.getName().startsWith("set"))
+					writes[0]++;
+				return defaultValue(method.getReturnType());
+			}
+		};
+		return (HttpServletResponse) Proxy.newProxyInstance(MockServlet.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, handler);
+	}
+
+	protected static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return Boolean.FALSE;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		return null;
+	}
+}
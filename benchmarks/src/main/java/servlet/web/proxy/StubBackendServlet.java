@@ -0,0 +1,73 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Backend of the load test: answers every request with a body of
+ * {@code bodyBytes} after {@code latencyMillis}, with a Content-Length or
+ * chunked, keeping the connection alive or not. Request bodies are read and
+ * discarded.
+ */
+public class StubBackendServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	protected static final int CHUNK_SIZE = 8192;
+
+	protected final long latencyMillis;
+	protected final byte[] body;
+	protected final boolean chunked;
+	protected final boolean keepAlive;
+
+	public StubBackendServlet(long latencyMillis, int bodyBytes, boolean chunked, boolean keepAlive) {
+		super();
+		this.latencyMillis = latencyMillis;
+		this.chunked = chunked;
+		this.keepAlive = keepAlive;
+		body = new byte[bodyBytes];
+		for (int i = 0; i < bodyBytes; i++)
+			body[i] = (byte) ('a' + i % 26);
+	}
+
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		try (InputStream in = req.getInputStream()) {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			while (in.read(buffer) != -1)
+				;
+		}
+		if (latencyMillis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServletException(e);
+			}
+		}
+
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain");
+		if (!keepAlive)
+			resp.setHeader("Connection", "close");
+		if ("HEAD".equals(req.getMethod()))
+			return;
+
+		OutputStream out = resp.getOutputStream();
+		if (chunked) {
+			for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+				out.write(body, offset, Math.min(CHUNK_SIZE, body.length - offset));
+				out.flush();// forces the chunked encoding
+			}
+		} else {
+			resp.setContentLength(body.length);
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.apache.http.Header;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Template expansion of {@link URITemplateProxyServlet#execute}: query
+ * parsing, template substitution and the remaining query string. The
+ * request itself is not sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class URITemplateBenchmark {
+	protected ExpandingServlet servlet;
+	protected HttpServletRequest request;
+	protected HttpServletResponse response;
+	protected final long[] writes = new long[1];
+
+	@Setup
+	public void setUp() {
+		servlet = new ExpandingServlet();
+		servlet.templateUri = "http://{_host}:{_port}/{_path}/api";
+		servlet.template = new URITemplate(servlet.templateUri);
+		servlet.proxyClient = new URITemplateHTTPProxyClient("proxy", URITemplateProxyServlet.ATTR_QUERY_STRING);
+		request = new MockServlet.Request("GET", "http", "localhost", 8080, "/app", "/proxy", "/items",
+				"_host=backend&_port=8080&_path=v1&name=value&page=2&sort=desc").build();
+		response = MockServlet.response(writes);
+	}
+
+	@Benchmark
+	public String execute() throws ServletException, IOException {
+		servlet.execute(request, response, null);
+		return servlet.targetUri;
+	}
+
+	/** Records the expanded target instead of proxying. */
+	protected static class ExpandingServlet extends URITemplateProxyServlet {
+		private static final long serialVersionUID = 1L;
+
+		protected String targetUri;
+
+		@Override
+		protected byte[] doService(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+				String targetUri, URI targetObj, String pathInfo, MutableBoolean resource,
+				Function<Header, Boolean> filter, boolean withRequestPathInfo, String urlPattern,
+				Function<byte[], byte[]> contentFilter) {
+			this.targetUri = targetUri;
+			return null;
+		}
+	}
+}
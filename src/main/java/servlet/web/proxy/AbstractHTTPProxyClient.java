@@ -3,32 +3,120 @@ package servlet.web.proxy;
 import static servlet.web.proxy.ProxyLogger.logger;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.SSLException;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.ResourceFactory;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
 
 public class AbstractHTTPProxyClient {
+	/** Attribute of the context of a cached request: the {@link TargetHost} it goes to. */
+	public static final String TARGET_HOST = "servlet.web.proxy.target-host";
+	/** Attribute of the servlet request: the {@link ProxyTarget} a retry failed over to. */
+	public static final String ATTR_FAILOVER_TARGET = AbstractHTTPProxyClient.class.getSimpleName() + ".failoverTarget";
+
 	protected HttpClient proxyClient;
+	protected CloseableHttpAsyncClient proxyAsyncClient;
 
 	protected boolean doLog = false;
 	protected boolean doHandleRedirects = false;
 	protected boolean doPreserveHostnameVerification = false;
+	protected boolean doAsync = false;
 	protected int connectionRequestTimeout = -1;
 	protected int connectTimeout = -1;
 	protected int readTimeout = -1;
 	protected int maxTotalConnections = 20;
 	protected int maxConnectionsPerRoute = 2;
+	protected int validateAfterInactivity = -1;
+	protected long connectionTimeToLive = -1;
+	protected long maxIdleTime = -1;
+	/** The name of the shared connection pool, {@code null} for a private one. */
+	protected String connectionPoolName;
+	protected boolean doResponseCache = false;
+	protected boolean doContentDecompression = true;
+	protected boolean doHttp2 = false;
+	protected long responseCacheMaxBytes = 64L * 1024 * 1024;
+	protected long responseCacheMaxObjectBytes = 1024 * 1024;
+	/** The directory of the disk tier of the response cache, {@code null} for none. */
+	protected String responseCacheDirectory;
+	protected long responseCacheMaxDiskBytes = 1024L * 1024 * 1024;
+	protected long responseCacheFileThreshold = 64 * 1024;
+	
+	protected PoolingHttpClientConnectionManager connectionManager;
+	protected IdleConnectionEvictor connectionEvictor;
+	protected ConnectionPoolStats connectionPoolStats;
+	protected ResponseCacheStats responseCacheStats;
+	protected ProxyTargets targets = new ProxyTargets(256, null);
+	protected RetryPolicy retryPolicy;
+	protected LoadBalancer loadBalancer;
+	protected CircuitBreaker.Config circuitBreakerConfig;
+	protected String healthCheckPath;
+	protected long healthCheckInterval = 5000;
+	protected int healthCheckTimeout = 2000;
+	protected HealthChecker healthChecker;
+	protected ConcurrencyLimiter.Config concurrencyLimiterConfig;
+	protected ConcurrencyLimitStats concurrencyLimitStats;
 	
 	public AbstractHTTPProxyClient() {
 		super();
@@ -58,6 +146,14 @@ public class AbstractHTTPProxyClient {
 		this.doPreserveHostnameVerification = doPreserveHostnameVerification;
 	}
 	
+	public boolean isDoAsync() {
+		return doAsync;
+	}
+
+	public void setDoAsync(boolean doAsync) {
+		this.doAsync = doAsync;
+	}
+	
 	public int getConnectionRequestTimeout() {
 		return connectionRequestTimeout;
 	}
@@ -98,6 +194,240 @@ public class AbstractHTTPProxyClient {
 		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
 	}
 
+	public int getValidateAfterInactivity() {
+		return validateAfterInactivity;
+	}
+
+	public void setValidateAfterInactivity(int validateAfterInactivity) {
+		this.validateAfterInactivity = validateAfterInactivity;
+	}
+
+	public long getConnectionTimeToLive() {
+		return connectionTimeToLive;
+	}
+
+	public void setConnectionTimeToLive(long connectionTimeToLive) {
+		this.connectionTimeToLive = connectionTimeToLive;
+	}
+
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public String getConnectionPoolName() {
+		return connectionPoolName;
+	}
+
+	public void setConnectionPoolName(String connectionPoolName) {
+		this.connectionPoolName = connectionPoolName;
+	}
+	
+	public boolean isDoResponseCache() {
+		return doResponseCache;
+	}
+
+	public void setDoResponseCache(boolean doResponseCache) {
+		this.doResponseCache = doResponseCache;
+	}
+
+	public boolean isDoContentDecompression() {
+		return doContentDecompression;
+	}
+
+	/**
+	 * Whether the blocking client decodes the gzip and deflate bodies of the
+	 * target, {@code true} by default. Otherwise encoded bodies are passed
+	 * through with their Content-Encoding, and only decoded when the proxy
+	 * reads them. The async client never decodes them.
+	 */
+	public void setDoContentDecompression(boolean doContentDecompression) {
+		this.doContentDecompression = doContentDecompression;
+	}
+
+	public boolean isDoHttp2() {
+		return doHttp2;
+	}
+
+	/**
+	 * Whether the blocking client speaks HTTP/2 to the targets which support
+	 * it (see {@link Http2Client}), {@code false} by default. Needs Java 11,
+	 * and is not used with the response cache.
+	 */
+	public void setDoHttp2(boolean doHttp2) {
+		this.doHttp2 = doHttp2;
+	}
+
+	public long getResponseCacheMaxBytes() {
+		return responseCacheMaxBytes;
+	}
+
+	public void setResponseCacheMaxBytes(long responseCacheMaxBytes) {
+		this.responseCacheMaxBytes = responseCacheMaxBytes;
+	}
+
+	public long getResponseCacheMaxObjectBytes() {
+		return responseCacheMaxObjectBytes;
+	}
+
+	public void setResponseCacheMaxObjectBytes(long responseCacheMaxObjectBytes) {
+		this.responseCacheMaxObjectBytes = responseCacheMaxObjectBytes;
+	}
+	
+	public String getResponseCacheDirectory() {
+		return responseCacheDirectory;
+	}
+
+	public void setResponseCacheDirectory(String responseCacheDirectory) {
+		this.responseCacheDirectory = responseCacheDirectory;
+	}
+
+	public long getResponseCacheMaxDiskBytes() {
+		return responseCacheMaxDiskBytes;
+	}
+
+	public void setResponseCacheMaxDiskBytes(long responseCacheMaxDiskBytes) {
+		this.responseCacheMaxDiskBytes = responseCacheMaxDiskBytes;
+	}
+
+	public long getResponseCacheFileThreshold() {
+		return responseCacheFileThreshold;
+	}
+
+	public void setResponseCacheFileThreshold(long responseCacheFileThreshold) {
+		this.responseCacheFileThreshold = responseCacheFileThreshold;
+	}
+
+	/** The parsed targets, and their allow-list. */
+	public ProxyTargets getTargets() {
+		return targets;
+	}
+
+	public void setTargets(ProxyTargets targets) {
+		this.targets = targets;
+	}
+	
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets the policy retrying failed requests, {@code null} (the default)
+	 * leaves it to HttpClient, which only resends idempotent requests whose
+	 * connection failed before they were sent. Must be set before
+	 * {@link #init()}, the automatic retries of HttpClient are disabled.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public LoadBalancer getLoadBalancer() {
+		return loadBalancer;
+	}
+
+	/**
+	 * Sets the balancer of the targets, retries then fail over to another
+	 * of its targets. {@code null} (the default) retries the same target.
+	 */
+	public void setLoadBalancer(LoadBalancer loadBalancer) {
+		this.loadBalancer = loadBalancer;
+	}
+
+	public CircuitBreaker.Config getCircuitBreakerConfig() {
+		return circuitBreakerConfig;
+	}
+
+	/**
+	 * Sets the settings of the circuit breakers of the targets, {@code null}
+	 * (the default) disables them. Must be set before {@link #init()}.
+	 */
+	public void setCircuitBreakerConfig(CircuitBreaker.Config circuitBreakerConfig) {
+		this.circuitBreakerConfig = circuitBreakerConfig;
+	}
+
+	public String getHealthCheckPath() {
+		return healthCheckPath;
+	}
+
+	/**
+	 * Sets the path probed by the {@link HealthChecker}, {@code null} (the
+	 * default) disables the probes. Needs the circuit breakers.
+	 */
+	public void setHealthCheckPath(String healthCheckPath) {
+		this.healthCheckPath = healthCheckPath;
+	}
+
+	public long getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+
+	public void setHealthCheckInterval(long healthCheckInterval) {
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	public int getHealthCheckTimeout() {
+		return healthCheckTimeout;
+	}
+
+	public void setHealthCheckTimeout(int healthCheckTimeout) {
+		this.healthCheckTimeout = healthCheckTimeout;
+	}
+
+	/** The active health checker, {@code null} without probes. */
+	public HealthChecker getHealthChecker() {
+		return healthChecker;
+	}
+
+	public ConcurrencyLimiter.Config getConcurrencyLimiterConfig() {
+		return concurrencyLimiterConfig;
+	}
+
+	/**
+	 * Sets the settings of the concurrency limiters of the targets,
+	 * {@code null} (the default) disables them. Must be set before
+	 * {@link #init()}.
+	 */
+	public void setConcurrencyLimiterConfig(ConcurrencyLimiter.Config concurrencyLimiterConfig) {
+		this.concurrencyLimiterConfig = concurrencyLimiterConfig;
+	}
+
+	/**
+	 * Statistics of the concurrency limiters, {@code null} if they are
+	 * disabled.
+	 */
+	public ConcurrencyLimitStats getConcurrencyLimitStats() {
+		return concurrencyLimitStats;
+	}
+
+	/**
+	 * The connection pool of the blocking client, possibly shared with other
+	 * clients. {@code null} if {@link #createHttpClient(RequestConfig, SocketConfig)}
+	 * was overridden to not use it.
+	 */
+	public PoolingHttpClientConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	/**
+	 * Statistics of the connection pool, {@code null} if
+	 * {@link #createConnectionManager(SocketConfig)} was overridden to not
+	 * return an {@link InstrumentedConnectionManager}.
+	 */
+	public ConnectionPoolStats getConnectionPoolStats() {
+		return connectionPoolStats;
+	}
+
+	/**
+	 * Statistics of the response cache, {@code null} if the cache is
+	 * disabled.
+	 */
+	public ResponseCacheStats getResponseCacheStats() {
+		return responseCacheStats;
+	}
+
 	public void setProxyClient(HttpClient proxyClient) {
 		this.proxyClient = proxyClient;
 	}
@@ -111,8 +441,33 @@ public class AbstractHTTPProxyClient {
 		return proxyClient;
 	}
 	
+	/**
+	 * The non-blocking http client used in async mode, {@code null} otherwise.
+	 * 
+	 * @see #createHttpAsyncClient(RequestConfig)
+	 */
+	public CloseableHttpAsyncClient getProxyAsyncClient() {
+		return proxyAsyncClient;
+	}
+	
 	public void init() {
 		proxyClient = createHttpClient(buildRequestConfig(), buildSocketConfig());
+		if (doAsync) {
+			proxyAsyncClient = createHttpAsyncClient(buildRequestConfig());
+			proxyAsyncClient.start();
+		}
+		if (circuitBreakerConfig != null) {
+			targets.setCircuitBreakerConfig(circuitBreakerConfig);
+			if (healthCheckPath != null) {
+				healthChecker = new HealthChecker(proxyClient, targets, healthCheckPath, healthCheckInterval,
+						healthCheckTimeout);
+				healthChecker.start();
+			}
+		}
+		if (concurrencyLimiterConfig != null) {
+			targets.setConcurrencyLimiterConfig(concurrencyLimiterConfig);
+			concurrencyLimitStats = new ConcurrencyLimitStats(targets);
+		}
 	}
 
 	/**
@@ -121,30 +476,205 @@ public class AbstractHTTPProxyClient {
 	 * thread-safe.
 	 **/
 	protected HttpClient createHttpClient(final RequestConfig requestConfig, final SocketConfig socketConfig) {
-		HttpClient result = null;
-
+		if (doHttp2) {
+			if (doResponseCache)
+				logger().warn("HTTP/2 is not used with the response cache");
+			else if (!Http2Client.isSupported())
+				logger().warn("HTTP/2 needs Java 11 or later, HTTP/1.1 is used");
+			else
+				// multiplexed connections, no pool
+				return new Http2Client(requestConfig, doContentDecompression);
+		}
+		
+		if (connectionPoolName != null)
+			connectionManager = SharedConnectionManagers.acquire(connectionPoolName,
+					() -> createConnectionManager(socketConfig), this::createConnectionEvictor);
+		else {
+			connectionManager = createConnectionManager(socketConfig);
+			connectionEvictor = createConnectionEvictor(connectionManager);
+			if (connectionEvictor != null)
+				connectionEvictor.start();
+		}
+		if (connectionManager instanceof InstrumentedConnectionManager)
+			connectionPoolStats = new ConnectionPoolStats((InstrumentedConnectionManager) connectionManager);
+		
+		HttpClientBuilder builder;
+		if (doResponseCache) {
+			HttpCacheStorage storage = createCacheStorage();
+			responseCacheStats = new ResponseCacheStats(storage);
+			builder = createCachingHttpClientBuilder()
+					.setCacheConfig(buildCacheConfig())
+					.setHttpCacheStorage(storage);
+			if (storage instanceof ResourceFactory)
+				((CachingHttpClientBuilder) builder).setResourceFactory((ResourceFactory) storage);
+		} else
+			builder = HttpClientBuilder.create();
+		if (retryPolicy != null)
+			builder.disableAutomaticRetries();
+		else if (doResponseCache)
+			// behind the cache, an open circuit or a full limit fails the request
+			builder.setRetryHandler(new DefaultHttpRequestRetryHandler(3, false,
+					Arrays.asList(InterruptedIOException.class, UnknownHostException.class, ConnectException.class,
+							SSLException.class, ServiceUnavailableException.class)) {
+			});
+		if (!doContentDecompression)
+			builder.disableContentCompression();
+		
+		return builder
+					.setDefaultRequestConfig(requestConfig)
+					.setConnectionManager(connectionManager)
+					.setConnectionManagerShared(connectionPoolName != null)
+					.build();
+	}
+	
+	/**
+	 * The builder of the caching client. The cache sits right in front of
+	 * the connection, after the request URI was made relative by the
+	 * protocol handling, but it sends revalidation requests with the absolute
+	 * URI of the original request: those are made relative again, not every
+	 * target accepts absolute request URIs.
+	 * <p>
+	 * The requests the cache sends to the {@link #TARGET_HOST} go through its
+	 * circuit breaker and concurrency limiter, cache hits neither wait for
+	 * them nor count as outcomes of the target.
+	 * </p>
+	 */
+	protected CachingHttpClientBuilder createCachingHttpClientBuilder() {
+		return new CachingHttpClientBuilder() {
+			@Override
+			protected ClientExecChain decorateMainExec(final ClientExecChain mainExec) {
+				return super.decorateMainExec((route, request, context, execAware) -> {
+					String uri = request.getRequestLine().getUri();
+					if (route.getProxyHost() == null && !uri.startsWith("/")) {
+						try {
+							URI requestUri = new URI(uri);
+							if (requestUri.isAbsolute())
+								request.setURI(URIUtils.rewriteURI(requestUri, null, URIUtils.DROP_FRAGMENT_AND_NORMALIZE));
+						} catch (URISyntaxException e) {
+							throw new ProtocolException("Invalid URI: " + uri, e);
+						}
+					}
+					TargetHost target = (TargetHost) context.getAttribute(TARGET_HOST);
+					if (target == null)
+						return mainExec.execute(route, request, context, execAware);
+					long start = onTargetRequest(target);
+					CloseableHttpResponse result = null;
+					try {
+						result = mainExec.execute(route, request, context, execAware);
+					} finally {
+						onTargetResponse(target, start, result);
+					}
+					return result;
+				});
+			}
+		};
+	}
+	
+	/**
+	 * The configuration of the response cache: a shared (proxy) cache
+	 * caching responses up to {@code responseCacheMaxObjectBytes}, without
+	 * heuristic freshness.
+	 */
+	protected CacheConfig buildCacheConfig() {
+		return CacheConfig.custom()
+				.setSharedCache(true)
+				.setMaxObjectSize(responseCacheMaxObjectBytes)
+				.setHeuristicCachingEnabled(false)
+				.build();
+	}
+	
+	/**
+	 * Creates the storage of the response cache, by default on-heap bounded
+	 * by {@code responseCacheMaxBytes}, with a disk tier if
+	 * {@code responseCacheDirectory} is set. A storage which is also a
+	 * {@link ResourceFactory} stores the bodies.
+	 */
+	protected HttpCacheStorage createCacheStorage() {
+		if (responseCacheDirectory == null)
+			return new MemoryCacheStorage(responseCacheMaxBytes);
+		
+		try {
+			return new DiskCacheStorage(responseCacheMaxBytes, new File(responseCacheDirectory),
+					responseCacheMaxDiskBytes, responseCacheFileThreshold);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot open the response cache directory " + responseCacheDirectory, e);
+		}
+	}
+	
+	/**
+	 * Creates the connection pool, with the sizing, time to live and
+	 * validation settings of this client.
+	 */
+	protected PoolingHttpClientConnectionManager createConnectionManager(final SocketConfig socketConfig) {
+		SSLConnectionSocketFactory sslSocketFactory;
 		if (doPreserveHostnameVerification)
-			result = HttpClientBuilder
-						.create()
-						.setDefaultRequestConfig(requestConfig)
-						.setDefaultSocketConfig(socketConfig)
-						.setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-						.setMaxConnTotal(maxTotalConnections)
-						.setMaxConnPerRoute(maxConnectionsPerRoute)
-						.build();
+			sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createDefault(), NoopHostnameVerifier.INSTANCE);
 		else
-			result = HttpClientBuilder
-						.create()
-						.setDefaultRequestConfig(requestConfig)
-						.setDefaultSocketConfig(socketConfig)
-						.setMaxConnTotal(maxTotalConnections)
-						.setMaxConnPerRoute(maxConnectionsPerRoute)
-						.build();
-
+			sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+		Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", sslSocketFactory)
+				.build();
+		
+		PoolingHttpClientConnectionManager result = new InstrumentedConnectionManager(socketFactoryRegistry,
+				connectionTimeToLive, TimeUnit.MILLISECONDS);
+		result.setMaxTotal(maxTotalConnections);
+		result.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		if (socketConfig != null)
+			result.setDefaultSocketConfig(socketConfig);
+		if (validateAfterInactivity >= 0)
+			result.setValidateAfterInactivity(validateAfterInactivity);
+		
 		return result;
 	}
 	
+	/**
+	 * Creates the background thread closing expired connections and
+	 * connections idle for longer than {@code maxIdleTime}. Returns
+	 * {@code null} (no thread) if neither a time to live nor a max idle time
+	 * is set.
+	 */
+	protected IdleConnectionEvictor createConnectionEvictor(PoolingHttpClientConnectionManager connectionManager) {
+		if (maxIdleTime <= 0 && connectionTimeToLive <= 0)
+			return null;
+		
+		long sleepTime = Math.max(1000, Math.min(
+				maxIdleTime > 0 ? maxIdleTime : Long.MAX_VALUE, 
+				connectionTimeToLive > 0 ? connectionTimeToLive : Long.MAX_VALUE) / 2);
+		return new IdleConnectionEvictor(connectionManager, sleepTime, TimeUnit.MILLISECONDS, 
+				maxIdleTime, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Called from {@link #init()} in async mode. Uses the same timeouts and
+	 * connection limits as the blocking client.
+	 */
+	protected CloseableHttpAsyncClient createHttpAsyncClient(final RequestConfig requestConfig) {
+		HttpAsyncClientBuilder builder = HttpAsyncClientBuilder
+				.create()
+				.setDefaultRequestConfig(requestConfig)
+				.setMaxConnTotal(maxTotalConnections)
+				.setMaxConnPerRoute(maxConnectionsPerRoute);
+		if (readTimeout > 0)
+			builder.setDefaultIOReactorConfig(IOReactorConfig.custom()
+				.setSoTimeout(readTimeout)
+				.build());
+		if (doPreserveHostnameVerification)
+			builder.setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE);
+
+		return builder.build();
+	}
+	
 	public void destroy() {
+		if (healthChecker != null)
+			healthChecker.shutdown();
+		if (proxyAsyncClient != null) {
+			try {
+				proxyAsyncClient.close();
+			} catch (IOException e) {
+				logger().info("While destroying servlet, shutting down HttpAsyncClient: " + e, e);
+			}
+		}
 		// Usually, clients implement Closeable:
 		if (proxyClient instanceof Closeable) {
 			try {
@@ -157,6 +687,10 @@ public class AbstractHTTPProxyClient {
 			if (proxyClient != null)
 				proxyClient.getConnectionManager().shutdown();
 		}
+		if (connectionEvictor != null)
+			connectionEvictor.shutdown();
+		if (connectionPoolName != null && connectionManager != null)
+			SharedConnectionManagers.release(connectionPoolName);
 	}
 	
 	/*
@@ -199,6 +733,353 @@ public class AbstractHTTPProxyClient {
 			logger().info(servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- "
 					+ proxyRequest.getRequestLine().getUri());
 
-		return proxyClient.execute(URIUtils.extractHost(targetObj), proxyRequest);
+		ProxyTarget target = targets.get(targetObj);
+		long start = System.nanoTime();
+		HttpResponse result;
+		CacheResponseStatus cacheResponseStatus = null;
+		if (responseCacheStats != null) {
+			// the cache guards the requests it sends to the target, see
+			// createCachingHttpClientBuilder()
+			HttpCacheContext context = HttpCacheContext.create();
+			context.setAttribute(TARGET_HOST, target.getTargetHost());
+			result = proxyClient.execute(target.getHost(), proxyRequest, context);
+			cacheResponseStatus = context.getCacheResponseStatus();
+			responseCacheStats.record(cacheResponseStatus);
+		} else {
+			long targetStart = onTargetRequest(target.getTargetHost());
+			result = null;
+			try {
+				result = proxyClient.execute(target.getHost(), proxyRequest);
+			} finally {
+				onTargetResponse(target.getTargetHost(), targetStart, result);
+			}
+		}
+		// only responses of the target count, not cache hits
+		if (connectionPoolStats != null && (cacheResponseStatus == null
+				|| cacheResponseStatus == CacheResponseStatus.CACHE_MISS
+				|| cacheResponseStatus == CacheResponseStatus.VALIDATED))
+			connectionPoolStats.getTimeToFirstByteHistogram().recordSince(start);
+		
+		return result;
+	}
+	
+	/**
+	 * Claims a request to {@code target} from its concurrency limiter and
+	 * circuit breaker, and counts it in flight.
+	 *
+	 * @return the start time to pass to {@link #onTargetResponse(TargetHost, long, HttpResponse)}
+	 * @throws ServiceUnavailableException if the circuit is open or no slot
+	 *         is free
+	 */
+	protected long onTargetRequest(TargetHost target) throws IOException {
+		ConcurrencyLimiter concurrencyLimiter = target.getConcurrencyLimiter();
+		if (concurrencyLimiter != null)
+			concurrencyLimiter.acquire();
+		CircuitBreaker circuitBreaker = target.getCircuitBreaker();
+		if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+			if (concurrencyLimiter != null)
+				concurrencyLimiter.release();
+			throw new ServiceUnavailableException("Circuit breaker of " + target + " is open",
+					circuitBreaker.getRetryAfterSeconds());
+		}
+		return target.onRequestStart();
+	}
+	
+	/**
+	 * Records the outcome of a request claimed by
+	 * {@link #onTargetRequest(TargetHost)}, {@code result} is {@code null} if
+	 * it failed. The concurrency limit slot is held while the target sends
+	 * the body.
+	 */
+	protected void onTargetResponse(TargetHost target, final long start, HttpResponse result) {
+		long nanos = target.onRequestEnd(start);
+		boolean success = result != null && result.getStatusLine().getStatusCode() < 500;
+		CircuitBreaker circuitBreaker = target.getCircuitBreaker();
+		if (circuitBreaker != null)
+			circuitBreaker.onResult(success, nanos);
+		ConcurrencyLimiter concurrencyLimiter = target.getConcurrencyLimiter();
+		if (concurrencyLimiter != null) {
+			if (result != null && result.getEntity() != null)
+				result.setEntity(new CompletionEntity(result.getEntity(),
+						() -> concurrencyLimiter.onResult(success, System.nanoTime() - start)));
+			else
+				concurrencyLimiter.onResult(success, nanos);
+		}
+	}
+	
+	/**
+	 * Executes the request like
+	 * {@link #doExecute(HttpServletRequest, HttpRequest, URI)}, and sends it
+	 * again as long as the {@code retryPolicy} allows it. With a
+	 * {@code loadBalancer}, the retries fail over to another target, which
+	 * is then the {@link #ATTR_FAILOVER_TARGET} of {@code servletRequest}.
+	 */
+	protected HttpResponse doExecuteWithRetries(HttpServletRequest servletRequest, HttpRequest proxyRequest,
+			URI targetObj) throws IOException {
+		if (retryPolicy == null || !retryPolicy.isRetryable(proxyRequest))
+			return doExecute(servletRequest, proxyRequest, targetObj);
+
+		retryPolicy.onRequest();
+		for (int attempt = 1;; attempt++) {
+			boolean last = attempt >= retryPolicy.getMaxAttempts() || !retryPolicy.isRetryable(proxyRequest);
+			HttpResponse result = null;
+			try {
+				result = doExecute(servletRequest, proxyRequest, targetObj);
+			} catch (IOException e) {
+				if (last || !retryPolicy.isRetryable(e) || !retryPolicy.tryRetry())
+					throw e;
+				if (doLog)
+					logger().info("Retrying " + proxyRequest.getRequestLine() + " after " + e);
+			}
+
+			if (result != null) {
+				int statusCode = result.getStatusLine().getStatusCode();
+				if (last || !retryPolicy.isRetryable(statusCode) || !retryPolicy.tryRetry()) {
+					if (attempt > 1 && !retryPolicy.isRetryable(statusCode))
+						retryPolicy.onRecovered();
+					return result;
+				}
+				// release the connection
+				EntityUtils.consumeQuietly(result.getEntity());
+				if (doLog)
+					logger().info("Retrying " + proxyRequest.getRequestLine() + " after status " + statusCode);
+			}
+			retryPolicy.backoff(attempt);
+
+			if (loadBalancer != null) {
+				ProxyTarget failed = targets.get(targetObj);
+				ProxyTarget next = loadBalancer.failover(servletRequest, failed);
+				HttpRequest nextRequest = next != failed ? retarget(proxyRequest, failed, next) : null;
+				if (nextRequest != null) {
+					proxyRequest = nextRequest;
+					targetObj = next.getUriObj();
+					servletRequest.setAttribute(ATTR_FAILOVER_TARGET, next);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A copy of {@code proxyRequest} sent to {@code to} instead of
+	 * {@code from}: the URI and the Host header of {@code from} are replaced,
+	 * the headers and the body are the same. {@code null} if the URI is not
+	 * one of {@code from}.
+	 */
+	protected HttpRequest retarget(HttpRequest proxyRequest, ProxyTarget from, ProxyTarget to) {
+		String uri = proxyRequest.getRequestLine().getUri();
+		if (!uri.startsWith(from.getUri()))
+			return null;
+
+		String method = proxyRequest.getRequestLine().getMethod();
+		uri = to.getUri() + uri.substring(from.getUri().length());
+		HttpRequest result;
+		if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+			result = new BasicHttpEntityEnclosingRequest(method, uri);
+			((HttpEntityEnclosingRequest) result).setEntity(((HttpEntityEnclosingRequest) proxyRequest).getEntity());
+		} else
+			result = new BasicHttpRequest(method, uri);
+		for (Header header : proxyRequest.getAllHeaders())
+			if (header.getName().equalsIgnoreCase(HttpHeaders.HOST) && header.getValue().equals(from.getHostHeader()))
+				result.addHeader(HttpHeaders.HOST, to.getHostHeader());
+			else
+				result.addHeader(header);
+		return result;
+	}
+	
+	/**
+	 * Non-blocking counterpart of
+	 * {@link #doExecute(HttpServletRequest, HttpRequest, URI)}, the response
+	 * is handed to {@code responseConsumer}.
+	 */
+	protected <T> Future<T> doExecuteAsync(HttpServletRequest servletRequest, HttpRequest proxyRequest, URI targetObj,
+			HttpAsyncResponseConsumer<T> responseConsumer, FutureCallback<T> callback) {
+		return doExecuteAsync(servletRequest, proxyRequest, null, targetObj, responseConsumer, callback);
+	}
+	
+	/**
+	 * Like {@link #doExecuteAsync(HttpServletRequest, HttpRequest, URI, HttpAsyncResponseConsumer, FutureCallback)},
+	 * the request is produced by {@code requestProducer}, e.g. to stream its
+	 * body, {@code null} to send {@code proxyRequest} as it is.
+	 */
+	protected <T> Future<T> doExecuteAsync(HttpServletRequest servletRequest, HttpRequest proxyRequest,
+			HttpAsyncRequestProducer requestProducer, URI targetObj, HttpAsyncResponseConsumer<T> responseConsumer,
+			FutureCallback<T> callback) {
+		if (doLog)
+			logger().info(servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- "
+					+ proxyRequest.getRequestLine().getUri() + " (async)");
+
+		final ProxyTarget target = targets.get(targetObj);
+		// the container thread doesn't wait for a slot
+		final ConcurrencyLimiter concurrencyLimiter = target.getConcurrencyLimiter();
+		if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+			BasicFuture<T> result = new BasicFuture<>(callback);
+			result.failed(concurrencyLimiter.reject());
+			return result;
+		}
+		final CircuitBreaker circuitBreaker = target.getCircuitBreaker();
+		if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+			if (concurrencyLimiter != null)
+				concurrencyLimiter.release();
+			BasicFuture<T> result = new BasicFuture<>(callback);
+			result.failed(new ServiceUnavailableException("Circuit breaker of " + target + " is open",
+					circuitBreaker.getRetryAfterSeconds()));
+			return result;
+		}
+		final long start = target.onRequestStart();
+		if (requestProducer == null)
+			requestProducer = HttpAsyncMethods.create(target.getHost(), proxyRequest);
+		final StatusRecordingConsumer<T> statusRecordingConsumer = new StatusRecordingConsumer<>(responseConsumer);
+		return proxyAsyncClient.execute(requestProducer, statusRecordingConsumer, new FutureCallback<T>() {
+			@Override
+			public void completed(T result) {
+				// like the blocking client, 5xx are failures
+				end(statusRecordingConsumer.getStatusCode() < 500);
+				if (callback != null)
+					callback.completed(result);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				end(false);
+				if (callback != null)
+					callback.failed(ex);
+			}
+
+			@Override
+			public void cancelled() {
+				// says nothing about the target, no sample
+				target.onRequestEnd(start);
+				if (circuitBreaker != null)
+					circuitBreaker.release();
+				if (concurrencyLimiter != null)
+					concurrencyLimiter.release();
+				if (callback != null)
+					callback.cancelled();
+			}
+
+			protected void end(boolean success) {
+				long nanos = target.onRequestEnd(start);
+				if (circuitBreaker != null)
+					circuitBreaker.onResult(success, nanos);
+				if (concurrencyLimiter != null)
+					concurrencyLimiter.onResult(success, nanos);
+			}
+		});
+	}
+	
+	/** Delegates to a response consumer, keeping the status of the response. */
+	protected static class StatusRecordingConsumer<T> implements HttpAsyncResponseConsumer<T> {
+		protected final HttpAsyncResponseConsumer<T> delegate;
+		protected volatile int statusCode;
+
+		public StatusRecordingConsumer(HttpAsyncResponseConsumer<T> delegate) {
+			super();
+			this.delegate = delegate;
+		}
+
+		/** The status of the response, 0 before it is received. */
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		@Override
+		public void responseReceived(HttpResponse response) throws IOException, HttpException {
+			statusCode = response.getStatusLine().getStatusCode();
+			delegate.responseReceived(response);
+		}
+
+		@Override
+		public void consumeContent(ContentDecoder decoder, IOControl ioControl) throws IOException {
+			delegate.consumeContent(decoder, ioControl);
+		}
+
+		@Override
+		public void responseCompleted(HttpContext context) {
+			delegate.responseCompleted(context);
+		}
+
+		@Override
+		public void failed(Exception ex) {
+			delegate.failed(ex);
+		}
+
+		@Override
+		public Exception getException() {
+			return delegate.getException();
+		}
+
+		@Override
+		public T getResult() {
+			return delegate.getResult();
+		}
+
+		@Override
+		public boolean isDone() {
+			return delegate.isDone();
+		}
+
+		@Override
+		public boolean cancel() {
+			return delegate.cancel();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+	}
+
+	/**
+	 * Runs {@code onCompletion} once the body has been read to its end,
+	 * closed or aborted, whichever comes first.
+	 */
+	protected static class CompletionEntity extends HttpEntityWrapper implements EofSensorWatcher {
+		protected final AtomicBoolean completed = new AtomicBoolean();
+		protected final Runnable onCompletion;
+		protected InputStream content;
+
+		public CompletionEntity(HttpEntity wrappedEntity, Runnable onCompletion) {
+			super(wrappedEntity);
+			this.onCompletion = onCompletion;
+		}
+
+		@Override
+		public synchronized InputStream getContent() throws IOException {
+			if (content == null)
+				content = new EofSensorInputStream(super.getContent(), this);
+			return content;
+		}
+
+		@Override
+		public void writeTo(OutputStream outStream) throws IOException {
+			try {
+				super.writeTo(outStream);
+			} finally {
+				complete();
+			}
+		}
+
+		@Override
+		public boolean eofDetected(InputStream wrapped) throws IOException {
+			complete();
+			return true;
+		}
+
+		@Override
+		public boolean streamClosed(InputStream wrapped) throws IOException {
+			complete();
+			return true;
+		}
+
+		@Override
+		public boolean streamAbort(InputStream wrapped) throws IOException {
+			complete();
+			return true;
+		}
+
+		protected void complete() {
+			if (completed.compareAndSet(false, true))
+				onCompletion.run();
+		}
 	}
 }
@@ -20,7 +20,13 @@ import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.apache.http.Header;
 import org.apache.log4j.Level;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,7 +34,12 @@ import javax.servlet.http.HttpServletResponse;
 import static servlet.web.proxy.ProxyLogger.*;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Function;
 
 /**
@@ -79,6 +90,220 @@ public class AbstractProxyServlet extends HttpServlet {
 	public static final String P_CONNECT_TIMEOUT = "http.socket.timeout"; // CoreConnectionPNames.SO_TIMEOUT
 	/** A integer parameter name to set the socket read timeout (millis) */
 	public static final String P_READTIMEOUT = "http.read.timeout";
+	/**
+	 * A integer parameter name to set the timeout (millis) waiting for a
+	 * connection from the pool
+	 */
+	public static final String P_CONNECTION_REQUEST_TIMEOUT = "http.connectionRequestTimeout";
+
+	/** A integer parameter name to set the max number of pooled connections */
+	public static final String P_MAX_TOTAL_CONNECTIONS = "http.maxConnections";
+	/** A integer parameter name to set the max number of pooled connections per target host */
+	public static final String P_MAX_CONNECTIONS_PER_ROUTE = "http.maxConnectionsPerRoute";
+	/**
+	 * A integer parameter name to set the inactivity period (millis) after
+	 * which pooled connections are validated before being leased
+	 */
+	public static final String P_VALIDATE_AFTER_INACTIVITY = "http.validateAfterInactivity";
+	/** A long parameter name to set the max lifetime (millis) of pooled connections */
+	public static final String P_CONNECTION_TIME_TO_LIVE = "http.connectionTimeToLive";
+	/**
+	 * A long parameter name to set the idle time (millis) after which pooled
+	 * connections are closed by a background thread
+	 */
+	public static final String P_MAX_IDLE_TIME = "http.maxIdleTime";
+	/**
+	 * A parameter name to share a connection pool between servlets, all
+	 * servlets using the same name use the same pool (configured by the first
+	 * one initialized)
+	 */
+	public static final String P_CONNECTION_POOL = "connectionPool";
+
+	/**
+	 * A boolean parameter name to speak HTTP/2 to the targets which support
+	 * it, multiplexing the requests over one connection per target (see
+	 * {@link Http2Client}). Needs Java 11.
+	 */
+	public static final String P_HTTP2 = "http2";
+
+	/**
+	 * A boolean parameter name to proxy requests asynchronously with a
+	 * non-blocking http client. The servlet has to be async supported.
+	 */
+	public static final String P_ASYNC = "async";
+
+	/**
+	 * A boolean parameter name to proxy each request on a virtual thread
+	 * (JDK 21+), releasing the container thread. The servlet has to be async
+	 * supported. On older JVMs requests stay on the container thread.
+	 */
+	public static final String P_VIRTUAL_THREADS = "virtualThreads";
+
+	/**
+	 * A boolean parameter name to register the statistics of this servlet
+	 * (e.g. {@link ConnectionPoolStats}) as JMX MBeans, named
+	 * {@code servlet.web.proxy:type=<type>,name="<servlet name>"}
+	 */
+	public static final String P_JMX = "jmx";
+
+	/**
+	 * A boolean parameter name to record the timings of the proxy pipeline
+	 * stages into histograms (see {@link ProxyStageMetrics}), exposed via JMX
+	 * if {@link #P_JMX} is enabled
+	 */
+	public static final String P_METRICS = "metrics";
+
+	/**
+	 * A boolean parameter name to cache the responses of the target
+	 * following the HTTP caching rules (RFC 7234) of a shared cache:
+	 * Cache-Control, Expires, Vary, and revalidation with ETag or
+	 * Last-Modified
+	 */
+	public static final String P_RESPONSE_CACHE = "responseCache";
+	/** A long parameter name to set the max total size (bytes) of the response cache */
+	public static final String P_RESPONSE_CACHE_MAX_BYTES = "responseCache.maxBytes";
+	/** A long parameter name to set the max size (bytes) of a cached response body */
+	public static final String P_RESPONSE_CACHE_MAX_OBJECT_BYTES = "responseCache.maxObjectBytes";
+	/**
+	 * A parameter name to set the directory of the disk tier of the response
+	 * cache, the cache is kept across restarts (see {@link DiskCacheStorage})
+	 */
+	public static final String P_RESPONSE_CACHE_DIRECTORY = "responseCache.directory";
+	/** A long parameter name to set the max total size (bytes) of the disk tier */
+	public static final String P_RESPONSE_CACHE_MAX_DISK_BYTES = "responseCache.maxDiskBytes";
+	/** A long parameter name to set the size (bytes) above which bodies are stored on disk */
+	public static final String P_RESPONSE_CACHE_FILE_THRESHOLD = "responseCache.fileThreshold";
+
+	/**
+	 * A boolean parameter name to coalesce identical concurrent GET and HEAD
+	 * requests: only the first one goes to the target, the others share its
+	 * response (see {@link RequestCoalescer})
+	 */
+	public static final String P_COALESCE = "coalesce";
+	/** A long parameter name to set the max size (bytes) of a shared response body */
+	public static final String P_COALESCE_MAX_BYTES = "coalesce.maxBytes";
+	/**
+	 * A parameter name to set the comma separated request headers which have
+	 * to be identical, besides method and URI, to share a response
+	 */
+	public static final String P_COALESCE_HEADERS = "coalesce.headers";
+
+	/**
+	 * An integer parameter name to set the number of parsed target URIs
+	 * kept (see {@link ProxyTargets}), 256 by default
+	 */
+	public static final String P_TARGET_CACHE_SIZE = "targetCacheSize";
+	/**
+	 * A parameter name to set the comma separated hosts the proxy may send
+	 * requests to, e.g. {@code api.example.com, api.example.com:8080,
+	 * *.example.com}. Requests to other hosts are refused with 403.
+	 */
+	public static final String P_ALLOWED_TARGETS = "allowedTargets";
+
+	/**
+	 * A boolean parameter name to record request bodies so that requests
+	 * can be sent again, e.g. after a stale pooled connection failed (see
+	 * {@link ReplayableRequestEntity})
+	 */
+	public static final String P_REPLAYABLE_BODY = "replayableBody";
+	/** An integer parameter name to set the size (bytes) above which recorded bodies are spilled to a file */
+	public static final String P_REPLAYABLE_BODY_THRESHOLD = "replayableBody.threshold";
+	/** A long parameter name to set the max size (bytes) of a recorded body, -1 for no limit */
+	public static final String P_REPLAYABLE_BODY_MAX_BYTES = "replayableBody.maxBytes";
+	/** A parameter name to set the directory of the spilled bodies, the temporary directory by default */
+	public static final String P_REPLAYABLE_BODY_DIRECTORY = "replayableBody.directory";
+
+	/**
+	 * A boolean parameter name to gzip the responses the target sent
+	 * uncompressed, for clients accepting it (see {@link ResponseCompressor})
+	 */
+	public static final String P_COMPRESSION = "compression";
+	/** An integer parameter name to set the size (bytes) under which bodies are not compressed, 1024 by default */
+	public static final String P_COMPRESSION_MIN_SIZE = "compression.minSize";
+	/** An integer parameter name to set the compression level (1-9), 6 by default */
+	public static final String P_COMPRESSION_LEVEL = "compression.level";
+	/** A parameter name to set the comma separated mime types compressed, {@code text/*} for all text types */
+	public static final String P_COMPRESSION_MIME_TYPES = "compression.mimeTypes";
+	/** An integer parameter name to set the max number of idle Deflaters pooled, 32 by default */
+	public static final String P_COMPRESSION_POOL_SIZE = "compression.poolSize";
+	/**
+	 * A boolean parameter name to decode the compressed responses of the
+	 * target, true by default. With false they are passed through as is,
+	 * unless the proxy reads the body (content filter), which is then decoded
+	 * and compressed again.
+	 */
+	public static final String P_CONTENT_DECOMPRESSION = "contentDecompression";
+
+	/**
+	 * A boolean parameter name to retry idempotent requests which failed to
+	 * connect, hit a stale connection or got a retryable status (see
+	 * {@link RetryPolicy}). Requests with a body need {@link #P_REPLAYABLE_BODY}.
+	 */
+	public static final String P_RETRY = "retry";
+	/** An integer parameter name to set the max number of attempts, including the first one, 3 by default */
+	public static final String P_RETRY_MAX_ATTEMPTS = "retry.maxAttempts";
+	/** A long parameter name to set the backoff (millis) before the first retry, doubled for each further one */
+	public static final String P_RETRY_BACKOFF = "retry.backoff";
+	/** A long parameter name to set the max backoff (millis) */
+	public static final String P_RETRY_MAX_BACKOFF = "retry.maxBackoff";
+	/** A parameter name to set the comma separated status codes of the target which are retried */
+	public static final String P_RETRY_STATUSES = "retry.statuses";
+	/** A double parameter name to set the retries earned by each request in the retry budget, 0.2 by default */
+	public static final String P_RETRY_BUDGET_RATIO = "retry.budgetRatio";
+	/** An integer parameter name to set the retries per second always allowed by the retry budget, 10 by default */
+	public static final String P_RETRY_MIN_PER_SECOND = "retry.minRetriesPerSecond";
+
+	/**
+	 * A boolean parameter name to give each target a circuit breaker, which
+	 * fails requests fast with 503 while the target is down (see
+	 * {@link CircuitBreaker})
+	 */
+	public static final String P_CIRCUIT_BREAKER = "circuitBreaker";
+	/** An integer parameter name to set the number of last requests the failure rate is computed on, 20 by default */
+	public static final String P_CIRCUIT_BREAKER_WINDOW_SIZE = "circuitBreaker.windowSize";
+	/** An integer parameter name to set the number of requests needed before the circuit can open, 10 by default */
+	public static final String P_CIRCUIT_BREAKER_MINIMUM_CALLS = "circuitBreaker.minimumCalls";
+	/** A double parameter name to set the rate (0-1) of failures opening the circuit, 0.5 by default */
+	public static final String P_CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreaker.failureRateThreshold";
+	/** A long parameter name to set the duration (millis) of a slow request, 10000 by default */
+	public static final String P_CIRCUIT_BREAKER_SLOW_CALL = "circuitBreaker.slowCallThreshold";
+	/** A double parameter name to set the rate (0-1) of slow requests opening the circuit, 1 by default */
+	public static final String P_CIRCUIT_BREAKER_SLOW_CALL_RATE = "circuitBreaker.slowCallRateThreshold";
+	/** A long parameter name to set how long (millis) the circuit stays open, 10000 by default */
+	public static final String P_CIRCUIT_BREAKER_OPEN_DURATION = "circuitBreaker.openDuration";
+	/** An integer parameter name to set the number of trial requests of a half-open circuit, 3 by default */
+	public static final String P_CIRCUIT_BREAKER_HALF_OPEN_CALLS = "circuitBreaker.halfOpenCalls";
+	/**
+	 * A parameter name to set the path probed on the targets, which enables
+	 * the active health checks (see {@link HealthChecker}) and the circuit
+	 * breakers
+	 */
+	public static final String P_HEALTH_CHECK_PATH = "healthCheck.path";
+	/** A long parameter name to set the interval (millis) of the health probes, 5000 by default */
+	public static final String P_HEALTH_CHECK_INTERVAL = "healthCheck.interval";
+	/** An integer parameter name to set the timeout (millis) of a health probe, 2000 by default */
+	public static final String P_HEALTH_CHECK_TIMEOUT = "healthCheck.timeout";
+
+	/**
+	 * A boolean parameter name to bound the requests in flight to each target
+	 * by an adaptive limit, requests over it are shed with 503 (see
+	 * {@link ConcurrencyLimiter})
+	 */
+	public static final String P_CONCURRENCY_LIMIT = "concurrencyLimit";
+	/** An integer parameter name to set the limit of a new target, 20 by default */
+	public static final String P_CONCURRENCY_LIMIT_INITIAL = "concurrencyLimit.initial";
+	/** An integer parameter name to set the lowest limit, 1 by default */
+	public static final String P_CONCURRENCY_LIMIT_MIN = "concurrencyLimit.min";
+	/** An integer parameter name to set the highest limit, 200 by default */
+	public static final String P_CONCURRENCY_LIMIT_MAX = "concurrencyLimit.max";
+	/** A long parameter name to set the duration (millis) above which a request lowers the limit, 2000 by default */
+	public static final String P_CONCURRENCY_LIMIT_TIMEOUT = "concurrencyLimit.timeout";
+	/** A double parameter name to set the factor (0-1) applied to the limit by a failure, 0.9 by default */
+	public static final String P_CONCURRENCY_LIMIT_BACKOFF_RATIO = "concurrencyLimit.backoffRatio";
+	/** A long parameter name to set how long (millis) a request waits for a slot, 100 by default */
+	public static final String P_CONCURRENCY_LIMIT_MAX_WAIT = "concurrencyLimit.maxWait";
+	/** An integer parameter name to set the max number of requests waiting for a slot, 50 by default */
+	public static final String P_CONCURRENCY_LIMIT_MAX_QUEUE = "concurrencyLimit.maxQueue";
 
 	/* MISC */
 
@@ -87,6 +312,10 @@ public class AbstractProxyServlet extends HttpServlet {
 	//protected boolean doSendUrlFragment = true;
 
 	protected HTTPProxyClient proxyClient;
+	/** Executes the proxied exchanges off the container thread, if set. */
+	protected ExecutorService executor;
+	protected boolean doJmx = false;
+	protected final List<ObjectName> mbeanNames = new ArrayList<>();
 
 	@Override
 	public String getServletInfo() {
@@ -153,6 +382,75 @@ public class AbstractProxyServlet extends HttpServlet {
 			proxyClient.doPreserveHostnameVerification = Boolean.parseBoolean(preserveHostnameVerificationString);
 		}
 
+		String connectionRequestTimeoutString = getConfigParam(P_CONNECTION_REQUEST_TIMEOUT);
+		if (connectionRequestTimeoutString != null) {
+			proxyClient.connectionRequestTimeout = Integer.parseInt(connectionRequestTimeoutString);
+		}
+
+		String maxTotalConnectionsString = getConfigParam(P_MAX_TOTAL_CONNECTIONS);
+		if (maxTotalConnectionsString != null) {
+			proxyClient.maxTotalConnections = Integer.parseInt(maxTotalConnectionsString);
+		}
+
+		String maxConnectionsPerRouteString = getConfigParam(P_MAX_CONNECTIONS_PER_ROUTE);
+		if (maxConnectionsPerRouteString != null) {
+			proxyClient.maxConnectionsPerRoute = Integer.parseInt(maxConnectionsPerRouteString);
+		}
+
+		String validateAfterInactivityString = getConfigParam(P_VALIDATE_AFTER_INACTIVITY);
+		if (validateAfterInactivityString != null) {
+			proxyClient.validateAfterInactivity = Integer.parseInt(validateAfterInactivityString);
+		}
+
+		String connectionTimeToLiveString = getConfigParam(P_CONNECTION_TIME_TO_LIVE);
+		if (connectionTimeToLiveString != null) {
+			proxyClient.connectionTimeToLive = Long.parseLong(connectionTimeToLiveString);
+		}
+
+		String maxIdleTimeString = getConfigParam(P_MAX_IDLE_TIME);
+		if (maxIdleTimeString != null) {
+			proxyClient.maxIdleTime = Long.parseLong(maxIdleTimeString);
+		}
+
+		proxyClient.connectionPoolName = getConfigParam(P_CONNECTION_POOL);
+
+		String http2String = getConfigParam(P_HTTP2);
+		if (http2String != null) {
+			proxyClient.doHttp2 = Boolean.parseBoolean(http2String);
+		}
+
+		String responseCacheString = getConfigParam(P_RESPONSE_CACHE);
+		if (responseCacheString != null) {
+			proxyClient.doResponseCache = Boolean.parseBoolean(responseCacheString);
+		}
+
+		String responseCacheMaxBytesString = getConfigParam(P_RESPONSE_CACHE_MAX_BYTES);
+		if (responseCacheMaxBytesString != null) {
+			proxyClient.responseCacheMaxBytes = Long.parseLong(responseCacheMaxBytesString);
+		}
+
+		String responseCacheMaxObjectBytesString = getConfigParam(P_RESPONSE_CACHE_MAX_OBJECT_BYTES);
+		if (responseCacheMaxObjectBytesString != null) {
+			proxyClient.responseCacheMaxObjectBytes = Long.parseLong(responseCacheMaxObjectBytesString);
+		}
+
+		proxyClient.responseCacheDirectory = getConfigParam(P_RESPONSE_CACHE_DIRECTORY);
+
+		String responseCacheMaxDiskBytesString = getConfigParam(P_RESPONSE_CACHE_MAX_DISK_BYTES);
+		if (responseCacheMaxDiskBytesString != null) {
+			proxyClient.responseCacheMaxDiskBytes = Long.parseLong(responseCacheMaxDiskBytesString);
+		}
+
+		String responseCacheFileThresholdString = getConfigParam(P_RESPONSE_CACHE_FILE_THRESHOLD);
+		if (responseCacheFileThresholdString != null) {
+			proxyClient.responseCacheFileThreshold = Long.parseLong(responseCacheFileThresholdString);
+		}
+
+		String asyncString = getConfigParam(P_ASYNC);
+		if (asyncString != null) {
+			proxyClient.doAsync = Boolean.parseBoolean(asyncString);
+		}
+
 		String connectTimeoutString = getConfigParam(P_CONNECT_TIMEOUT);
 		if (connectTimeoutString != null) {
 			proxyClient.connectTimeout = Integer.parseInt(connectTimeoutString);
@@ -163,9 +461,238 @@ public class AbstractProxyServlet extends HttpServlet {
 	    	proxyClient.readTimeout = Integer.parseInt(readTimeoutString);
 	    }
 	    
+	    String virtualThreadsString = getConfigParam(P_VIRTUAL_THREADS);
+	    if (virtualThreadsString != null && Boolean.parseBoolean(virtualThreadsString)) {
+	    	executor = createExecutor();
+	    	if (executor == null)
+	    		logger().info("Virtual threads are not supported by this JVM, requests are proxied on the container threads");
+	    }
+	    
+	    String metricsString = getConfigParam(P_METRICS);
+	    if (metricsString != null && Boolean.parseBoolean(metricsString)) {
+	    	proxyClient.metricsListener = new ProxyStageMetrics();
+	    }
+	    
+	    String coalesceString = getConfigParam(P_COALESCE);
+	    if (coalesceString != null && Boolean.parseBoolean(coalesceString)) {
+	    	String coalesceMaxBytesString = getConfigParam(P_COALESCE_MAX_BYTES);
+	    	String coalesceHeaders = getConfigParam(P_COALESCE_HEADERS);
+	    	proxyClient.requestCoalescer = new RequestCoalescer(
+	    			coalesceMaxBytesString != null ? Long.parseLong(coalesceMaxBytesString) : 1024 * 1024,
+	    			coalesceHeaders != null ? coalesceHeaders : RequestCoalescer.DEFAULT_KEY_HEADERS);
+	    }
+	    
+	    String targetCacheSizeString = getConfigParam(P_TARGET_CACHE_SIZE);
+	    String allowedTargets = getConfigParam(P_ALLOWED_TARGETS);
+	    if (targetCacheSizeString != null || allowedTargets != null) {
+	    	proxyClient.targets = new ProxyTargets(
+	    			targetCacheSizeString != null ? Integer.parseInt(targetCacheSizeString) : 256, allowedTargets);
+	    }
+	    
+	    String replayableBodyString = getConfigParam(P_REPLAYABLE_BODY);
+	    if (replayableBodyString != null) {
+	    	proxyClient.doReplayableBody = Boolean.parseBoolean(replayableBodyString);
+	    }
+	    
+	    String replayableBodyThresholdString = getConfigParam(P_REPLAYABLE_BODY_THRESHOLD);
+	    if (replayableBodyThresholdString != null) {
+	    	proxyClient.replayableBodyThreshold = Integer.parseInt(replayableBodyThresholdString);
+	    }
+	    
+	    String replayableBodyMaxBytesString = getConfigParam(P_REPLAYABLE_BODY_MAX_BYTES);
+	    if (replayableBodyMaxBytesString != null) {
+	    	proxyClient.replayableBodyMaxBytes = Long.parseLong(replayableBodyMaxBytesString);
+	    }
+	    
+	    proxyClient.replayableBodyDirectory = getConfigParam(P_REPLAYABLE_BODY_DIRECTORY);
+	    
+	    String compressionString = getConfigParam(P_COMPRESSION);
+	    if (compressionString != null && Boolean.parseBoolean(compressionString)) {
+	    	String compressionMinSizeString = getConfigParam(P_COMPRESSION_MIN_SIZE);
+	    	String compressionLevelString = getConfigParam(P_COMPRESSION_LEVEL);
+	    	String compressionMimeTypes = getConfigParam(P_COMPRESSION_MIME_TYPES);
+	    	String compressionPoolSizeString = getConfigParam(P_COMPRESSION_POOL_SIZE);
+	    	proxyClient.responseCompressor = new ResponseCompressor(
+	    			compressionMinSizeString != null ? Integer.parseInt(compressionMinSizeString) : 1024,
+	    			compressionLevelString != null ? Integer.parseInt(compressionLevelString) : 6,
+	    			compressionMimeTypes != null ? compressionMimeTypes : ResponseCompressor.DEFAULT_MIME_TYPES,
+	    			compressionPoolSizeString != null ? Integer.parseInt(compressionPoolSizeString) : 32);
+	    }
+	    
+	    String contentDecompressionString = getConfigParam(P_CONTENT_DECOMPRESSION);
+	    if (contentDecompressionString != null) {
+	    	proxyClient.doContentDecompression = Boolean.parseBoolean(contentDecompressionString);
+	    }
+	    
+	    String retryString = getConfigParam(P_RETRY);
+	    if (retryString != null && Boolean.parseBoolean(retryString)) {
+	    	String retryMaxAttemptsString = getConfigParam(P_RETRY_MAX_ATTEMPTS);
+	    	String retryBackoffString = getConfigParam(P_RETRY_BACKOFF);
+	    	String retryMaxBackoffString = getConfigParam(P_RETRY_MAX_BACKOFF);
+	    	String retryStatuses = getConfigParam(P_RETRY_STATUSES);
+	    	String retryBudgetRatioString = getConfigParam(P_RETRY_BUDGET_RATIO);
+	    	String retryMinPerSecondString = getConfigParam(P_RETRY_MIN_PER_SECOND);
+	    	proxyClient.retryPolicy = new RetryPolicy(
+	    			retryMaxAttemptsString != null ? Integer.parseInt(retryMaxAttemptsString) : 3,
+	    			retryBackoffString != null ? Long.parseLong(retryBackoffString) : 50,
+	    			retryMaxBackoffString != null ? Long.parseLong(retryMaxBackoffString) : 1000,
+	    			retryStatuses != null ? retryStatuses : RetryPolicy.DEFAULT_RETRY_STATUSES,
+	    			retryBudgetRatioString != null ? Double.parseDouble(retryBudgetRatioString) : 0.2,
+	    			retryMinPerSecondString != null ? Integer.parseInt(retryMinPerSecondString) : 10);
+	    }
+	    
+	    String circuitBreakerString = getConfigParam(P_CIRCUIT_BREAKER);
+	    String healthCheckPath = getConfigParam(P_HEALTH_CHECK_PATH);
+	    if (circuitBreakerString != null && Boolean.parseBoolean(circuitBreakerString) || healthCheckPath != null) {
+	    	String windowSizeString = getConfigParam(P_CIRCUIT_BREAKER_WINDOW_SIZE);
+	    	String minimumCallsString = getConfigParam(P_CIRCUIT_BREAKER_MINIMUM_CALLS);
+	    	String failureRateString = getConfigParam(P_CIRCUIT_BREAKER_FAILURE_RATE);
+	    	String slowCallString = getConfigParam(P_CIRCUIT_BREAKER_SLOW_CALL);
+	    	String slowCallRateString = getConfigParam(P_CIRCUIT_BREAKER_SLOW_CALL_RATE);
+	    	String openDurationString = getConfigParam(P_CIRCUIT_BREAKER_OPEN_DURATION);
+	    	String halfOpenCallsString = getConfigParam(P_CIRCUIT_BREAKER_HALF_OPEN_CALLS);
+	    	proxyClient.circuitBreakerConfig = new CircuitBreaker.Config(
+	    			windowSizeString != null ? Integer.parseInt(windowSizeString) : 20,
+	    			minimumCallsString != null ? Integer.parseInt(minimumCallsString) : 10,
+	    			failureRateString != null ? Double.parseDouble(failureRateString) : 0.5,
+	    			slowCallString != null ? Long.parseLong(slowCallString) : 10000,
+	    			slowCallRateString != null ? Double.parseDouble(slowCallRateString) : 1,
+	    			openDurationString != null ? Long.parseLong(openDurationString) : 10000,
+	    			halfOpenCallsString != null ? Integer.parseInt(halfOpenCallsString) : 3);
+	    }
+	    
+	    proxyClient.healthCheckPath = healthCheckPath;
+	    
+	    String healthCheckIntervalString = getConfigParam(P_HEALTH_CHECK_INTERVAL);
+	    if (healthCheckIntervalString != null) {
+	    	proxyClient.healthCheckInterval = Long.parseLong(healthCheckIntervalString);
+	    }
+	    
+	    String healthCheckTimeoutString = getConfigParam(P_HEALTH_CHECK_TIMEOUT);
+	    if (healthCheckTimeoutString != null) {
+	    	proxyClient.healthCheckTimeout = Integer.parseInt(healthCheckTimeoutString);
+	    }
+	    
+	    String concurrencyLimitString = getConfigParam(P_CONCURRENCY_LIMIT);
+	    if (concurrencyLimitString != null && Boolean.parseBoolean(concurrencyLimitString)) {
+	    	String initialString = getConfigParam(P_CONCURRENCY_LIMIT_INITIAL);
+	    	String minString = getConfigParam(P_CONCURRENCY_LIMIT_MIN);
+	    	String maxString = getConfigParam(P_CONCURRENCY_LIMIT_MAX);
+	    	String timeoutString = getConfigParam(P_CONCURRENCY_LIMIT_TIMEOUT);
+	    	String backoffRatioString = getConfigParam(P_CONCURRENCY_LIMIT_BACKOFF_RATIO);
+	    	String maxWaitString = getConfigParam(P_CONCURRENCY_LIMIT_MAX_WAIT);
+	    	String maxQueueString = getConfigParam(P_CONCURRENCY_LIMIT_MAX_QUEUE);
+	    	proxyClient.concurrencyLimiterConfig = new ConcurrencyLimiter.Config(
+	    			initialString != null ? Integer.parseInt(initialString) : 20,
+	    			minString != null ? Integer.parseInt(minString) : 1,
+	    			maxString != null ? Integer.parseInt(maxString) : 200,
+	    			timeoutString != null ? Long.parseLong(timeoutString) : 2000,
+	    			backoffRatioString != null ? Double.parseDouble(backoffRatioString) : 0.9,
+	    			maxWaitString != null ? Long.parseLong(maxWaitString) : 100,
+	    			maxQueueString != null ? Integer.parseInt(maxQueueString) : 50);
+	    }
+	    
+	    String jmxString = getConfigParam(P_JMX);
+	    if (jmxString != null) {
+	    	doJmx = Boolean.parseBoolean(jmxString);
+	    }
+	    
 	    config(proxyClient);
 	    
 	    proxyClient.init();
+	    
+	    if (doJmx)
+	    	registerMBeans();
+	}
+	
+	public HTTPProxyClient getProxyClient() {
+		return proxyClient;
+	}
+
+	/** Called from {@link #init()} if {@link #P_JMX} is enabled. */
+	protected void registerMBeans() {
+		if (proxyClient.getConnectionPoolStats() != null)
+			registerMBean("ConnectionPool", proxyClient.getConnectionPoolStats());
+		if (proxyClient.getResponseCacheStats() != null)
+			registerMBean("ResponseCache", proxyClient.getResponseCacheStats());
+		if (proxyClient.getRequestCoalescer() != null)
+			registerMBean("RequestCoalescer", proxyClient.getRequestCoalescer());
+		if (proxyClient.getRetryPolicy() != null)
+			registerMBean("Retry", proxyClient.getRetryPolicy());
+		if (proxyClient.getConcurrencyLimitStats() != null)
+			registerMBean("ConcurrencyLimit", proxyClient.getConcurrencyLimitStats());
+		if (proxyClient.getMetricsListener() instanceof ProxyStageMetricsMBean)
+			registerMBean("ProxyStages", proxyClient.getMetricsListener());
+	}
+	
+	/**
+	 * Registers {@code mbean} with the platform MBean server, it is
+	 * unregistered on {@link #destroy()}.
+	 */
+	protected void registerMBean(String type, Object mbean) {
+		try {
+			ObjectName name = new ObjectName("servlet.web.proxy:type=" + type + ",name=" + ObjectName.quote(getServletName()));
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			if (mbeanServer.isRegistered(name))
+				mbeanServer.unregisterMBean(name);
+			mbeanServer.registerMBean(mbean, name);
+			mbeanNames.add(name);
+		} catch (JMException e) {
+			logger().info("Registering MBean " + type + " failed: " + e, e);
+		}
+	}
+	
+	/**
+	 * Called from {@link #init()} if {@link #P_VIRTUAL_THREADS} is enabled.
+	 * 
+	 * @return the executor to run the proxied exchanges on, or {@code null}
+	 *         to run them on the container threads
+	 */
+	protected ExecutorService createExecutor() {
+		return VirtualThreads.newVirtualThreadPerTaskExecutor();
+	}
+	
+	/**
+	 * Dispatches the request to the {@link #executor} via an
+	 * {@link AsyncContext}, if there is one. The blocking proxy logic is
+	 * unchanged, it just doesn't run on a container thread.
+	 */
+	@Override
+	public void service(ServletRequest req, ServletResponse res) throws ServletException, IOException {
+		if (executor == null || !req.isAsyncSupported() || req.isAsyncStarted()) {
+			super.service(req, res);
+			return;
+		}
+		
+		// The container may reset the path related state of the request as
+		// soon as this thread returns
+		if (req instanceof HttpServletRequest)
+			req = new DispatchedServletRequest((HttpServletRequest) req);
+		final AsyncContext asyncContext = req.startAsync(req, res);
+		// timeouts are up to the http client
+		asyncContext.setTimeout(0);
+		try {
+			executor.execute(() -> {
+				try {
+					super.service(asyncContext.getRequest(), asyncContext.getResponse());
+				} catch (ServletException | IOException | RuntimeException e) {
+					logger().info("Proxied request failed: " + e, e);
+					HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+					if (!servletResponse.isCommitted()) {
+						try {
+							servletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						} catch (IOException | IllegalStateException e2) {
+							logger().debug(e2.getMessage(), e2);
+						}
+					}
+				} finally {
+					asyncContext.complete();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			asyncContext.complete();
+			throw new ServletException("Proxied request rejected", e);
+		}
 	}
 	
 	protected void config(HTTPProxyClient proxyClient) {
@@ -174,6 +701,16 @@ public class AbstractProxyServlet extends HttpServlet {
 	
 	@Override
 	public void destroy() {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : mbeanNames)
+			try {
+				mbeanServer.unregisterMBean(name);
+			} catch (JMException e) {
+				logger().debug(e.getMessage(), e);
+			}
+		mbeanNames.clear();
+		if (executor != null)
+			executor.shutdown();
 		proxyClient.destroy();
 		super.destroy();
 	}
@@ -194,9 +731,31 @@ public class AbstractProxyServlet extends HttpServlet {
 		return result;
 	}
 
+	/**
+	 * Proxies the request, through the incremental {@code contentFilter} for
+	 * HTML content if it is not {@code null}.
+	 */
+	protected byte[] doFilteredService(HttpServletRequest servletRequest, HttpServletResponse servletResponse, String targetUri,
+			URI targetObj, String pathInfo, MutableBoolean resource, Function<Header, Boolean> filter,
+			boolean withRequestPathInfo, String urlPattern, ContentFilter contentFilter) throws ServletException, IOException {
+		// Only resources which are not filtered are proxied asynchronously,
+		// everything else needs the body on this thread
+		if (contentFilter == null && resource.getValue() && proxyClient.isAsyncExecutable(servletRequest)) {
+			proxyClient.executeAsync(servletRequest, servletResponse, targetUri, targetObj, pathInfo, filter, withRequestPathInfo, urlPattern);
+			return null;
+		}
+		
+		return proxyClient.executeFiltered(servletRequest, servletResponse, targetUri, targetObj, pathInfo, resource, filter, withRequestPathInfo, urlPattern, contentFilter);
+	}
+	
+	/**
+	 * Proxies the request, through the {@code contentFilter} for HTML content
+	 * if it is not {@code null}. The filter needs the whole document in
+	 * memory, see {@link #doFilteredService} for an incremental one.
+	 */
 	protected byte[] doService(HttpServletRequest servletRequest, HttpServletResponse servletResponse, String targetUri,
 			URI targetObj, String pathInfo, MutableBoolean resource, Function<Header, Boolean> filter,
 			boolean withRequestPathInfo, String urlPattern, Function<byte[], byte[]> contentFilter) throws ServletException, IOException {
-		return proxyClient.execute(servletRequest, servletResponse, targetUri, targetObj, pathInfo, resource, filter, withRequestPathInfo, urlPattern, contentFilter);
+		return doFilteredService(servletRequest, servletResponse, targetUri, targetObj, pathInfo, resource, filter, withRequestPathInfo, urlPattern, ContentFilter.of(contentFilter));
 	}
 }
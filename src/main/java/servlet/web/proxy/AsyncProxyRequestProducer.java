@@ -0,0 +1,187 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Streams the body of the servlet request to the non-blocking HTTP client
+ * in async mode, the counterpart of {@link AsyncProxyResponseConsumer}. The
+ * body goes through a single buffer: the servlet input is read by a
+ * {@link ReadListener} while the buffer has room, upstream output is
+ * suspended while it is empty. When the buffer is full, reading stops and
+ * is resumed on a container thread once upstream has drained it.
+ */
+public class AsyncProxyRequestProducer implements HttpAsyncRequestProducer, ReadListener {
+	protected final HttpHost target;
+	protected final HttpEntityEnclosingRequest request;
+	protected final AsyncContext asyncContext;
+	protected final ServletInputStream servletInputStream;
+
+	/** In write mode, guarded by {@code this}. */
+	protected final ByteBuffer buffer;
+	protected final byte[] chunk;
+	protected IOControl ioControl;
+	/** The buffer was full, the servlet input is not being read. */
+	protected boolean paused;
+	protected boolean allRead;
+	protected IOException failure;
+	protected volatile boolean closed;
+
+	/**
+	 * @param contentLength the length of the body, -1 if unknown (it is
+	 *        then sent chunked)
+	 */
+	public AsyncProxyRequestProducer(HttpHost target, HttpEntityEnclosingRequest request, long contentLength,
+			AsyncContext asyncContext) throws IOException {
+		super();
+		this.target = target;
+		this.request = request;
+		this.asyncContext = asyncContext;
+		servletInputStream = asyncContext.getRequest().getInputStream();
+		buffer = ByteBuffer.allocate(HTTPProxyClientUtils.COPY_BUFFER_SIZE);
+		chunk = new byte[HTTPProxyClientUtils.COPY_BUFFER_SIZE];
+
+		// only the metadata, the content is produced here
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContentLength(contentLength);
+		entity.setChunked(contentLength < 0);
+		request.setEntity(entity);
+	}
+
+	/** Starts reading the servlet input. */
+	public void start() {
+		servletInputStream.setReadListener(this);
+	}
+
+	@Override
+	public HttpHost getTarget() {
+		return target;
+	}
+
+	@Override
+	public HttpRequest generateRequest() {
+		return request;
+	}
+
+	@Override
+	public void onDataAvailable() throws IOException {
+		while (!closed) {
+			int room;
+			synchronized (this) {
+				room = buffer.remaining();
+				if (room == 0) {
+					// produceContent resumes
+					paused = true;
+					return;
+				}
+			}
+			// the container calls again once there is more
+			if (!servletInputStream.isReady())
+				return;
+			int read = servletInputStream.read(chunk, 0, Math.min(room, chunk.length));
+			if (read == -1)
+				return;
+			synchronized (this) {
+				buffer.put(chunk, 0, read);
+			}
+			requestOutput();
+		}
+	}
+
+	@Override
+	public void onAllDataRead() throws IOException {
+		synchronized (this) {
+			allRead = true;
+		}
+		requestOutput();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		synchronized (this) {
+			failure = t instanceof IOException ? (IOException) t : new IOException(t);
+		}
+		// produceContent fails the exchange
+		requestOutput();
+	}
+
+	@Override
+	public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+		boolean resume = false;
+		synchronized (this) {
+			this.ioControl = ioControl;
+			if (failure != null)
+				throw failure;
+			buffer.flip();
+			encoder.write(buffer);
+			buffer.compact();
+			if (buffer.position() == 0) {
+				if (allRead)
+					encoder.complete();
+				else
+					// onDataAvailable requests output again
+					ioControl.suspendOutput();
+			}
+			if (paused && buffer.hasRemaining()) {
+				paused = false;
+				resume = true;
+			}
+		}
+		if (resume)
+			asyncContext.start(() -> {
+				try {
+					onDataAvailable();
+				} catch (IOException e) {
+					onError(e);
+				}
+			});
+	}
+
+	protected void requestOutput() {
+		IOControl current;
+		synchronized (this) {
+			current = ioControl;
+		}
+		// before the connection, produceContent is called anyway
+		if (current != null)
+			current.requestOutput();
+	}
+
+	@Override
+	public void requestCompleted(HttpContext context) {
+		// empty
+	}
+
+	@Override
+	public void failed(Exception ex) {
+		closed = true;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public void resetRequest() {
+		// not repeatable
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
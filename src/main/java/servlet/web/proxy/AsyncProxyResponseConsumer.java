@@ -0,0 +1,182 @@
+package servlet.web.proxy;
+
+import static servlet.web.proxy.ProxyLogger.logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Streams the response of the non-blocking HTTP client to the servlet client
+ * in async mode. Upstream input is suspended while the servlet output stream
+ * is not ready (see {@link WriteListener}), so neither side blocks a thread
+ * and at most one buffer per exchange is held in memory.
+ */
+public class AsyncProxyResponseConsumer extends AbstractAsyncResponseConsumer<Void> implements WriteListener {
+	protected final HTTPProxyClient proxyClient;
+	protected final AsyncContext asyncContext;
+	protected final HttpServletRequest servletRequest;
+	protected final HttpServletResponse servletResponse;
+	protected final String targetUri;
+	protected final Function<Header, Boolean> filter;
+	protected final boolean withRequestPathInfo;
+	protected final String urlPattern;
+
+	protected final long startNanos;
+	protected long bodyStartNanos;
+
+	protected final ByteBuffer buffer;
+	protected ServletOutputStream servletOutputStream;
+	protected volatile IOControl ioControl;
+	protected volatile boolean done;
+	protected final AtomicBoolean completed;
+
+	public AsyncProxyResponseConsumer(HTTPProxyClient proxyClient, AsyncContext asyncContext, String targetUri,
+			Function<Header, Boolean> filter, boolean withRequestPathInfo, String urlPattern) {
+		super();
+		this.proxyClient = proxyClient;
+		this.asyncContext = asyncContext;
+		this.servletRequest = (HttpServletRequest) asyncContext.getRequest();
+		this.servletResponse = (HttpServletResponse) asyncContext.getResponse();
+		this.targetUri = targetUri;
+		this.filter = filter;
+		this.withRequestPathInfo = withRequestPathInfo;
+		this.urlPattern = urlPattern;
+
+		startNanos = System.nanoTime();
+		bodyStartNanos = startNanos;
+		buffer = ByteBuffer.allocate(HTTPProxyClientUtils.COPY_BUFFER_SIZE);
+		completed = new AtomicBoolean(false);
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	protected void onResponseReceived(HttpResponse proxyResponse) throws IOException {
+		if (proxyClient.getConnectionPoolStats() != null)
+			proxyClient.getConnectionPoolStats().getTimeToFirstByteHistogram().recordSince(startNanos);
+		proxyClient.stageEnd(servletRequest, ProxyStage.EXECUTE, startNanos);
+
+		int statusCode = proxyResponse.getStatusLine().getStatusCode();
+		servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
+		proxyClient.copyResponseHeaders(proxyResponse, servletRequest, servletResponse, targetUri, filter, withRequestPathInfo, urlPattern);
+		if (statusCode == HttpServletResponse.SC_NOT_MODIFIED)
+			servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+		bodyStartNanos = proxyClient.stageEnd(servletRequest, ProxyStage.FIRST_BYTE, startNanos);
+
+		servletOutputStream = servletResponse.getOutputStream();
+		servletOutputStream.setWriteListener(this);
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		// empty
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+		this.ioControl = ioControl;
+		while (servletOutputStream.isReady()) {
+			buffer.clear();
+			int read = decoder.read(buffer);
+			if (read <= 0)
+				return;
+			servletOutputStream.write(buffer.array(), 0, read);
+		}
+		// Not ready, onWritePossible will resume. Suspending first, so a
+		// concurrent onWritePossible can't be missed.
+		ioControl.suspendInput();
+		if (servletOutputStream.isReady())
+			ioControl.requestInput();
+	}
+
+	@Override
+	public void onWritePossible() throws IOException {
+		if (done)
+			complete();
+		else if (ioControl != null)
+			ioControl.requestInput();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		logger().info("Writing the proxied response failed: " + t, t);
+		cancel();
+		complete();
+	}
+
+	@Override
+	protected Void buildResult(HttpContext context) throws Exception {
+		return null;
+	}
+
+	@Override
+	protected void releaseResources() {
+		// empty
+	}
+
+	/** Completes the {@link AsyncContext} once the exchange is over. */
+	public FutureCallback<Void> callback() {
+		return new FutureCallback<Void>() {
+			@Override
+			public void completed(Void result) {
+				done = true;
+				if (servletOutputStream == null || servletOutputStream.isReady())
+					complete();
+			}
+
+			@Override
+			public void failed(Exception e) {
+				if (e instanceof ServiceUnavailableException) {
+					try {
+						proxyClient.sendServiceUnavailable(servletResponse, (ServiceUnavailableException) e);
+					} catch (IOException | IllegalStateException e2) {
+						logger().debug(e2.getMessage(), e2);
+					}
+					complete();
+					return;
+				}
+				logger().info("Proxied request failed: " + e, e);
+				if (!servletResponse.isCommitted()) {
+					try {
+						servletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					} catch (IOException | IllegalStateException e2) {
+						logger().debug(e2.getMessage(), e2);
+					}
+				}
+				complete();
+			}
+
+			@Override
+			public void cancelled() {
+				complete();
+			}
+		};
+	}
+
+	protected void complete() {
+		if (completed.compareAndSet(false, true)) {
+			if (done)
+				proxyClient.stageEnd(servletRequest, ProxyStage.BODY_COMPLETE, bodyStartNanos);
+			proxyClient.stageEnd(servletRequest, ProxyStage.TOTAL, startNanos);
+			asyncContext.complete();
+		}
+	}
+}
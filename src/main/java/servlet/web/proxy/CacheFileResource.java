@@ -0,0 +1,162 @@
+package servlet.web.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.client.cache.Resource;
+
+/**
+ * Cached body stored in a file of a {@link DiskCacheStorage}. The file is
+ * owned by the storage, which deletes it once the entry is evicted and the
+ * body is no longer {@link #isInUse(long) in use}, so {@link #dispose()}
+ * only deletes temporary files: partial bodies of responses too large to
+ * be cached.
+ */
+public class CacheFileResource implements Resource {
+	private static final long serialVersionUID = 1L;
+
+	protected final File file;
+	protected final long length;
+	protected final boolean temporary;
+	/** Open input streams, guarded by {@code this}. */
+	protected transient int readers;
+	/** Whether the entry was looked up, at {@link #lookedUpAt}, guarded by {@code this}. */
+	protected transient boolean lookedUp;
+	protected transient long lookedUpAt;
+
+	public CacheFileResource(File file, boolean temporary) {
+		super();
+		this.file = file;
+		this.temporary = temporary;
+		length = file.length();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		synchronized (this) {
+			readers++;
+		}
+		return new ReaderInputStream(channel);
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void dispose() {
+		if (temporary)
+			file.delete();
+	}
+
+	/**
+	 * Called by the storage when the entry was looked up or stored: the body
+	 * is about to be read, even if the entry is evicted in the meantime.
+	 */
+	public synchronized void lookedUp() {
+		lookedUp = true;
+		lookedUpAt = System.nanoTime();
+	}
+
+	/**
+	 * Whether the file must not be deleted yet: it is being read, or it was
+	 * looked up less than {@code delayNanos} ago and may be read shortly.
+	 */
+	public synchronized boolean isInUse(long delayNanos) {
+		return readers > 0 || lookedUp && System.nanoTime() - lookedUpAt < delayNanos;
+	}
+
+	protected synchronized void readerClosed() {
+		readers--;
+	}
+
+	/**
+	 * Reads the file through its channel, {@link #transferTo(OutputStream)}
+	 * hands the rest of the file to {@link FileChannel#transferTo} instead of
+	 * copying it through a buffer of the caller.
+	 */
+	public static class ChannelInputStream extends InputStream {
+		protected final FileChannel channel;
+
+		public ChannelInputStream(FileChannel channel) {
+			super();
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long position = channel.position();
+			long skipped = Math.max(0, Math.min(n, channel.size() - position));
+			channel.position(position + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, channel.size() - channel.position());
+		}
+
+		/** Writes the rest of the file to {@code out}, returns the number of bytes written. */
+		public long transferTo(OutputStream out) throws IOException {
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = channel.position();
+			long size = channel.size();
+			long start = position;
+			while (position < size)
+				position += channel.transferTo(position, size - position, target);
+			channel.position(position);
+
+			return position - start;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/** Counts as a reader of the file until closed. */
+	protected class ReaderInputStream extends ChannelInputStream {
+		protected boolean closed;
+
+		public ReaderInputStream(FileChannel channel) {
+			super(channel);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				readerClosed();
+			}
+		}
+	}
+}
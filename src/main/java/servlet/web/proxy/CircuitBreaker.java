@@ -0,0 +1,227 @@
+package servlet.web.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker of a {@link TargetHost}. Closed, it records the outcome
+ * of the last {@code windowSize} requests and opens when the rate of
+ * failures (connection failures and 5xx) or of slow requests reaches its
+ * threshold. Open, requests fail fast with a {@link ServiceUnavailableException}
+ * for {@code openDuration}, then it is half-open: {@code halfOpenCalls} trial
+ * requests close it again if they all succeed, or open it at the first
+ * failure. Active health probes (see {@link HealthChecker}) open it as well,
+ * and move it from open to half-open when the target is healthy again.
+ * <p>
+ * The state is only updated with atomic operations, the outcomes in a ring
+ * whose slots are claimed by an atomic counter.
+ * </p>
+ */
+public class CircuitBreaker {
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	/** Outcomes in the window. */
+	protected static final int NONE = 0, SUCCESS = 1, FAILURE = 2, SLOW = 4;
+
+	protected final Config config;
+	protected final String name;
+	protected final AtomicInteger state = new AtomicInteger(CLOSED);
+	protected volatile long openedAt;
+	protected final AtomicIntegerArray window;
+	protected final AtomicLong next = new AtomicLong();
+	protected final AtomicInteger calls = new AtomicInteger();
+	protected final AtomicInteger failures = new AtomicInteger();
+	protected final AtomicInteger slowCalls = new AtomicInteger();
+	/** Trial requests left in half-open state. */
+	protected final AtomicInteger halfOpenPermits = new AtomicInteger();
+	protected final AtomicInteger halfOpenSuccesses = new AtomicInteger();
+	protected final AtomicLong rejected = new AtomicLong();
+	protected final AtomicLong opened = new AtomicLong();
+
+	public CircuitBreaker(Config config, String name) {
+		super();
+		this.config = config;
+		this.name = name;
+		window = new AtomicIntegerArray(config.windowSize);
+	}
+
+	public int getState() {
+		return state.get();
+	}
+
+	/** Whether a request would be let through, without claiming a trial request. */
+	public boolean isAvailable() {
+		int current = state.get();
+		return current == CLOSED || current == HALF_OPEN && halfOpenPermits.get() > 0
+				|| current == OPEN && System.nanoTime() - openedAt >= config.openDurationNanos;
+	}
+
+	/**
+	 * Whether a request may go to the target. Each request let through must
+	 * report its outcome to {@link #onResult(boolean, long)}.
+	 */
+	public boolean tryAcquire() {
+		int current = state.get();
+		if (current == CLOSED)
+			return true;
+		if (current == OPEN) {
+			if (System.nanoTime() - openedAt < config.openDurationNanos) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			halfOpen(OPEN);
+		}
+		// rejections must not take permits, release() gives back only one
+		int permits;
+		do {
+			permits = halfOpenPermits.get();
+			if (permits <= 0) {
+				rejected.incrementAndGet();
+				return false;
+			}
+		} while (!halfOpenPermits.compareAndSet(permits, permits - 1));
+		return true;
+	}
+
+	/** Records the outcome of a request let through by {@link #tryAcquire()}. */
+	public void onResult(boolean success, long nanos) {
+		boolean slow = nanos >= config.slowCallNanos;
+		int current = state.get();
+		if (current == HALF_OPEN) {
+			if (!success || slow)
+				open(HALF_OPEN);
+			else if (halfOpenSuccesses.incrementAndGet() >= config.halfOpenCalls
+					&& state.compareAndSet(HALF_OPEN, CLOSED))
+				resetWindow();
+			return;
+		}
+		if (current != CLOSED)
+			return;
+
+		int outcome = (success ? SUCCESS : FAILURE) | (slow ? SLOW : NONE);
+		int slot = (int) (next.getAndIncrement() % window.length());
+		int previous = window.getAndSet(slot, outcome);
+		if (previous == NONE)
+			calls.incrementAndGet();
+		failures.addAndGet(((outcome & FAILURE) >> 1) - ((previous & FAILURE) >> 1));
+		slowCalls.addAndGet(((outcome & SLOW) >> 2) - ((previous & SLOW) >> 2));
+
+		int n = calls.get();
+		if (n >= config.minimumCalls && (failures.get() >= config.failureRateThreshold * n
+				|| slowCalls.get() >= config.slowCallRateThreshold * n))
+			open(CLOSED);
+	}
+
+	/**
+	 * Gives back a request let through by {@link #tryAcquire()} without an
+	 * outcome, e.g. cancelled: a trial request is let through again.
+	 */
+	public void release() {
+		if (state.get() == HALF_OPEN)
+			halfOpenPermits.incrementAndGet();
+	}
+
+	/** A health probe failed, the target is down whatever the traffic says. */
+	public void onProbeFailure() {
+		int current = state.get();
+		if (current != OPEN)
+			open(current);
+		else
+			openedAt = System.nanoTime();
+	}
+
+	/** A health probe succeeded, an open circuit lets trial requests through. */
+	public void onProbeSuccess() {
+		if (state.get() == OPEN)
+			halfOpen(OPEN);
+	}
+
+	protected void open(int from) {
+		openedAt = System.nanoTime();
+		if (state.compareAndSet(from, OPEN)) {
+			opened.incrementAndGet();
+			ProxyLogger.logger().info("Circuit breaker of " + name + " opened");
+		}
+	}
+
+	protected void halfOpen(int from) {
+		if (state.compareAndSet(from, HALF_OPEN)) {
+			halfOpenSuccesses.set(0);
+			halfOpenPermits.set(config.halfOpenCalls);
+		}
+	}
+
+	protected void resetWindow() {
+		for (int i = 0; i < window.length(); i++) {
+			int previous = window.getAndSet(i, NONE);
+			if (previous != NONE) {
+				calls.decrementAndGet();
+				failures.addAndGet(-((previous & FAILURE) >> 1));
+				slowCalls.addAndGet(-((previous & SLOW) >> 2));
+			}
+		}
+	}
+
+	/** Seconds until trial requests are let through, for a Retry-After header. */
+	public long getRetryAfterSeconds() {
+		long remaining = config.openDurationNanos - (System.nanoTime() - openedAt);
+		return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+	}
+
+	/** Requests failed fast. */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/** Number of times the circuit opened. */
+	public long getOpened() {
+		return opened.get();
+	}
+
+	/** Failures in the window. */
+	public int getFailures() {
+		return failures.get();
+	}
+
+	/** Requests in the window. */
+	public int getCalls() {
+		return calls.get();
+	}
+
+	/** Settings shared by the circuit breakers of all targets. */
+	public static class Config {
+		protected final int windowSize;
+		protected final int minimumCalls;
+		protected final double failureRateThreshold;
+		protected final long slowCallNanos;
+		protected final double slowCallRateThreshold;
+		protected final long openDurationNanos;
+		protected final int halfOpenCalls;
+
+		/**
+		 * @param failureRateThreshold rate of failures (0-1) opening the circuit
+		 * @param slowCallMillis duration of a slow request
+		 * @param slowCallRateThreshold rate of slow requests (0-1) opening the
+		 *        circuit, more than 1 to ignore them
+		 */
+		public Config(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallMillis,
+				double slowCallRateThreshold, long openDurationMillis, int halfOpenCalls) {
+			super();
+			this.windowSize = windowSize;
+			this.minimumCalls = Math.min(minimumCalls, windowSize);
+			this.failureRateThreshold = failureRateThreshold;
+			slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+			this.slowCallRateThreshold = slowCallRateThreshold;
+			openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+			this.halfOpenCalls = halfOpenCalls;
+		}
+
+		public CircuitBreaker newCircuitBreaker(String name) {
+			return new CircuitBreaker(this, name);
+		}
+	}
+}
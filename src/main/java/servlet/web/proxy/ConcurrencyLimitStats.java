@@ -0,0 +1,57 @@
+package servlet.web.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Statistics of the {@link ConcurrencyLimiter}s of the targets of a proxy
+ * client (see {@link AbstractProxyServlet#P_CONCURRENCY_LIMIT}), summed over
+ * the hosts currently known.
+ */
+public class ConcurrencyLimitStats implements ConcurrencyLimitStatsMBean {
+	protected final ProxyTargets targets;
+
+	public ConcurrencyLimitStats(ProxyTargets targets) {
+		super();
+		this.targets = targets;
+	}
+
+	@Override
+	public long getRejected() {
+		long result = 0;
+		for (TargetHost target : targets.hosts())
+			if (target.getConcurrencyLimiter() != null)
+				result += target.getConcurrencyLimiter().getRejected();
+		return result;
+	}
+
+	@Override
+	public long getQueued() {
+		long result = 0;
+		for (TargetHost target : targets.hosts())
+			if (target.getConcurrencyLimiter() != null)
+				result += target.getConcurrencyLimiter().getQueued();
+		return result;
+	}
+
+	@Override
+	public int getInFlight() {
+		int result = 0;
+		for (TargetHost target : targets.hosts())
+			if (target.getConcurrencyLimiter() != null)
+				result += target.getConcurrencyLimiter().getInFlight();
+		return result;
+	}
+
+	@Override
+	public String[] getLimits() {
+		List<String> result = new ArrayList<>();
+		for (TargetHost target : targets.hosts()) {
+			ConcurrencyLimiter limiter = target.getConcurrencyLimiter();
+			if (limiter != null)
+				result.add(target + " limit=" + limiter.getLimit() + " inFlight=" + limiter.getInFlight()
+						+ " rejected=" + limiter.getRejected());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+}
@@ -0,0 +1,17 @@
+package servlet.web.proxy;
+
+/**
+ * JMX view of {@link ConcurrencyLimitStats}.
+ */
+public interface ConcurrencyLimitStatsMBean {
+	/** Requests shed by the limiters of all targets. */
+	long getRejected();
+
+	/** Requests which had to wait for a slot. */
+	long getQueued();
+
+	int getInFlight();
+
+	/** The limit of each target: {@code uri limit=n inFlight=n rejected=n}. */
+	String[] getLimits();
+}
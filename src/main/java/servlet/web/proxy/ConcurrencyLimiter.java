@@ -0,0 +1,192 @@
+package servlet.web.proxy;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive limit of the requests in flight to a {@link TargetHost}, so that
+ * an overloaded target doesn't hold every container thread. The limit
+ * follows AIMD, like a TCP congestion window: each request completing in
+ * time raises it by {@code 1/limit} while the limit is used, i.e. by one per
+ * window of requests, and a failure (connection failure or 5xx) or a request
+ * slower than {@code timeout} multiplies it by {@code backoffRatio}. It backs
+ * off at most once per window: the failures of requests sent before the last
+ * decrease were caused by the same overload, and are ignored.
+ * <p>
+ * A request over the limit waits up to {@code maxWait} for a slot, with at
+ * most {@code maxQueue} requests waiting, and is then shed with a
+ * {@link ServiceUnavailableException}. The fast path only uses atomic
+ * operations, the waiting requests a monitor.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+	protected final Config config;
+	protected final AtomicInteger inFlight = new AtomicInteger();
+	/** The limit, the bits of a double. */
+	protected final AtomicLong limit;
+	/** {@link System#nanoTime()} of the last decrease of the limit. */
+	protected final AtomicLong lastBackoff = new AtomicLong(System.nanoTime());
+	protected final AtomicInteger waiting = new AtomicInteger();
+	protected final LongAdder rejected = new LongAdder();
+	protected final LongAdder queued = new LongAdder();
+
+	public ConcurrencyLimiter(Config config) {
+		super();
+		this.config = config;
+		limit = new AtomicLong(Double.doubleToRawLongBits(config.initialLimit));
+	}
+
+	/** The current limit of requests in flight. */
+	public int getLimit() {
+		return (int) Double.longBitsToDouble(limit.get());
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/** Requests shed. */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/** Requests which had to wait for a slot. */
+	public long getQueued() {
+		return queued.sum();
+	}
+
+	/** Whether no request is in flight and the limit is not below the initial one. */
+	public boolean isIdle() {
+		return inFlight.get() == 0 && getLimit() >= config.initialLimit;
+	}
+
+	/** Takes a slot if the limit allows it, without waiting. */
+	public boolean tryAcquire() {
+		int current;
+		do {
+			current = inFlight.get();
+			if (current >= getLimit())
+				return false;
+		} while (!inFlight.compareAndSet(current, current + 1));
+		return true;
+	}
+
+	/**
+	 * Takes a slot, waiting up to {@code maxWait} for one. Each slot taken
+	 * must be given back by {@link #onResult(boolean, long)} or
+	 * {@link #release()}.
+	 * 
+	 * @throws ServiceUnavailableException if the request is shed
+	 */
+	public void acquire() throws ServiceUnavailableException, InterruptedIOException {
+		if (tryAcquire())
+			return;
+		if (config.maxWaitNanos <= 0)
+			throw reject();
+		if (waiting.incrementAndGet() > config.maxQueue) {
+			waiting.decrementAndGet();
+			throw reject();
+		}
+
+		queued.increment();
+		try {
+			long deadline = System.nanoTime() + config.maxWaitNanos;
+			synchronized (this) {
+				while (!tryAcquire()) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						throw reject();
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/** Gives the slot back without a sample, the request was not sent. */
+	public void release() {
+		inFlight.decrementAndGet();
+		if (waiting.get() > 0)
+			synchronized (this) {
+				notify();
+			}
+	}
+
+	/**
+	 * Gives the slot back and adapts the limit to the outcome of the request.
+	 * 
+	 * @param nanos the duration of the request, up to now
+	 */
+	public void onResult(boolean success, long nanos) {
+		boolean backoff = !success || nanos > config.timeoutNanos;
+		if (backoff) {
+			long now = System.nanoTime();
+			long last = lastBackoff.get();
+			// sent before the last decrease, or another request backs off
+			if (now - nanos - last < 0 || !lastBackoff.compareAndSet(last, now)) {
+				release();
+				return;
+			}
+		}
+
+		int used = inFlight.get();
+		long current;
+		double next;
+		do {
+			current = limit.get();
+			double value = Double.longBitsToDouble(current);
+			if (backoff)
+				next = Math.max(config.minLimit, value * config.backoffRatio);
+			else if (used * 2 >= value)
+				next = Math.min(config.maxLimit, value + 1 / value);
+			else
+				break;
+		} while (!limit.compareAndSet(current, Double.doubleToRawLongBits(next)));
+		release();
+	}
+
+	protected ServiceUnavailableException reject() {
+		rejected.increment();
+		return new ServiceUnavailableException("Concurrency limit of " + getLimit() + " reached", 1);
+	}
+
+	/** Settings shared by the limiters of all targets. */
+	public static class Config {
+		protected final int initialLimit;
+		protected final int minLimit;
+		protected final int maxLimit;
+		protected final long timeoutNanos;
+		protected final double backoffRatio;
+		protected final long maxWaitNanos;
+		protected final int maxQueue;
+
+		/**
+		 * @param timeoutMillis duration above which a request lowers the limit
+		 * @param backoffRatio factor (0-1) applied to the limit by a failure
+		 * @param maxWaitMillis max wait for a slot, 0 to shed at once
+		 * @param maxQueue max number of requests waiting for a slot
+		 */
+		public Config(int initialLimit, int minLimit, int maxLimit, long timeoutMillis, double backoffRatio,
+				long maxWaitMillis, int maxQueue) {
+			super();
+			this.minLimit = Math.max(1, minLimit);
+			this.maxLimit = Math.max(this.minLimit, maxLimit);
+			this.initialLimit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+			timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			this.backoffRatio = backoffRatio;
+			maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+			this.maxQueue = maxQueue;
+		}
+
+		public ConcurrencyLimiter newConcurrencyLimiter() {
+			return new ConcurrencyLimiter(this);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package servlet.web.proxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Statistics of the connection pool of a proxy client: leased, available and
+ * pending connections (in total and per route), and histograms of the time
+ * to lease a connection, the connect time and the time to first byte (time
+ * until the response headers of the target arrived). The latter tells
+ * whether slow requests wait for the backend or for the pool.
+ * <p>
+ * Lease and connect times belong to the pool, so they are shared if the pool
+ * is (see {@link AbstractProxyServlet#P_CONNECTION_POOL}).
+ * </p>
+ */
+public class ConnectionPoolStats implements ConnectionPoolStatsMBean {
+	protected final InstrumentedConnectionManager connectionManager;
+	protected final LatencyHistogram timeToFirstByte;
+
+	public ConnectionPoolStats(InstrumentedConnectionManager connectionManager) {
+		super();
+		this.connectionManager = connectionManager;
+		timeToFirstByte = new LatencyHistogram();
+	}
+
+	public PoolStats getTotalStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	public Map<HttpRoute, PoolStats> getStatsPerRoute() {
+		Set<HttpRoute> routes = connectionManager.getRoutes();
+		Map<HttpRoute, PoolStats> result = new LinkedHashMap<>(routes.size() * 2);
+		for (HttpRoute route : routes)
+			result.put(route, connectionManager.getStats(route));
+
+		return result;
+	}
+
+	public LatencyHistogram getLeaseTimeHistogram() {
+		return connectionManager.getLeaseTime();
+	}
+
+	public LatencyHistogram getConnectTimeHistogram() {
+		return connectionManager.getConnectTime();
+	}
+
+	public LatencyHistogram getTimeToFirstByteHistogram() {
+		return timeToFirstByte;
+	}
+
+	@Override
+	public int getLeased() {
+		return getTotalStats().getLeased();
+	}
+
+	@Override
+	public int getAvailable() {
+		return getTotalStats().getAvailable();
+	}
+
+	@Override
+	public int getPending() {
+		return getTotalStats().getPending();
+	}
+
+	@Override
+	public int getMax() {
+		return getTotalStats().getMax();
+	}
+
+	@Override
+	public String[] getRouteStats() {
+		Map<HttpRoute, PoolStats> statsPerRoute = getStatsPerRoute();
+		String[] result = new String[statsPerRoute.size()];
+		int i = 0;
+		for (Map.Entry<HttpRoute, PoolStats> entry : statsPerRoute.entrySet())
+			result[i++] = entry.getKey() + " " + entry.getValue();
+
+		return result;
+	}
+
+	@Override
+	public String getLeaseTime() {
+		return getLeaseTimeHistogram().snapshot().toString();
+	}
+
+	@Override
+	public double getLeaseTimeP99() {
+		return getLeaseTimeHistogram().snapshot().getMillisAtPercentile(99);
+	}
+
+	@Override
+	public String getConnectTime() {
+		return getConnectTimeHistogram().snapshot().toString();
+	}
+
+	@Override
+	public double getConnectTimeP99() {
+		return getConnectTimeHistogram().snapshot().getMillisAtPercentile(99);
+	}
+
+	@Override
+	public String getTimeToFirstByte() {
+		return timeToFirstByte.snapshot().toString();
+	}
+
+	@Override
+	public double getTimeToFirstByteP99() {
+		return timeToFirstByte.snapshot().getMillisAtPercentile(99);
+	}
+
+	@Override
+	public void resetLatencies() {
+		getLeaseTimeHistogram().reset();
+		getConnectTimeHistogram().reset();
+		timeToFirstByte.reset();
+	}
+}
@@ -0,0 +1,31 @@
+package servlet.web.proxy;
+
+/**
+ * JMX view of {@link ConnectionPoolStats}. Latencies are in milliseconds.
+ */
+public interface ConnectionPoolStatsMBean {
+	int getLeased();
+
+	int getAvailable();
+
+	int getPending();
+
+	int getMax();
+
+	/** One line per route: {@code route [leased: .., pending: .., available: .., max: ..]}. */
+	String[] getRouteStats();
+
+	String getLeaseTime();
+
+	double getLeaseTimeP99();
+
+	String getConnectTime();
+
+	double getConnectTimeP99();
+
+	String getTimeToFirstByte();
+
+	double getTimeToFirstByteP99();
+
+	void resetLatencies();
+}
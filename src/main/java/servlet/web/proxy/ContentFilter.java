@@ -0,0 +1,70 @@
+package servlet.web.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.function.Function;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Incremental filter for proxied HTML content (e.g. link or URL rewriting).
+ * For every filtered response a new {@link Transformer} is opened, which is
+ * fed the body chunk by chunk as it arrives from the target and writes its
+ * output directly to the client. Implementations that only keep a bounded
+ * amount of state run in constant memory.
+ * 
+ * @see TextTransformer
+ */
+@FunctionalInterface
+public interface ContentFilter {
+	/**
+	 * Starts filtering a response body.
+	 * 
+	 * @param charset
+	 *            the charset of the response body, as declared by the target
+	 *            (ISO-8859-1 if none is declared)
+	 * @param out
+	 *            where the filtered body has to be written to
+	 */
+	Transformer open(HttpServletRequest servletRequest, Charset charset, OutputStream out) throws IOException;
+
+	/**
+	 * Stateful transformer of one response body. It is used by a single
+	 * thread only.
+	 */
+	interface Transformer {
+		/** Transforms the next chunk of the body. */
+		void write(byte[] b, int off, int len) throws IOException;
+
+		/**
+		 * Called after the last chunk, writes any pending output. The
+		 * underlying stream must not be closed.
+		 */
+		void finish() throws IOException;
+	}
+
+	/**
+	 * Adapts a filter working on the whole document. The body is buffered
+	 * until {@link Transformer#finish()}.
+	 */
+	static ContentFilter of(final Function<byte[], byte[]> filter) {
+		if (filter == null)
+			return null;
+
+		return (servletRequest, charset, out) -> new Transformer() {
+			protected final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				buffer.write(b, off, len);
+			}
+
+			@Override
+			public void finish() throws IOException {
+				out.write(filter.apply(buffer.toByteArray()));
+			}
+		};
+	}
+}
@@ -0,0 +1,505 @@
+package servlet.web.proxy;
+
+import static servlet.web.proxy.ProxyLogger.logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * Response cache storage keeping large bodies on local disk. Bodies up to
+ * {@code fileThreshold} bytes stay on-heap (bounded by {@code maxBytes}
+ * like {@link MemoryCacheStorage}), larger ones are written to files
+ * (bounded by {@code maxDiskBytes}) and served with
+ * {@link CacheFileResource.ChannelInputStream#transferTo(java.io.OutputStream)}.
+ * Keys, headers and validators of all entries are indexed on-heap.
+ * <p>
+ * The files are spread over 256 segment directories. Every entry is also
+ * written to a {@code .meta} file, so the index is rebuilt from the
+ * directory on startup: a restarted proxy keeps its cache. Being the
+ * {@link ResourceFactory} of the cache, this storage decides where bodies
+ * go while they are read from the target.
+ * </p>
+ * <p>
+ * The files are written and deleted after the index has been updated,
+ * outside of its lock, so lookups never wait on disk. The body of an
+ * evicted entry is only deleted once it is no longer
+ * {@link CacheFileResource#isInUse(long) in use}: read, or looked up less
+ * than {@link #RELEASE_DELAY_NANOS} ago.
+ * </p>
+ */
+public class DiskCacheStorage extends MemoryCacheStorage implements ResourceFactory {
+	protected static final String BODY_SUFFIX = ".body";
+	protected static final String META_SUFFIX = ".meta";
+	protected static final int SEGMENTS = 256;
+	protected static final int META_FORMAT = 1;
+	protected static final byte NO_BODY = 0;
+	protected static final byte HEAP_BODY = 1;
+	protected static final byte FILE_BODY = 2;
+	/** How long the body of an entry may still be read after it was looked up. */
+	protected static final long RELEASE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	protected final File directory;
+	protected final long maxDiskBytes;
+	protected final long fileThreshold;
+	protected long diskBytes;
+	/** Entries to write by key, {@code null} to delete, guarded by {@code this}. */
+	protected final Map<String, HttpCacheEntry> pendingMeta = new LinkedHashMap<>();
+	/** Bodies of removed entries still to delete, guarded by {@code this}. */
+	protected final List<CacheFileResource> released = new ArrayList<>();
+	/** Serializes the file updates, so they are applied in the order of the index changes. */
+	protected final Object fileLock = new Object();
+
+	public DiskCacheStorage(long maxBytes, File directory, long maxDiskBytes, long fileThreshold) throws IOException {
+		super(maxBytes);
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		this.fileThreshold = fileThreshold;
+		for (int i = 0; i < SEGMENTS; i++)
+			Files.createDirectories(segment(i).toPath());
+		load();
+		writeFiles();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getMaxDiskBytes() {
+		return maxDiskBytes;
+	}
+
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/*
+	 * ResourceFactory
+	 */
+
+	@Override
+	public Resource generate(String requestId, InputStream instream, InputLimit limit) throws IOException {
+		long maxLength = limit != null ? limit.getValue() : Long.MAX_VALUE;
+		byte[] buffer = HTTPProxyClientUtils.copyBuffer.get();
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		OutputStream out = head;
+		File file = null;
+		boolean reached = false;
+		long length = 0;
+		try {
+			int read;
+			while ((read = instream.read(buffer)) != -1) {
+				length += read;
+				if (file == null && length > fileThreshold) {
+					file = newBodyFile();
+					out = new FileOutputStream(file);
+					head.writeTo(out);
+				}
+				out.write(buffer, 0, read);
+				if (length > maxLength) {
+					reached = true;
+					limit.reached();
+					break;
+				}
+			}
+			if (file != null)
+				out.close();
+		} catch (IOException | RuntimeException e) {
+			if (file != null) {
+				closeQuietly(out);
+				file.delete();
+			}
+			throw e;
+		}
+
+		if (file == null)
+			return new HeapResource(head.toByteArray());
+		return new CacheFileResource(file, reached);
+	}
+
+	@Override
+	public Resource copy(String requestId, Resource resource) throws IOException {
+		if (!(resource instanceof CacheFileResource))
+			return new HeapResource(toByteArray(resource));
+
+		// a link, every entry owns its file and bodies are immutable
+		File file = newBodyFile();
+		file.delete();
+		File source = ((CacheFileResource) resource).getFile();
+		try {
+			Files.createLink(file.toPath(), source.toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(source.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return new CacheFileResource(file, false);
+	}
+
+	/*
+	 * MemoryCacheStorage
+	 */
+
+	@Override
+	public synchronized HttpCacheEntry getEntry(String key) {
+		HttpCacheEntry entry = super.getEntry(key);
+		if (entry != null && entry.getResource() instanceof CacheFileResource)
+			((CacheFileResource) entry.getResource()).lookedUp();
+		return entry;
+	}
+
+	@Override
+	public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+		super.putEntry(key, entry);
+		writeFiles();
+	}
+
+	@Override
+	public void removeEntry(String key) {
+		super.removeEntry(key);
+		writeFiles();
+	}
+
+	@Override
+	public void updateEntry(String key, HttpCacheUpdateCallback callback)
+			throws IOException, HttpCacheUpdateException {
+		super.updateEntry(key, callback);
+		writeFiles();
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		writeFiles();
+	}
+
+	@Override
+	protected boolean isFull() {
+		return super.isFull() || diskBytes > maxDiskBytes;
+	}
+
+	/** If only the disk tier is full, only entries with a body on disk are evicted. */
+	@Override
+	protected boolean isEvictable(HttpCacheEntry entry) {
+		return super.isFull() || diskSizeOf(entry) > 0;
+	}
+
+	@Override
+	protected boolean fits(HttpCacheEntry entry) {
+		return super.fits(entry) && diskSizeOf(entry) <= maxDiskBytes;
+	}
+
+	@Override
+	protected long sizeOf(HttpCacheEntry entry) {
+		return super.sizeOf(entry) - diskSizeOf(entry);
+	}
+
+	@Override
+	protected void added(String key, HttpCacheEntry entry) {
+		diskBytes += diskSizeOf(entry);
+		// the caching client reads the body it just stored
+		if (entry.getResource() instanceof CacheFileResource)
+			((CacheFileResource) entry.getResource()).lookedUp();
+		pendingMeta.put(key, entry);
+	}
+
+	@Override
+	protected void removed(String key, HttpCacheEntry entry) {
+		diskBytes -= diskSizeOf(entry);
+		HttpCacheEntry current = entries.get(key);
+		File file = fileOf(entry);
+		if (file != null && (current == null || !file.equals(fileOf(current))))
+			released.add((CacheFileResource) entry.getResource());
+		if (current == null)
+			pendingMeta.put(key, null);
+	}
+
+	@Override
+	protected void rejected(String key, HttpCacheEntry entry) {
+		if (entry.getResource() instanceof CacheFileResource) {
+			CacheFileResource resource = (CacheFileResource) entry.getResource();
+			// still returned to the caller
+			resource.lookedUp();
+			released.add(resource);
+		}
+	}
+
+	/**
+	 * Applies the index changes to the directory: writes and deletes the
+	 * {@code .meta} files, deletes the released bodies no longer in use. Does
+	 * nothing while the index is locked, the outermost caller writes.
+	 */
+	protected void writeFiles() {
+		if (Thread.holdsLock(this))
+			return;
+		synchronized (fileLock) {
+			Map<String, HttpCacheEntry> metas;
+			List<CacheFileResource> bodies;
+			synchronized (this) {
+				if (pendingMeta.isEmpty() && released.isEmpty())
+					return;
+				metas = new LinkedHashMap<>(pendingMeta);
+				pendingMeta.clear();
+				bodies = new ArrayList<>(released);
+			}
+
+			for (Map.Entry<String, HttpCacheEntry> meta : metas.entrySet()) {
+				if (meta.getValue() != null)
+					writeMeta(meta.getKey(), meta.getValue());
+				else
+					metaFile(meta.getKey()).delete();
+			}
+			for (CacheFileResource body : bodies) {
+				if (!canDelete(body))
+					continue;
+				File file = body.getFile();
+				if (file.delete() || !file.exists()) {
+					synchronized (this) {
+						released.remove(body);
+					}
+				}
+			}
+		}
+	}
+
+	/** Whether the body of a removed entry can be deleted now, otherwise it is retried on the next change. */
+	protected boolean canDelete(CacheFileResource body) {
+		return !body.isInUse(RELEASE_DELAY_NANOS);
+	}
+
+	protected void writeMeta(String key, HttpCacheEntry entry) {
+		File meta = metaFile(key);
+		File tmp = new File(meta.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(META_FORMAT);
+			out.writeUTF(key);
+			writeEntry(entry, out);
+		} catch (IOException e) {
+			// still cached until restart
+			logger().warn("Could not write cache entry " + meta + ": " + e, e);
+			tmp.delete();
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), meta.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger().warn("Could not write cache entry " + meta + ": " + e, e);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the {@code .meta} files, oldest first, and
+	 * deletes the files that do not belong to an entry.
+	 */
+	protected void load() {
+		List<File> metas = new ArrayList<>();
+		List<File> bodies = new ArrayList<>();
+		for (int i = 0; i < SEGMENTS; i++) {
+			File[] files = segment(i).listFiles();
+			if (files == null)
+				continue;
+			for (File file : files) {
+				if (file.getName().endsWith(META_SUFFIX))
+					metas.add(file);
+				else if (file.getName().endsWith(BODY_SUFFIX))
+					bodies.add(file);
+				else
+					file.delete();
+			}
+		}
+		metas.sort(Comparator.comparingLong(File::lastModified));
+
+		for (File meta : metas) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)))) {
+				if (in.readInt() != META_FORMAT)
+					throw new IOException("Unknown format");
+				String key = in.readUTF();
+				HttpCacheEntry entry = readEntry(in);
+				entries.put(key, entry);
+				bytes += sizeOf(entry);
+				diskBytes += diskSizeOf(entry);
+			} catch (IOException | RuntimeException e) {
+				logger().info("Dropping cache entry " + meta + ": " + e);
+				meta.delete();
+			}
+		}
+		evict();
+
+		Set<File> used = new HashSet<>();
+		for (HttpCacheEntry entry : entries.values()) {
+			File file = fileOf(entry);
+			if (file != null)
+				used.add(file);
+		}
+		for (File body : bodies)
+			if (!used.contains(body))
+				body.delete();
+		logger().info("Loaded " + entries.size() + " cache entries from " + directory);
+	}
+
+	/**
+	 * Writes the entry without Java serialization, bodies in files are
+	 * referenced by their path relative to the cache directory.
+	 */
+	protected void writeEntry(HttpCacheEntry entry, DataOutputStream out) throws IOException {
+		out.writeLong(entry.getRequestDate().getTime());
+		out.writeLong(entry.getResponseDate().getTime());
+		ProtocolVersion version = entry.getProtocolVersion();
+		out.writeUTF(version.getProtocol());
+		out.writeInt(version.getMajor());
+		out.writeInt(version.getMinor());
+		out.writeInt(entry.getStatusCode());
+		out.writeUTF(entry.getReasonPhrase() != null ? entry.getReasonPhrase() : "");
+		out.writeUTF(entry.getRequestMethod());
+		Header[] headers = entry.getAllHeaders();
+		out.writeInt(headers.length);
+		for (Header header : headers) {
+			out.writeUTF(header.getName());
+			out.writeUTF(header.getValue());
+		}
+		Map<String, String> variants = entry.getVariantMap();
+		out.writeInt(variants.size());
+		for (Map.Entry<String, String> variant : variants.entrySet()) {
+			out.writeUTF(variant.getKey());
+			out.writeUTF(variant.getValue());
+		}
+		
+		Resource resource = entry.getResource();
+		File file = fileOf(entry);
+		if (resource == null)
+			out.writeByte(NO_BODY);
+		else if (file != null) {
+			out.writeByte(FILE_BODY);
+			out.writeUTF(directory.toPath().relativize(file.toPath()).toString());
+			out.writeLong(resource.length());
+		} else {
+			out.writeByte(HEAP_BODY);
+			byte[] body = toByteArray(resource);
+			out.writeInt(body.length);
+			out.write(body);
+		}
+	}
+	
+	protected HttpCacheEntry readEntry(DataInputStream in) throws IOException {
+		Date requestDate = new Date(in.readLong());
+		Date responseDate = new Date(in.readLong());
+		ProtocolVersion version = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+		StatusLine statusLine = new BasicStatusLine(version, in.readInt(), in.readUTF());
+		String requestMethod = in.readUTF();
+		Header[] headers = new Header[in.readInt()];
+		for (int i = 0; i < headers.length; i++)
+			headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+		int variantCount = in.readInt();
+		Map<String, String> variants = new HashMap<>(variantCount * 2);
+		for (int i = 0; i < variantCount; i++)
+			variants.put(in.readUTF(), in.readUTF());
+		
+		Resource resource;
+		switch (in.readByte()) {
+		case NO_BODY:
+			resource = null;
+			break;
+		case FILE_BODY:
+			File file = new File(directory, in.readUTF());
+			if (file.length() != in.readLong())
+				throw new IOException("Missing or truncated body " + file);
+			resource = new CacheFileResource(file, false);
+			break;
+		case HEAP_BODY:
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			resource = new HeapResource(body);
+			break;
+		default:
+			throw new IOException("Unknown body type");
+		}
+		return new HttpCacheEntry(requestDate, responseDate, statusLine, headers, resource, variants,
+				requestMethod);
+	}
+
+	protected File segment(int i) {
+		return new File(directory, String.format("%02x", i));
+	}
+
+	protected File newBodyFile() throws IOException {
+		File segment = segment(ThreadLocalRandom.current().nextInt(SEGMENTS));
+		return File.createTempFile("body", BODY_SUFFIX, segment);
+	}
+
+	/** The file of the entry, named after a digest of the key. */
+	protected File metaFile(String key) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder name = new StringBuilder(digest.length * 2 + META_SUFFIX.length());
+		for (byte b : digest)
+			name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		name.append(META_SUFFIX);
+		return new File(segment(digest[0] & 0xFF), name.toString());
+	}
+
+	protected static File fileOf(HttpCacheEntry entry) {
+		Resource resource = entry.getResource();
+		return resource instanceof CacheFileResource ? ((CacheFileResource) resource).getFile() : null;
+	}
+
+	protected static long diskSizeOf(HttpCacheEntry entry) {
+		Resource resource = entry.getResource();
+		return resource instanceof CacheFileResource ? resource.length() : 0;
+	}
+
+	protected static byte[] toByteArray(Resource resource) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) resource.length());
+		try (InputStream in = resource.getInputStream()) {
+			HTTPProxyClientUtils.copy(in, out, false);
+		}
+		return out.toByteArray();
+	}
+
+	protected static void closeQuietly(OutputStream out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger().debug(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package servlet.web.proxy;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Keeps the path elements of a request handed over to another thread (see
+ * {@link javax.servlet.AsyncContext}) as they were at the time of the
+ * hand-over. Containers may reset them as soon as the original dispatch
+ * returns.
+ */
+public class DispatchedServletRequest extends HttpServletRequestWrapper {
+	protected final String contextPath;
+	protected final String servletPath;
+	protected final String pathInfo;
+
+	public DispatchedServletRequest(HttpServletRequest request) {
+		super(request);
+		contextPath = request.getContextPath();
+		servletPath = request.getServletPath();
+		pathInfo = request.getPathInfo();
+	}
+
+	@Override
+	public String getContextPath() {
+		return contextPath;
+	}
+
+	@Override
+	public String getServletPath() {
+		return servletPath;
+	}
+
+	@Override
+	public String getPathInfo() {
+		return pathInfo;
+	}
+}
@@ -3,7 +3,7 @@ package servlet.web.proxy;
 import static servlet.web.proxy.HTTPProxyClientUtils.*;
 import static servlet.web.proxy.ProxyLogger.*;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpCookie;
 import java.net.URI;
@@ -13,8 +13,14 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.zip.Deflater;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -26,13 +32,13 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHeaders;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.AbortableHttpRequest;
-import org.apache.http.client.utils.URIUtils;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
@@ -48,14 +54,32 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 	protected boolean doPreserveCookiesContextPath = false;
 	protected boolean doPreserveCookiesServletPath = false;
 	
+	protected ProxyMetricsListener metricsListener;
+	protected RequestCoalescer requestCoalescer;
+	protected ResponseCompressor responseCompressor;
+	/**
+	 * Compresses again the bodies decoded for the content filter, without
+	 * content decompression.
+	 */
+	protected ResponseCompressor recompressor;
+	/** Racy on purpose, the plans are immutable. */
+	protected final UrlRewritePlan[] rewritePlans = new UrlRewritePlan[16];
+	protected boolean doReplayableBody = false;
+	protected int replayableBodyThreshold = 64 * 1024;
+	protected long replayableBodyMaxBytes = 64L * 1024 * 1024;
+	protected String replayableBodyDirectory;
+	
 	protected Function<String, Boolean> cookieFilterRequest;
 	protected Function<HttpCookie, Boolean> cookieFilterResponse;
 	
 	protected String servletName;
+	/** Prefix of the names of the cookies of the target, see {@link HTTPProxyClientUtils#getCookieNamePrefix}. */
+	protected String cookieNamePrefix;
 	
 	public HTTPProxyClient(String servletName) {
 		super();
 		this.servletName = servletName;
+		cookieNamePrefix = getCookieNamePrefix(servletName, null);
 	}
 	
 	public boolean isDoSendUrlFragment() {
@@ -106,6 +130,78 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		this.doPreserveCookiesServletPath = doPreserveCookiesServletPath;
 	}
 
+	public ProxyMetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+
+	/**
+	 * Sets the listener receiving the timings of the proxy pipeline stages,
+	 * {@code null} (the default) disables the timing.
+	 */
+	public void setMetricsListener(ProxyMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	public RequestCoalescer getRequestCoalescer() {
+		return requestCoalescer;
+	}
+
+	/**
+	 * Sets the coalescer sharing responses between identical concurrent
+	 * requests, {@code null} (the default) disables the coalescing.
+	 */
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	public ResponseCompressor getResponseCompressor() {
+		return responseCompressor;
+	}
+
+	/**
+	 * Sets the compressor of the responses the target sent uncompressed,
+	 * {@code null} (the default) disables the compression.
+	 */
+	public void setResponseCompressor(ResponseCompressor responseCompressor) {
+		this.responseCompressor = responseCompressor;
+	}
+
+	public boolean isDoReplayableBody() {
+		return doReplayableBody;
+	}
+
+	/**
+	 * Whether request bodies are recorded so the request can be sent again
+	 * (see {@link ReplayableRequestEntity}), {@code false} by default.
+	 */
+	public void setDoReplayableBody(boolean doReplayableBody) {
+		this.doReplayableBody = doReplayableBody;
+	}
+
+	public int getReplayableBodyThreshold() {
+		return replayableBodyThreshold;
+	}
+
+	public void setReplayableBodyThreshold(int replayableBodyThreshold) {
+		this.replayableBodyThreshold = replayableBodyThreshold;
+	}
+
+	public long getReplayableBodyMaxBytes() {
+		return replayableBodyMaxBytes;
+	}
+
+	public void setReplayableBodyMaxBytes(long replayableBodyMaxBytes) {
+		this.replayableBodyMaxBytes = replayableBodyMaxBytes;
+	}
+
+	public String getReplayableBodyDirectory() {
+		return replayableBodyDirectory;
+	}
+
+	public void setReplayableBodyDirectory(String replayableBodyDirectory) {
+		this.replayableBodyDirectory = replayableBodyDirectory;
+	}
+
 	public void setCookieFilterRequest(Function<String, Boolean> cookieFilterRequest) {
 		this.cookieFilterRequest = cookieFilterRequest;
 	}
@@ -114,10 +210,37 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		this.cookieFilterResponse = cookieFilterResponse;
 	}
 
-	public byte[] execute(HttpServletRequest servletRequest, HttpServletResponse servletResponse, String targetUri,
+	@Override
+	public void init() {
+		super.init();
+		if (!doContentDecompression)
+			recompressor = responseCompressor != null ? responseCompressor
+					: new ResponseCompressor(0, Deflater.DEFAULT_COMPRESSION, "text/html", 8);
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		if (responseCompressor != null)
+			responseCompressor.destroy();
+		if (recompressor != null && recompressor != responseCompressor)
+			recompressor.destroy();
+	}
+
+	/**
+	 * Proxies the request to {@code targetUri}. The response body is streamed
+	 * to the client, through the {@code contentFilter} for HTML content. It
+	 * is only buffered if the response is not a {@code resource}, the caller
+	 * is responsible for sending it then.
+	 * 
+	 * @return the response body if it is not a resource, otherwise
+	 *         {@code null}
+	 */
+	public byte[] executeFiltered(HttpServletRequest servletRequest, HttpServletResponse servletResponse, String targetUri,
 			URI targetObj, String pathInfo, final MutableBoolean resource, final Function<Header, Boolean> filter,
-			boolean withRequestPathInfo, String urlPattern, Function<byte[], byte[]> contentFilter) throws ServletException, IOException {
+			boolean withRequestPathInfo, String urlPattern, ContentFilter contentFilter) throws ServletException, IOException {
 		byte[] result = null;
+		final long exchangeStart = stageStart();
 
 		// Make the Request
 		// note: we won't transfer the protocol version because I'm not sure it
@@ -125,7 +248,9 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		String method = servletRequest.getMethod();
 		String proxyRequestUri = rewriteUrlFromRequest(servletRequest, targetUri, pathInfo, withRequestPathInfo,
 				urlPattern);
-		logger().debug("HTTPProxyClient::Request: "+proxyRequestUri);
+		if (logger().isDebugEnabled())
+			logger().debug("HTTPProxyClient::Request: "+proxyRequestUri);
+		long stageStart = stageEnd(servletRequest, ProxyStage.REWRITE_URI, exchangeStart);
 		HttpRequest proxyRequest;
 		// spec: RFC 2616, sec 4.3: either of these two headers signal that
 		// there is a message body.
@@ -139,11 +264,19 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		copyRequestHeaders(servletRequest, proxyRequest, targetObj);
 
 		setXForwardedForHeader(servletRequest, proxyRequest);
+		stageStart = stageEnd(servletRequest, ProxyStage.COPY_REQUEST_HEADERS, stageStart);
 
 		HttpResponse proxyResponse = null;
+		ResponseCompressor.CompressingResponse compressingResponse = null;
 		try {
 			// Execute the request
-			proxyResponse = doExecute(servletRequest, proxyRequest, targetObj);
+			if (requestCoalescer != null && requestCoalescer.isCoalescable(proxyRequest)) {
+				final HttpRequest request = proxyRequest;
+				proxyResponse = requestCoalescer.execute(requestCoalescer.key(proxyRequest),
+						() -> doExecuteWithRetries(servletRequest, request, targetObj));
+			} else
+				proxyResponse = doExecuteWithRetries(servletRequest, proxyRequest, targetObj);
+			stageStart = stageEnd(servletRequest, ProxyStage.EXECUTE, stageStart);
 
 			// Process the response:
 
@@ -154,66 +287,91 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 			// noinspection deprecation
 			servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
 
+			// Determine whether the content is a resource (anything except a
+			// HTML page) before the headers are sent
+			final boolean enabled = !resource.getValue();
+			Header contentType = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+			boolean contentTypeHTML = contentType != null && contentType.getValue().contains("text/html");
+			if (enabled)
+				resource.setValue(!(!proxyResponse.containsHeader("Content-Disposition") && contentTypeHTML));
+			boolean filterable = contentFilter != null && contentTypeHTML && resource.getValue()
+					&& statusCode != HttpServletResponse.SC_NOT_MODIFIED;
+			// A body read by the proxy is decoded first, one in an unknown
+			// coding can't be filtered
+			boolean decoded = !doContentDecompression && (!resource.getValue() || filterable)
+					&& decodeContent(proxyResponse);
+			// The filtered body has an unknown length
+			final boolean filterContent = filterable && (decoded || !isEncoded(proxyResponse));
+			// So has the compressed body
+			ResponseCompressor compressor = responseCompressor;
+			boolean compressible = compressor != null && resource.getValue()
+					&& compressor.isCompressible(proxyResponse);
+			if (decoded && filterContent) {
+				// the client accepted the coding of the target
+				compressor = recompressor;
+				compressible = true;
+			}
+			final boolean compress = compressible && compressor.isAccepted(servletRequest);
+
 			// Copying response headers to make sure SESSIONID or other Cookie
 			// which comes from the remote
 			// server will be saved in client when the proxied url was
 			// redirected to another one.
 			// See issue
 			// [#51](https://github.com/mitre/HTTP-Proxy-Servlet/issues/51)
-			final boolean enabled = !resource.getValue();
-			final MutableBoolean contentDisposition = new MutableBoolean(false);
-			final MutableBoolean contentTypeHTML = new MutableBoolean(false);
 			Function<Header, Boolean> filterInternal = new Function<Header, Boolean>() {
 				@Override
 				public Boolean apply(Header header) {
 					boolean result = false;
 
-					if (enabled) {
-						if (header.getName().equalsIgnoreCase("Content-Disposition"))
-							contentDisposition.setTrue();
-						else if (header.getName().equalsIgnoreCase("Content-Type")) {
-							if (header.getValue().contains("text/html"))
-								contentTypeHTML.setTrue();
-						}
-					}
-
-					if (filter!=null)
+					if ((filterContent || compress) && header.getName().equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH))
+						result = true;
+					else if (filter!=null)
 						result = filter.apply(header);
 					
 					return result;
 				}
 			};
-			copyResponseHeaders(proxyResponse, servletRequest, servletResponse, targetUri, filterInternal, withRequestPathInfo, urlPattern);
-			
-			if (enabled)
-				resource.setValue(!(contentDisposition.isFalse() && contentTypeHTML.isTrue()));
+			// a retry may have failed over to another target
+			ProxyTarget failover = (ProxyTarget) servletRequest.getAttribute(ATTR_FAILOVER_TARGET);
+			String responseTargetUri = failover != null ? failover.getUri() : targetUri;
+			copyResponseHeaders(proxyResponse, servletRequest, servletResponse, responseTargetUri, filterInternal, withRequestPathInfo, urlPattern);
+			if (compressible)
+				compressor.addVary(proxyResponse, servletResponse);
 			
 			if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
 				// 304 needs special handling. See:
 				// http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
 				// Don't send body entity/content!
 				servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
-			} else {
+			}
+			stageStart = stageEnd(servletRequest, ProxyStage.FIRST_BYTE, exchangeStart);
+			
+			if (statusCode != HttpServletResponse.SC_NOT_MODIFIED) {
 				// Send the content to the client
 				// changed by David A. Bauer
 				if (proxyResponse.getEntity()!=null) {
-					ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
-					proxyResponse.getEntity().writeTo(buffer);
-					buffer.flush();
-					result = buffer.toByteArray();
-					if (resource.getValue()) {
-						if (contentFilter!=null && contentTypeHTML.isTrue()) {
-							byte[] content = contentFilter.apply(result);
-							servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, content.length);
-							servletResponse.getOutputStream().write(content);
-						}
-						servletResponse.getOutputStream().write(result);
-						servletResponse.getOutputStream().flush();
+					if (!resource.getValue())
+						// The caller needs the whole document
+						result = EntityUtils.toByteArray(proxyResponse.getEntity());
+					else {
+						HttpServletResponse bodyResponse = servletResponse;
+						if (compress)
+							bodyResponse = compressingResponse = compressor.wrap(servletResponse, proxyResponse);
+						if (filterContent)
+							copyResponseEntity(proxyResponse, bodyResponse, servletRequest, contentFilter);
+						else
+							// Nobody needs the whole document, stream it through
+							copyResponseEntity(proxyResponse, bodyResponse, proxyRequest, servletRequest);
+						if (compressingResponse != null)
+							compressingResponse.finish();
+						stageEnd(servletRequest, filterContent ? ProxyStage.FILTER : ProxyStage.BODY_COMPLETE, stageStart);
 					}
-					buffer.close();
 				}
 			}
 
+		} catch (ServiceUnavailableException e) {
+			sendServiceUnavailable(servletResponse, e);
 		} catch (Exception e) {
 			handleRequestException(proxyRequest, e);
 		} finally {
@@ -221,13 +379,188 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 			// released
 			if (proxyResponse != null)
 				consumeQuietly(proxyResponse.getEntity());
+			if (compressingResponse != null)
+				compressingResponse.release();
+			// delete the spilled request body
+			if (proxyRequest instanceof HttpEntityEnclosingRequest
+					&& ((HttpEntityEnclosingRequest) proxyRequest).getEntity() instanceof ReplayableRequestEntity)
+				((ReplayableRequestEntity) ((HttpEntityEnclosingRequest) proxyRequest).getEntity()).close();
 			// Note: Don't need to close servlet outputStream:
 			// http://stackoverflow.com/questions/1159168/should-one-call-close-on-httpservletresponse-getoutputstream-getwriter
+			stageEnd(servletRequest, ProxyStage.TOTAL, exchangeStart);
 		}
 
 		return result;
 	}
 	
+	/** Whether the body of {@code proxyResponse} has a content coding. */
+	protected boolean isEncoded(HttpResponse proxyResponse) {
+		Header contentEncoding = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+		return contentEncoding != null && !contentEncoding.getValue().trim().equalsIgnoreCase("identity");
+	}
+
+	/**
+	 * Decodes a gzip or deflate body of {@code proxyResponse} as it is read,
+	 * and drops the headers of the encoded body.
+	 * 
+	 * @return whether the body was decoded, {@code false} if it has no body,
+	 *         no coding or an unknown one
+	 */
+	protected boolean decodeContent(HttpResponse proxyResponse) {
+		HttpEntity entity = proxyResponse.getEntity();
+		if (entity == null || !isEncoded(proxyResponse))
+			return false;
+
+		String contentEncoding = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_ENCODING).getValue().trim();
+		if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip"))
+			proxyResponse.setEntity(new GzipDecompressingEntity(entity));
+		else if (contentEncoding.equalsIgnoreCase("deflate"))
+			proxyResponse.setEntity(new DeflateDecompressingEntity(entity));
+		else
+			return false;
+		proxyResponse.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+		proxyResponse.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+		proxyResponse.removeHeaders(HttpHeaders.CONTENT_MD5);
+		return true;
+	}
+	
+	/**
+	 * Whether the request can be proxied by
+	 * {@link #executeAsync(HttpServletRequest, HttpServletResponse, String, URI, String, Function, boolean, String)}.
+	 * Form posts are excluded, their parameters may have been consumed by
+	 * the container already, as well as requests already in async mode. With
+	 * the response cache, GET and HEAD requests take the blocking path which
+	 * goes through the cache.
+	 */
+	public boolean isAsyncExecutable(HttpServletRequest servletRequest) {
+		return doAsync && proxyAsyncClient != null && servletRequest.isAsyncSupported()
+				&& !servletRequest.isAsyncStarted() && !isFormUrlencoded(servletRequest)
+				&& !(responseCacheStats != null && isCacheableMethod(servletRequest));
+	}
+	
+	protected boolean isCacheableMethod(HttpServletRequest servletRequest) {
+		String method = servletRequest.getMethod();
+		return "GET".equals(method) || "HEAD".equals(method);
+	}
+	
+	/**
+	 * Proxies the request to {@code targetUri} without blocking the calling
+	 * thread. The request body is streamed by an
+	 * {@link AsyncProxyRequestProducer}, the response by an
+	 * {@link AsyncProxyResponseConsumer}.
+	 */
+	public void executeAsync(HttpServletRequest servletRequest, HttpServletResponse servletResponse, String targetUri,
+			final URI targetObj, String pathInfo, final Function<Header, Boolean> filter,
+			boolean withRequestPathInfo, String urlPattern) throws IOException {
+		String method = servletRequest.getMethod();
+		long stageStart = stageStart();
+		String proxyRequestUri = rewriteUrlFromRequest(servletRequest, targetUri, pathInfo, withRequestPathInfo,
+				urlPattern);
+		if (logger().isDebugEnabled())
+			logger().debug("HTTPProxyClient::Request: "+proxyRequestUri);
+		stageStart = stageEnd(servletRequest, ProxyStage.REWRITE_URI, stageStart);
+		final HttpRequest proxyRequest;
+		boolean hasBody = servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null
+				|| servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null;
+		if (hasBody)
+			proxyRequest = new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
+		else
+			proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
+
+		copyRequestHeaders(servletRequest, proxyRequest, targetObj);
+
+		setXForwardedForHeader(servletRequest, proxyRequest);
+		stageEnd(servletRequest, ProxyStage.COPY_REQUEST_HEADERS, stageStart);
+
+		final AsyncContext asyncContext = servletRequest.startAsync(new DispatchedServletRequest(servletRequest), servletResponse);
+		// timeouts are up to the http client
+		asyncContext.setTimeout(0);
+		final AsyncProxyResponseConsumer responseConsumer = new AsyncProxyResponseConsumer(this, asyncContext, targetUri,
+				filter, withRequestPathInfo, urlPattern);
+		final HttpServletRequest asyncServletRequest = (HttpServletRequest) asyncContext.getRequest();
+		final AtomicReference<Future<Void>> future = new AtomicReference<>();
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+				// empty
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				// empty
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				cancel();
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				cancel();
+			}
+
+			protected void cancel() {
+				Future<Void> f = future.get();
+				if (f != null)
+					f.cancel(true);
+			}
+		});
+
+		if (hasBody) {
+			// streamed, the body is never held in memory as a whole
+			AsyncProxyRequestProducer requestProducer = new AsyncProxyRequestProducer(targets.get(targetObj).getHost(),
+					(HttpEntityEnclosingRequest) proxyRequest, getContentLength(asyncServletRequest), asyncContext);
+			requestProducer.start();
+			future.set(doExecuteAsync(asyncServletRequest, proxyRequest, requestProducer, targetObj, responseConsumer,
+					responseConsumer.callback()));
+		} else
+			future.set(doExecuteAsync(asyncServletRequest, proxyRequest, targetObj, responseConsumer, responseConsumer.callback()));
+	}
+	
+	/**
+	 * Proxies the request like {@link #executeFiltered}, the
+	 * {@code contentFilter} needs the whole document in memory.
+	 */
+	public byte[] execute(HttpServletRequest servletRequest, HttpServletResponse servletResponse, String targetUri,
+			URI targetObj, String pathInfo, final MutableBoolean resource, final Function<Header, Boolean> filter,
+			boolean withRequestPathInfo, String urlPattern, Function<byte[], byte[]> contentFilter) throws ServletException, IOException {
+		return executeFiltered(servletRequest, servletResponse, targetUri, targetObj, pathInfo, resource, filter, withRequestPathInfo, urlPattern, ContentFilter.of(contentFilter));
+	}
+	
+	/** Start time of a stage, only taken if there is a metrics listener. */
+	protected long stageStart() {
+		return metricsListener != null ? System.nanoTime() : 0L;
+	}
+	
+	/**
+	 * Reports the stage started at {@code start} to the metrics listener.
+	 * 
+	 * @return the end of the stage, i.e. the start of the next one
+	 */
+	protected long stageEnd(HttpServletRequest servletRequest, ProxyStage stage, long start) {
+		if (metricsListener == null)
+			return 0L;
+		
+		long now = System.nanoTime();
+		metricsListener.onStage(servletRequest, stage, now - start);
+		return now;
+	}
+	
+	/**
+	 * Answers 503 with a Retry-After header, the request was not sent to the
+	 * target.
+	 */
+	protected void sendServiceUnavailable(HttpServletResponse servletResponse, ServiceUnavailableException e)
+			throws IOException {
+		if (logger().isDebugEnabled())
+			logger().debug(e.getMessage());
+		if (servletResponse.isCommitted())
+			throw e;
+		servletResponse.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+		servletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	}
+	
 	protected void handleRequestException(HttpRequest proxyRequest, Exception e) throws ServletException, IOException {
 		// abort request, according to best practice with HttpClient
 		if (proxyRequest instanceof AbortableHttpRequest) {
@@ -244,26 +577,20 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		throw new RuntimeException(e);
 	}
 	
-	/**
-	 * Reads the request URI from {@code servletRequest} and rewrites it,
-	 * considering targetUri. It's used to make the new request.
-	 */
 	/**
 	 * Reads the request URI from {@code servletRequest} and rewrites it,
 	 * considering targetUri. It's used to make the new request.
 	 */
 	protected String rewriteUrlFromRequest(HttpServletRequest servletRequest, String targetUri, String pathInfo,
 			boolean withRequestPathInfo, String urlPattern) {
-		StringBuilder uri = new StringBuilder(500);
-		uri.append(targetUri);
+		UrlRewritePlan plan = getRewritePlan(targetUri, urlPattern);
+		StringBuilder uri = plan.newRequestUri(servletRequest);
 		// Handle the path given to the servlet
 		// changed by David A. Bauer
 		if (pathInfo != null)
-			uri.append(encodeUriQuery(pathInfo, true));
-		else if (servletRequest.getPathInfo() != null && withRequestPathInfo) {
-			urlPattern = urlPattern.replace("/*", "");
-			uri.append(encodeUriQuery(servletRequest.getPathInfo().substring(urlPattern.length(), servletRequest.getPathInfo().length()), true));
-		}
+			encodeUriQuery(pathInfo, true, uri);
+		else if (servletRequest.getPathInfo() != null && withRequestPathInfo)
+			appendEncoded(uri, servletRequest.getPathInfo(), plan.getPathInfoStart(), true);
 
 		// Handle the query string & fragment
 		String queryString = servletRequest.getQueryString();// ex:(following
@@ -282,16 +609,30 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		queryString = rewriteQueryStringFromRequest(servletRequest, queryString);
 		if (queryString != null && queryString.length() > 0) {
 			uri.append('?');
-			uri.append(encodeUriQuery(queryString, false));
+			encodeUriQuery(queryString, false, uri);
 		}
 
 		if (doSendUrlFragment && fragment != null) {
 			uri.append('#');
-			uri.append(encodeUriQuery(fragment, false));
+			encodeUriQuery(fragment, false, uri);
 		}
 		return uri.toString();
 	}
 	
+	/**
+	 * The rewrite plan of {@code targetUri} and {@code urlPattern}. The plans
+	 * are kept in a small direct-mapped cache, so that they are computed once
+	 * for a servlet with a fixed set of targets.
+	 */
+	public UrlRewritePlan getRewritePlan(String targetUri, String urlPattern) {
+		int slot = (targetUri.hashCode() * 31 + (urlPattern != null ? urlPattern.hashCode() : 0))
+				& (rewritePlans.length - 1);
+		UrlRewritePlan plan = rewritePlans[slot];
+		if (plan == null || !plan.matches(targetUri, urlPattern))
+			rewritePlans[slot] = plan = new UrlRewritePlan(targetUri, urlPattern);
+		return plan;
+	}
+	
 	protected String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
 		return queryString;
 	}
@@ -302,17 +643,31 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		// Add the input entity (streamed)
 		// note: we don't bother ensuring we close the servletInputStream since
 		// the container handles it
-		boolean isFormUrlencoded = (servletRequest.getContentType() != null
-		            && servletRequest.getContentType().contains("application/x-www-form-urlencoded")
-		            && "POST".equalsIgnoreCase(servletRequest.getMethod()));
-		
-		if (isFormUrlencoded)
+		if (isFormUrlencoded(servletRequest))
 			newProxyRequestWithEntityForFormUrlencoded(eProxyRequest, servletRequest);
 		else	
-			eProxyRequest.setEntity(new InputStreamEntity(servletRequest.getInputStream(), getContentLength(servletRequest)));
+			eProxyRequest.setEntity(newRequestEntity(servletRequest));
 		return eProxyRequest;
 	}
 	
+	/**
+	 * The entity of the servlet input, a {@link ReplayableRequestEntity} if
+	 * {@code doReplayableBody}.
+	 */
+	protected HttpEntity newRequestEntity(HttpServletRequest servletRequest) throws IOException {
+		if (doReplayableBody)
+			return new ReplayableRequestEntity(servletRequest.getInputStream(), getContentLength(servletRequest),
+					replayableBodyThreshold, replayableBodyMaxBytes,
+					replayableBodyDirectory != null ? new File(replayableBodyDirectory) : null);
+		return new InputStreamEntity(servletRequest.getInputStream(), getContentLength(servletRequest));
+	}
+	
+	protected boolean isFormUrlencoded(HttpServletRequest servletRequest) {
+		return servletRequest.getContentType() != null
+				&& servletRequest.getContentType().contains("application/x-www-form-urlencoded")
+				&& "POST".equalsIgnoreCase(servletRequest.getMethod());
+	}
+	
 	// see: https://github.com/mitre/HTTP-Proxy-Servlet/issues/54, jackielii
 	protected void newProxyRequestWithEntityForFormUrlencoded(HttpEntityEnclosingRequest eProxyRequest, HttpServletRequest servletRequest) throws IOException {
 		List<NameValuePair> queryParams = Collections.emptyList();
@@ -384,18 +739,16 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 		Enumeration<String> headers = servletRequest.getHeaders(headerName);
 		while (headers.hasMoreElements()) {// sometimes more than one value
 			String headerValue = headers.nextElement();
-			logger().debug("HTTPProxyClient::Request: " + headerName + ":" + headerValue); // debug
+			if (logger().isDebugEnabled())
+				logger().debug("HTTPProxyClient::Request: " + headerName + ":" + headerValue); // debug
 			// In case the proxy host is running multiple virtual servers,
 			// rewrite the Host header to ensure that we get content from
 			// the correct virtual server
 			if (!doPreserveHost && headerName.equalsIgnoreCase(HttpHeaders.HOST)) {
-				HttpHost host = URIUtils.extractHost(targetObj);
-				headerValue = host.getHostName();
-				if (host.getPort() != -1)
-					headerValue += ":" + host.getPort();
+				headerValue = targets.get(targetObj).getHostHeader();
 
 			} else if (headerName.equalsIgnoreCase(org.apache.http.cookie.SM.COOKIE)) {
-				headerValue = getRealCookie(servletName, headerValue, doPreserveCookies, cookieFilterRequest);
+				headerValue = rewriteRequestCookies(headerValue, cookieNamePrefix, doPreserveCookies, cookieFilterRequest);
 			}
 			proxyRequest.addHeader(headerName, headerValue);
 		}
@@ -434,7 +787,8 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 	 */
 	protected void copyResponseHeader(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
 			String targetUri, Header header, boolean withRequestPathInfo, String urlPattern) {
-		logger().debug("HTTPProxyClient::Response: " + header.getName() + ":" + header.getValue());
+		if (logger().isDebugEnabled())
+			logger().debug("HTTPProxyClient::Response: " + header.getName() + ":" + header.getValue());
 		String headerName = header.getName();
 		if (hopByHopHeaders.containsHeader(headerName))
 			return;
@@ -444,7 +798,7 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 			copyProxyCookie(servletRequest, servletResponse, headerValue);
 		} else if (headerName.equalsIgnoreCase(HttpHeaders.LOCATION)) {
 			// LOCATION Header may have to be rewritten.
-			servletResponse.addHeader(headerName, rewriteUrlFromResponse(servletRequest, targetUri, headerValue, withRequestPathInfo, urlPattern));
+			servletResponse.addHeader(headerName, getRewritePlan(targetUri, urlPattern).rewriteUrlFromResponse(servletRequest, headerValue, withRequestPathInfo));
 		} else {
 			servletResponse.addHeader(headerName, headerValue);
 		}
@@ -476,7 +830,7 @@ public class HTTPProxyClient extends AbstractHTTPProxyClient {
 			// set cookie name prefixed w/ a proxy value so it won't collide w/
 			// other cookies
 			String proxyCookieName = doPreserveCookies ? cookie.getName()
-					: getCookieNamePrefix(servletName, cookie.getName()) + cookie.getName();
+					: cookieNamePrefix + cookie.getName();
 			Cookie servletCookie = new Cookie(proxyCookieName, cookie.getValue());
 			servletCookie.setComment(cookie.getComment());
 			servletCookie.setMaxAge((int) cookie.getMaxAge());
@@ -1,18 +1,24 @@
 package servlet.web.proxy;
 
+import static servlet.web.proxy.ProxyLogger.logger;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.BitSet;
-import java.util.Formatter;
 import java.util.function.Function;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.Consts;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.HeaderGroup;
 
@@ -40,33 +46,64 @@ public class HTTPProxyClientUtils {
 	 * cookies from being sent to the proxy.
 	 */
 	public static String getRealCookie(String servletName, String cookieValue, boolean doPreserveCookie, Function<String, Boolean> filter) {
-		StringBuilder escapedCookie = new StringBuilder();
-		String cookies[] = cookieValue.split("[;,]");
-		for (String cookie : cookies) {
-			String cookieSplit[] = cookie.split("=");
-			if (cookieSplit.length == 2) {
-				String cookieName = cookieSplit[0].trim();
-				if (filter!=null && filter.apply(cookieName))
+		return rewriteRequestCookies(cookieValue, getCookieNamePrefix(servletName, null), doPreserveCookie, filter);
+	}
+
+	/**
+	 * Same as {@link #getRealCookie(String, String, boolean, Function)} with
+	 * the prefix of the cookie names already computed. The header is scanned
+	 * once: only the cookies kept are copied, cookie values may contain '='.
+	 */
+	public static String rewriteRequestCookies(String cookieValue, String cookieNamePrefix, boolean doPreserveCookie,
+			Function<String, Boolean> filter) {
+		StringBuilder escapedCookie = null;
+		int length = cookieValue.length();
+		int end;
+		for (int start = 0; start < length; start = end + 1) {
+			end = start;
+			int equals = -1;
+			for (char c; end < length && (c = cookieValue.charAt(end)) != ';' && c != ','; end++)
+				if (c == '=' && equals < 0)
+					equals = end;
+			if (equals < 0)
+				continue;
+
+			int nameStart = skipWhitespace(cookieValue, start, equals);
+			int nameEnd = trimWhitespace(cookieValue, nameStart, equals);
+			if (nameStart == nameEnd)
+				continue;
+			if (filter != null && filter.apply(cookieValue.substring(nameStart, nameEnd)))
+				continue;
+			if (!doPreserveCookie) {
+				if (nameEnd - nameStart <= cookieNamePrefix.length()
+						|| !cookieValue.startsWith(cookieNamePrefix, nameStart))
 					continue;
-				
-				if (!doPreserveCookie) {
-					if (cookieName.startsWith(getCookieNamePrefix(servletName, cookieName))) {
-						cookieName = cookieName.substring(getCookieNamePrefix(servletName, cookieName).length());
-						if (escapedCookie.length() > 0) {
-							escapedCookie.append("; ");
-						}
-						escapedCookie.append(cookieName).append("=").append(cookieSplit[1].trim()); 
-					}
-				}
-				else {
-					if (escapedCookie.length() > 0) {
-						escapedCookie.append("; ");
-					}
-					escapedCookie.append(cookieName).append("=").append(cookieSplit[1].trim());
-				}
+				nameStart += cookieNamePrefix.length();
 			}
+
+			int valueStart = skipWhitespace(cookieValue, equals + 1, end);
+			if (escapedCookie == null)
+				escapedCookie = new StringBuilder(length);
+			else
+				escapedCookie.append("; ");
+			escapedCookie.append(cookieValue, nameStart, nameEnd).append('=')
+					.append(cookieValue, valueStart, trimWhitespace(cookieValue, valueStart, end));
 		}
-		return escapedCookie.toString();
+		return escapedCookie != null ? escapedCookie.toString() : "";
+	}
+
+	/** Index of the first non whitespace character from {@code start}, at most {@code end}. */
+	protected static int skipWhitespace(String s, int start, int end) {
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		return start;
+	}
+
+	/** Index after the last non whitespace character before {@code end}, at least {@code start}. */
+	protected static int trimWhitespace(String s, int start, int end) {
+		while (end > start && s.charAt(end - 1) <= ' ')
+			end--;
+		return end;
 	}
 	
 	/** The string prefixing rewritten cookies. */
@@ -74,19 +111,114 @@ public class HTTPProxyClientUtils {
 		return "!Proxy!" + servletName;
 	}
 
+	/** Size of the buffer used to pipe response bodies to the servlet client. */
+	public static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Per thread copy buffer, so streaming a response body does not allocate
+	 * a new buffer for every request.
+	 */
+	protected static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[COPY_BUFFER_SIZE];
+		}
+	};
+
 	/**
 	 * Copy response body data (the entity) from the proxy to the servlet
-	 * client.
+	 * client. The body is streamed through a reusable buffer and never held
+	 * in memory as a whole.
 	 */
 	public static void copyResponseEntity(HttpResponse proxyResponse, HttpServletResponse servletResponse,
 			HttpRequest proxyRequest, HttpServletRequest servletRequest) throws IOException {
 		HttpEntity entity = proxyResponse.getEntity();
 		if (entity != null) {
 			OutputStream servletOutputStream = servletResponse.getOutputStream();
-			entity.writeTo(servletOutputStream);
+			InputStream is = entity.getContent();
+			try {
+				if (is instanceof CacheFileResource.ChannelInputStream)
+					// a body of the disk cache
+					((CacheFileResource.ChannelInputStream) is).transferTo(servletOutputStream);
+				else
+					copy(is, servletOutputStream, entity.isChunked());
+			} catch (IOException | RuntimeException e) {
+				discardConnection(proxyResponse);
+				throw e;
+			} finally {
+				is.close();
+			}
 		}
 	}
 
+	/**
+	 * Copy response body data (the entity) from the proxy to the servlet
+	 * client, passing it chunk by chunk through the {@code contentFilter}.
+	 */
+	public static void copyResponseEntity(HttpResponse proxyResponse, HttpServletResponse servletResponse,
+			HttpServletRequest servletRequest, ContentFilter contentFilter) throws IOException {
+		HttpEntity entity = proxyResponse.getEntity();
+		if (entity != null) {
+			Charset charset = null;
+			try {
+				charset = ContentType.getOrDefault(entity).getCharset();
+			} catch (RuntimeException e) { // unsupported or malformed charset
+				logger().debug(e.getMessage(), e);
+			}
+			if (charset == null)
+				charset = Consts.ISO_8859_1;
+			OutputStream servletOutputStream = servletResponse.getOutputStream();
+			ContentFilter.Transformer transformer = contentFilter.open(servletRequest, charset, servletOutputStream);
+			byte[] buffer = copyBuffer.get();
+			InputStream is = entity.getContent();
+			try {
+				int read;
+				while ((read = is.read(buffer)) != -1)
+					transformer.write(buffer, 0, read);
+				transformer.finish();
+			} catch (IOException | RuntimeException e) {
+				discardConnection(proxyResponse);
+				throw e;
+			} finally {
+				is.close();
+			}
+			servletOutputStream.flush();
+		}
+	}
+
+	/**
+	 * Discards the connection of {@code proxyResponse} after a failed copy,
+	 * e.g. the client went away, so that closing the content does not read
+	 * the rest of the body. A body shared by coalesced requests is still read.
+	 */
+	protected static void discardConnection(HttpResponse proxyResponse) {
+		if (proxyResponse instanceof Closeable && !RequestCoalescer.isLeader(proxyResponse))
+			try {
+				((Closeable) proxyResponse).close();
+			} catch (IOException e) {
+				logger().debug(e.getMessage(), e);
+			}
+	}
+
+	/**
+	 * Pipes {@code is} to {@code os}. With {@code flushEagerly}, intermediate
+	 * results are flushed before blocking on input (needed for e.g.
+	 * server-sent events).
+	 */
+	public static long copy(InputStream is, OutputStream os, boolean flushEagerly) throws IOException {
+		byte[] buffer = copyBuffer.get();
+		long count = 0;
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			os.write(buffer, 0, read);
+			count += read;
+			if (flushEagerly && is.available() == 0 /* next is.read will block */)
+				os.flush();
+		}
+		os.flush();
+		return count;
+	}
+
 	/**
 	 * For a redirect response from the target server, this translates
 	 * {@code theUrl} to redirect to and translates it to one the original
@@ -94,39 +226,8 @@ public class HTTPProxyClientUtils {
 	 */
 	public static String rewriteUrlFromResponse(HttpServletRequest servletRequest, final String targetUri,
 			String theUrl, boolean withRequestPathInfo, String urlPattern) {
-		// TODO document example paths
-		if (theUrl.startsWith(targetUri)) {
-			/*-
-			 * The URL points back to the back-end server.
-			 * Instead of returning it verbatim we replace the target path with our
-			 * source path in a way that should instruct the original client to
-			 * request the URL pointed through this Proxy.
-			 * We do this by taking the current request and rewriting the path part
-			 * using this servlet's absolute path and the path from the returned URL
-			 * after the base target URL.
-			 */
-			StringBuffer curUrl = servletRequest.getRequestURL();// no query
-			int pos;
-			// Skip the protocol part
-			if ((pos = curUrl.indexOf("://")) >= 0) {
-				// Skip the authority part
-				// + 3 to skip the separator between protocol and authority
-				if ((pos = curUrl.indexOf("/", pos + 3)) >= 0) {
-					// Trim everything after the authority part.
-					curUrl.setLength(pos);
-				}
-			}
-			// Context path starts with a / if it is not blank
-			curUrl.append(servletRequest.getContextPath());
-			// Servlet path starts with a / if it is not blank
-			curUrl.append(servletRequest.getServletPath());
-			// Added by David A. Bauer, handles urlPattern, if given
-			if (servletRequest.getPathInfo() != null && withRequestPathInfo)
-				curUrl.append(urlPattern.replace("/*", ""));
-			curUrl.append(theUrl, targetUri.length(), theUrl.length());
-			theUrl = curUrl.toString();
-		}
-		return theUrl;
+		return new UrlRewritePlan(targetUri, urlPattern).rewriteUrlFromResponse(servletRequest, theUrl,
+				withRequestPathInfo);
 	}
 
 	/**
@@ -144,35 +245,63 @@ public class HTTPProxyClientUtils {
 	public static CharSequence encodeUriQuery(CharSequence in, boolean encodePercent) {
 		// Note that I can't simply use URI.java to encode because it will
 		// escape pre-existing escaped things.
-		StringBuilder outBuf = null;
-		Formatter formatter = null;
-		for (int i = 0; i < in.length(); i++) {
-			char c = in.charAt(i);
-			boolean escape = true;
-			if (c < 128) {
-				if (asciiQueryChars.get((int) c) && !(encodePercent && c == '%')) {
-					escape = false;
-				}
-			} else if (!Character.isISOControl(c) && !Character.isSpaceChar(c)) {// not-ascii
-				escape = false;
+		int length = in.length();
+		for (int i = 0; i < length; i++)
+			if (isEscaped(in.charAt(i), encodePercent)) {
+				StringBuilder outBuf = new StringBuilder(length + 5 * 3);
+				outBuf.append(in, 0, i);
+				return appendEncoded(outBuf, in, i, encodePercent);
 			}
-			if (!escape) {
-				if (outBuf != null)
-					outBuf.append(c);
+		return in;
+	}
+
+	/**
+	 * Same as {@link #encodeUriQuery(CharSequence, boolean)}, appending to
+	 * {@code out} instead of creating a builder.
+	 */
+	public static StringBuilder encodeUriQuery(CharSequence in, boolean encodePercent, StringBuilder out) {
+		return appendEncoded(out, in, 0, encodePercent);
+	}
+
+	protected static StringBuilder appendEncoded(StringBuilder out, CharSequence in, int from,
+			boolean encodePercent) {
+		int length = in.length();
+		for (int i = from; i < length; i++) {
+			char c = in.charAt(i);
+			if (!isEscaped(c, encodePercent)) {
+				out.append(c);
+			} else if (c < 0x80) {
+				appendEscaped(out, c);
+			} else if (c < 0x800) {// UTF-8, leading %, capital hex
+				appendEscaped(out, 0xC0 | (c >> 6));
+				appendEscaped(out, 0x80 | (c & 0x3F));
 			} else {
-				// escape
-				if (outBuf == null) {
-					outBuf = new StringBuilder(in.length() + 5 * 3);
-					outBuf.append(in, 0, i);
-					formatter = new Formatter(outBuf);
-				}
-				// leading %, 0 padded, width 2, capital hex
-				formatter.format("%%%02X", (int) c);// TODO
+				appendEscaped(out, 0xE0 | (c >> 12));
+				appendEscaped(out, 0x80 | ((c >> 6) & 0x3F));
+				appendEscaped(out, 0x80 | (c & 0x3F));
 			}
 		}
-		return outBuf != null ? outBuf : in;
+		return out;
+	}
+
+	/**
+	 * Whether {@code c} must be escaped: ASCII not allowed in a query, non-ASCII
+	 * control or space characters. Other non-ASCII characters are allowed by
+	 * {@link URI} (which encodes them when the request is sent).
+	 */
+	protected static boolean isEscaped(char c, boolean encodePercent) {
+		if (c < 0x80)
+			return !QUERY_CHARS[c] || (encodePercent && c == '%');
+		// surrogates are neither control nor space characters
+		return Character.isISOControl(c) || Character.isSpaceChar(c);
+	}
+
+	protected static void appendEscaped(StringBuilder out, int b) {
+		out.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
 	}
 
+	protected static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
 	public static final BitSet asciiQueryChars;
 	static {
 		char[] c_unreserved = "_-!.~'()*".toCharArray();// plus alphanum
@@ -196,4 +325,11 @@ public class HTTPProxyClientUtils {
 		asciiQueryChars.set((int) '%');// leave existing percent escapes in
 										// place
 	}
+
+	/** {@link #asciiQueryChars} as an array, faster to look up. */
+	protected static final boolean[] QUERY_CHARS = new boolean[128];
+	static {
+		for (int c = 0; c < QUERY_CHARS.length; c++)
+			QUERY_CHARS[c] = asciiQueryChars.get(c);
+	}
 }
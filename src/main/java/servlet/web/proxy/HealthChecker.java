@@ -0,0 +1,101 @@
+package servlet.web.proxy;
+
+import static servlet.web.proxy.ProxyLogger.logger;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Active health checking: probes the hosts of the targets (see
+ * {@link TargetHost}) with a GET of {@code path} every
+ * {@code intervalMillis}, on a single daemon thread. A probe which fails or
+ * gets an error status opens the {@link CircuitBreaker} of the host, a
+ * successful probe lets trial requests through an open one. Only hosts
+ * with a circuit breaker are probed.
+ */
+public class HealthChecker {
+	protected final HttpClient httpClient;
+	protected final ProxyTargets targets;
+	protected final String path;
+	protected final long intervalMillis;
+	protected final RequestConfig requestConfig;
+	protected ScheduledExecutorService scheduler;
+
+	/**
+	 * @param path the path probed on each target, relative to its root
+	 * @param timeoutMillis connect and read timeout of a probe
+	 */
+	public HealthChecker(HttpClient httpClient, ProxyTargets targets, String path, long intervalMillis,
+			int timeoutMillis) {
+		super();
+		this.httpClient = httpClient;
+		this.targets = targets;
+		this.path = path.startsWith("/") ? path : "/" + path;
+		this.intervalMillis = intervalMillis;
+		requestConfig = RequestConfig.custom()
+				.setConnectTimeout(timeoutMillis)
+				.setConnectionRequestTimeout(timeoutMillis)
+				.setSocketTimeout(timeoutMillis)
+				.setRedirectsEnabled(false)
+				.build();
+	}
+
+	public synchronized void start() {
+		if (scheduler != null)
+			return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "proxy-health-checker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::checkAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/** Probes all the hosts of the targets once. */
+	public void checkAll() {
+		for (TargetHost target : targets.hosts()) {
+			CircuitBreaker circuitBreaker = target.getCircuitBreaker();
+			if (circuitBreaker == null)
+				continue;
+			if (check(target))
+				circuitBreaker.onProbeSuccess();
+			else
+				circuitBreaker.onProbeFailure();
+		}
+	}
+
+	/** Whether the host answers the probe with a 2xx or 3xx status. */
+	protected boolean check(TargetHost target) {
+		HttpGet probe = new HttpGet(path);
+		probe.setConfig(requestConfig);
+		// a response cache must not answer for the target
+		probe.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+		try {
+			HttpResponse response = httpClient.execute(target.getHost(), probe);
+			EntityUtils.consumeQuietly(response.getEntity());
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode < 400)
+				return true;
+			logger().info("Health probe of " + target + " got status " + statusCode);
+		} catch (IOException | RuntimeException e) {
+			logger().info("Health probe of " + target + " failed: " + e);
+		}
+		return false;
+	}
+}
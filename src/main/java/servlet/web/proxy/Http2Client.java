@@ -0,0 +1,397 @@
+package servlet.web.proxy;
+
+import static servlet.web.proxy.HTTPProxyClientUtils.hopByHopHeaders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.message.HeaderGroup;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HTTP/2 transport behind the HttpClient interface, so that it plugs in the
+ * proxy unchanged. The requests are sent with the JDK client (Java 11+),
+ * which multiplexes them over one connection per target: h2 negotiated by
+ * ALPN over TLS, h2c by upgrading the first request in clear text. A target
+ * without HTTP/2 is spoken to in HTTP/1.1.
+ * <p>
+ * The JDK client is looked up reflectively, like {@link VirtualThreads}, so
+ * the proxy still builds against Java 8. It sets the Host header from the
+ * target URI itself, and verifies the host names of the targets.
+ * </p>
+ * <p>
+ * With content decompression, like HttpClient, gzip and deflate are
+ * accepted unless the request says otherwise, and the bodies in these
+ * codings are decoded as they are read.
+ * </p>
+ */
+public class Http2Client extends CloseableHttpClient {
+	/** Request headers the JDK client sets itself and refuses. */
+	protected static final HeaderGroup restrictedHeaders;
+	static {
+		restrictedHeaders = new HeaderGroup();
+		for (String header : new String[] { "Connection", "Content-Length", "Expect", "Host", "Upgrade" })
+			restrictedHeaders.addHeader(new BasicHeader(header, null));
+	}
+
+	protected static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+	private static final Api API = Api.lookup();
+
+	/** The {@code java.net.http.HttpClient}. */
+	protected final Object client;
+	protected final int socketTimeout;
+	protected final boolean contentDecompression;
+
+	/** Whether the running JVM has an HTTP/2 client. */
+	public static boolean isSupported() {
+		return API != null;
+	}
+
+	/**
+	 * @param requestConfig the connect timeout, and the socket timeout which
+	 *        bounds the wait for the response headers
+	 */
+	public Http2Client(RequestConfig requestConfig) {
+		this(requestConfig, true);
+	}
+
+	/**
+	 * @param requestConfig the connect timeout, and the socket timeout which
+	 *        bounds the wait for the response headers
+	 * @param contentDecompression whether gzip and deflate bodies are decoded
+	 */
+	public Http2Client(RequestConfig requestConfig, boolean contentDecompression) {
+		super();
+		if (API == null)
+			throw new IllegalStateException("HTTP/2 needs Java 11 or later");
+		socketTimeout = requestConfig.getSocketTimeout();
+		this.contentDecompression = contentDecompression;
+		try {
+			Object builder = API.newClientBuilder.invoke(null);
+			API.clientVersion.invoke(builder, API.http2);
+			API.clientFollowRedirects.invoke(builder, API.redirectNever);
+			if (requestConfig.getConnectTimeout() > 0)
+				API.clientConnectTimeout.invoke(builder, Duration.ofMillis(requestConfig.getConnectTimeout()));
+			client = API.clientBuild.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create the HTTP/2 client", e);
+		}
+	}
+
+	@Override
+	protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+			throws IOException, ClientProtocolException {
+		Object response;
+		try {
+			response = API.send.invoke(client, newRequest(target, request), API.ofInputStream);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException) cause).getCause();
+			throw new ClientProtocolException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return newResponse(response);
+	}
+
+	/** The JDK request of {@code request}, whose URI is relative to {@code target}. */
+	protected Object newRequest(HttpHost target, HttpRequest request) throws IOException {
+		String uri = request.getRequestLine().getUri();
+		URI uriObj;
+		try {
+			uriObj = new URI(uri.startsWith("/") ? target.toURI() + uri : uri);
+		} catch (URISyntaxException e) {
+			throw new ClientProtocolException(e);
+		}
+
+		try {
+			Object builder = API.newRequestBuilder.invoke(null, uriObj);
+			for (Header header : request.getAllHeaders())
+				if (!restrictedHeaders.containsHeader(header.getName())
+						&& !hopByHopHeaders.containsHeader(header.getName()))
+					try {
+						API.requestHeader.invoke(builder, header.getName(), header.getValue());
+					} catch (InvocationTargetException e) {
+						// refused, Java 11 also restricts e.g. Referer and Via
+						ProxyLogger.logger().debug("Header " + header.getName() + " not sent: " + e.getCause());
+					}
+			if (contentDecompression && !request.containsHeader(HttpHeaders.ACCEPT_ENCODING))
+				API.requestHeader.invoke(builder, HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+
+			int timeout = socketTimeout;
+			if (request instanceof Configurable && ((Configurable) request).getConfig() != null)
+				timeout = ((Configurable) request).getConfig().getSocketTimeout();
+			if (timeout > 0)
+				API.requestTimeout.invoke(builder, Duration.ofMillis(timeout));
+
+			Object body = API.noBody.invoke(null);
+			if (request instanceof HttpEntityEnclosingRequest
+					&& ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+				final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+				Supplier<InputStream> content = () -> {
+					try {
+						return entity.getContent();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				};
+				if (entity.getContentLength() != 0)
+					body = API.ofInputStreamPublisher.invoke(null, content);
+				if (entity.getContentLength() > 0)
+					body = API.fromPublisher.invoke(null, body, entity.getContentLength());
+			}
+			API.requestMethod.invoke(builder, request.getRequestLine().getMethod(), body);
+			return API.requestBuild.invoke(builder);
+		} catch (InvocationTargetException e) {
+			// e.g. a method the JDK client refuses
+			throw new ClientProtocolException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** The HttpClient response of the JDK {@code response}, the body is streamed. */
+	@SuppressWarnings("unchecked")
+	protected CloseableHttpResponse newResponse(Object response) throws IOException {
+		try {
+			int statusCode = (Integer) API.statusCode.invoke(response);
+			ProtocolVersion version = "HTTP_2".equals(((Enum<?>) API.version.invoke(response)).name()) ? HTTP_2
+					: HttpVersion.HTTP_1_1;
+			Http2Response result = new Http2Response(new BasicStatusLine(version, statusCode,
+					EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.ENGLISH)));
+
+			Map<String, List<String>> headers = (Map<String, List<String>>) API.headersMap
+					.invoke(API.headers.invoke(response));
+			for (Map.Entry<String, List<String>> header : headers.entrySet())
+				// no pseudo-headers
+				if (!header.getKey().startsWith(":"))
+					for (String value : header.getValue())
+						result.addHeader(header.getKey(), value);
+
+			Header contentLength = result.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+			long length = -1;
+			if (contentLength != null)
+				try {
+					length = Long.parseLong(contentLength.getValue().trim());
+				} catch (NumberFormatException e) {
+					// unknown
+				}
+			InputStreamEntity entity = new InputStreamEntity((InputStream) API.body.invoke(response), length);
+			entity.setContentType(result.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+			entity.setContentEncoding(result.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+			result.setEntity(entity);
+			if (contentDecompression)
+				decodeContent(result);
+			return result;
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes a gzip or deflate body as it is read, and drops the headers of
+	 * the encoded body, like HttpClient's {@code ResponseContentEncoding}.
+	 */
+	protected void decodeContent(HttpResponse response) {
+		Header contentEncoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+		if (contentEncoding == null)
+			return;
+		String coding = contentEncoding.getValue().trim();
+		if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip"))
+			response.setEntity(new GzipDecompressingEntity(response.getEntity()));
+		else if (coding.equalsIgnoreCase("deflate"))
+			response.setEntity(new DeflateDecompressingEntity(response.getEntity()));
+		else
+			return;
+		response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+		response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+		response.removeHeaders(HttpHeaders.CONTENT_MD5);
+	}
+
+	/**
+	 * Shuts the JDK client down on Java 21+, before that its connections are
+	 * closed once it is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (API.shutdownNow != null)
+			try {
+				API.shutdownNow.invoke(client);
+			} catch (ReflectiveOperationException e) {
+				ProxyLogger.logger().info("Shutting down the HTTP/2 client: " + e, e);
+			}
+	}
+
+	/** @deprecated empty, the JDK client is configured by the constructor */
+	@Deprecated
+	@Override
+	public org.apache.http.params.HttpParams getParams() {
+		return new org.apache.http.params.BasicHttpParams();
+	}
+
+	/** @deprecated the JDK client manages its connections, only {@code shutdown()} has an effect */
+	@Deprecated
+	@Override
+	public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+		return new Http2ConnectionManager();
+	}
+
+	protected static class Http2Response extends BasicHttpResponse implements CloseableHttpResponse {
+		public Http2Response(BasicStatusLine statusLine) {
+			super(statusLine);
+		}
+
+		/** Closes the body, which releases the stream. */
+		@Override
+		public void close() throws IOException {
+			if (getEntity() != null)
+				getEntity().getContent().close();
+		}
+	}
+
+	/** Stands for the connections of the JDK client, shutting it down closes this client. */
+	@SuppressWarnings("deprecation")
+	protected class Http2ConnectionManager implements org.apache.http.conn.ClientConnectionManager {
+		@Override
+		public org.apache.http.conn.scheme.SchemeRegistry getSchemeRegistry() {
+			return org.apache.http.impl.conn.SchemeRegistryFactory.createDefault();
+		}
+
+		@Override
+		public org.apache.http.conn.ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+			throw new UnsupportedOperationException("Connections are managed by the HTTP/2 client");
+		}
+
+		@Override
+		public void releaseConnection(org.apache.http.conn.ManagedClientConnection conn, long validDuration,
+				TimeUnit timeUnit) {
+			// never leased
+		}
+
+		@Override
+		public void closeIdleConnections(long idletime, TimeUnit timeUnit) {
+			// managed by the JDK client
+		}
+
+		@Override
+		public void closeExpiredConnections() {
+			// managed by the JDK client
+		}
+
+		@Override
+		public void shutdown() {
+			try {
+				close();
+			} catch (IOException e) {
+				ProxyLogger.logger().info("Shutting down the HTTP/2 client: " + e, e);
+			}
+		}
+	}
+
+	/** The methods of the JDK client used. */
+	private static final class Api {
+		Method newClientBuilder, clientVersion, clientFollowRedirects, clientConnectTimeout, clientBuild, send,
+				shutdownNow;
+		Object http2, redirectNever;
+		Method newRequestBuilder, requestHeader, requestTimeout, requestMethod, requestBuild;
+		Method noBody, ofInputStreamPublisher, fromPublisher;
+		Object ofInputStream;
+		Method statusCode, version, headers, headersMap, body;
+
+		/** {@code null} if the JVM has no HTTP/2 client. */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		static Api lookup() {
+			try {
+				Api result = new Api();
+				Class<?> client = Class.forName("java.net.http.HttpClient");
+				Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+				Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+				Class<?> redirectClass = Class.forName("java.net.http.HttpClient$Redirect");
+				Class<?> request = Class.forName("java.net.http.HttpRequest");
+				Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+				Class<?> bodyPublisher = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+				Class<?> bodyPublishers = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+				Class<?> flowPublisher = Class.forName("java.util.concurrent.Flow$Publisher");
+				Class<?> response = Class.forName("java.net.http.HttpResponse");
+				Class<?> bodyHandler = Class.forName("java.net.http.HttpResponse$BodyHandler");
+				Class<?> bodyHandlers = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+				Class<?> headers = Class.forName("java.net.http.HttpHeaders");
+
+				result.newClientBuilder = client.getMethod("newBuilder");
+				result.clientVersion = clientBuilder.getMethod("version", versionClass);
+				result.clientFollowRedirects = clientBuilder.getMethod("followRedirects", redirectClass);
+				result.clientConnectTimeout = clientBuilder.getMethod("connectTimeout", Duration.class);
+				result.clientBuild = clientBuilder.getMethod("build");
+				result.send = client.getMethod("send", request, bodyHandler);
+				try {
+					result.shutdownNow = client.getMethod("shutdownNow");
+				} catch (NoSuchMethodException e) {
+					// before Java 21
+				}
+				result.http2 = Enum.valueOf((Class<Enum>) versionClass, "HTTP_2");
+				result.redirectNever = Enum.valueOf((Class<Enum>) redirectClass, "NEVER");
+
+				result.newRequestBuilder = request.getMethod("newBuilder", URI.class);
+				result.requestHeader = requestBuilder.getMethod("header", String.class, String.class);
+				result.requestTimeout = requestBuilder.getMethod("timeout", Duration.class);
+				result.requestMethod = requestBuilder.getMethod("method", String.class, bodyPublisher);
+				result.requestBuild = requestBuilder.getMethod("build");
+				result.noBody = bodyPublishers.getMethod("noBody");
+				result.ofInputStreamPublisher = bodyPublishers.getMethod("ofInputStream", Supplier.class);
+				result.fromPublisher = bodyPublishers.getMethod("fromPublisher", flowPublisher, long.class);
+				result.ofInputStream = bodyHandlers.getMethod("ofInputStream").invoke(null);
+
+				result.statusCode = response.getMethod("statusCode");
+				result.version = response.getMethod("version");
+				result.headers = response.getMethod("headers");
+				result.headersMap = headers.getMethod("map");
+				result.body = response.getMethod("body");
+				return result;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				return null;
+			}
+		}
+	}
+}
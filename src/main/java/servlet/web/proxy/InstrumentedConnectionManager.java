@@ -0,0 +1,74 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Connection pool recording how long requests wait for a pooled connection
+ * (time to lease) and how long establishing new connections takes.
+ */
+public class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+	protected final LatencyHistogram leaseTime;
+	protected final LatencyHistogram connectTime;
+
+	public InstrumentedConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry, long timeToLive,
+			TimeUnit timeUnit) {
+		super(socketFactoryRegistry, null, null, null, timeToLive, timeUnit);
+
+		leaseTime = new LatencyHistogram();
+		connectTime = new LatencyHistogram();
+	}
+
+	/** Time waited for a pooled connection. */
+	public LatencyHistogram getLeaseTime() {
+		return leaseTime;
+	}
+
+	/** Time needed to establish new connections (including TLS handshakes). */
+	public LatencyHistogram getConnectTime() {
+		return connectTime;
+	}
+
+	@Override
+	public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+		final ConnectionRequest request = super.requestConnection(route, state);
+		return new ConnectionRequest() {
+			@Override
+			public boolean cancel() {
+				return request.cancel();
+			}
+
+			@Override
+			public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+					throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+				long start = System.nanoTime();
+				try {
+					return request.get(timeout, timeUnit);
+				} finally {
+					leaseTime.recordSince(start);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void connect(HttpClientConnection managedConn, HttpRoute route, int connectTimeout, HttpContext context)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			super.connect(managedConn, route, connectTimeout, context);
+		} finally {
+			connectTime.recordSince(start);
+		}
+	}
+}
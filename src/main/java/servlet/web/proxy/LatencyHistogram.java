@@ -0,0 +1,141 @@
+package servlet.web.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies (in nanoseconds), in the spirit of
+ * HdrHistogram: values are counted in log-linear buckets (16 sub-buckets per
+ * power of two, i.e. a relative error below 6.25%), so recording is a single
+ * atomic increment without allocation, and the memory used is fixed.
+ */
+public class LatencyHistogram {
+	protected static final int SUB_BUCKET_BITS = 4;
+	protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	protected static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	protected final AtomicLongArray counts;
+	protected final LongAdder sum;
+	protected final AtomicLong max;
+
+	public LatencyHistogram() {
+		super();
+		counts = new AtomicLongArray(BUCKETS);
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/** Records a latency in nanoseconds, negative values are ignored. */
+	public void record(long nanos) {
+		if (nanos < 0)
+			return;
+
+		counts.incrementAndGet(bucketOf(nanos));
+		sum.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+			;
+	}
+
+	/** Records the time elapsed since {@code startNanos} (see {@link System#nanoTime()}). */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		sum.reset();
+		max.set(0);
+	}
+
+	/** A consistent (immutable) copy of the histogram to query. */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += copy[i] = counts.get(i);
+
+		return new Snapshot(copy, count, sum.sum(), max.get());
+	}
+
+	protected static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + mantissa;
+	}
+
+	/** The highest value counted in {@code bucket}. */
+	protected static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int mantissa = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long highest = ((long) (SUB_BUCKETS + mantissa) << shift) + (1L << shift) - 1;
+		return highest >= 0 ? highest : Long.MAX_VALUE;
+	}
+
+	public static class Snapshot {
+		protected final long[] counts;
+		protected final long count;
+		protected final long sum;
+		protected final long max;
+
+		protected Snapshot(long[] counts, long count, long sum, long max) {
+			super();
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count > 0 ? (double) sum / count : 0;
+		}
+
+		/**
+		 * The value below which {@code percentile} percent of the recorded
+		 * values fall (upper bound of the bucket, at most the max).
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(highestValueOf(i), max);
+			}
+			return max;
+		}
+
+		/** Same as {@link #getValueAtPercentile(double)}, in milliseconds. */
+		public double getMillisAtPercentile(double percentile) {
+			return getValueAtPercentile(percentile) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d, mean=%.3fms, p50=%.3fms, p99=%.3fms, p99.9=%.3fms, max=%.3fms",
+					count, getMean() / 1e6, getMillisAtPercentile(50), getMillisAtPercentile(99),
+					getMillisAtPercentile(99.9), max / 1e6);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package servlet.web.proxy;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Picks the target of each request among several equivalent ones (see
+ * {@link ProxyServlet#P_TARGET_URI}). The strategies rely on the load kept
+ * by the {@link ProxyTarget}s, they are called on every request and don't
+ * lock. A target whose circuit breaker is open is passed over for the next
+ * available one.
+ */
+public abstract class LoadBalancer {
+	protected final ProxyTarget[] targets;
+
+	public LoadBalancer(ProxyTarget[] targets) {
+		super();
+		if (targets.length == 0)
+			throw new IllegalArgumentException("No target to balance");
+		this.targets = targets.clone();
+	}
+
+	public ProxyTarget[] getTargets() {
+		return targets.clone();
+	}
+
+	/**
+	 * The target of {@code servletRequest}: the one of the strategy, or the
+	 * next available one. If none is available, the one of the strategy,
+	 * which fails fast.
+	 */
+	public ProxyTarget select(HttpServletRequest servletRequest) {
+		ProxyTarget result = choose(servletRequest);
+		if (result.isAvailable())
+			return result;
+
+		ProxyTarget next = nextAvailable(result);
+		return next != null ? next : result;
+	}
+
+	/**
+	 * The target to retry a request which failed on {@code failed}: the one
+	 * of the strategy if it is another available one, or the next available
+	 * one. If there is none, {@code failed}.
+	 */
+	public ProxyTarget failover(HttpServletRequest servletRequest, ProxyTarget failed) {
+		ProxyTarget result = choose(servletRequest);
+		if (result != failed && result.isAvailable())
+			return result;
+
+		result = nextAvailable(failed);
+		return result != null ? result : failed;
+	}
+
+	/** The first available target after {@code target}, {@code null} if there is none. */
+	protected ProxyTarget nextAvailable(ProxyTarget target) {
+		int index = Arrays.asList(targets).indexOf(target);
+		for (int i = 1; i < targets.length; i++) {
+			ProxyTarget next = targets[Math.floorMod(index + i, targets.length)];
+			if (next.isAvailable())
+				return next;
+		}
+		return null;
+	}
+
+	/** The target of the strategy, available or not. */
+	protected abstract ProxyTarget choose(HttpServletRequest servletRequest);
+
+	/**
+	 * The load balancer of a strategy: {@code roundRobin},
+	 * {@code leastRequests}, {@code powerOfTwoChoices} or
+	 * {@code consistentHash} on {@code hashHeader} or {@code hashCookie}.
+	 */
+	public static LoadBalancer create(String strategy, ProxyTarget[] targets, String hashHeader, String hashCookie) {
+		switch (strategy) {
+		case "roundRobin":
+			return new RoundRobin(targets);
+		case "leastRequests":
+			return new LeastRequests(targets);
+		case "powerOfTwoChoices":
+			return new PowerOfTwoChoices(targets);
+		case "consistentHash":
+			return new ConsistentHash(targets, hashHeader, hashCookie);
+		default:
+			throw new IllegalArgumentException("Unknown load balancing strategy " + strategy);
+		}
+	}
+
+	/** The targets in turn. */
+	public static class RoundRobin extends LoadBalancer {
+		protected final AtomicInteger next = new AtomicInteger();
+
+		public RoundRobin(ProxyTarget[] targets) {
+			super(targets);
+		}
+
+		@Override
+		protected ProxyTarget choose(HttpServletRequest servletRequest) {
+			return targets[Math.floorMod(next.getAndIncrement(), targets.length)];
+		}
+	}
+
+	/**
+	 * The target with the fewest requests in flight, ties are broken
+	 * randomly so that idle targets share the requests.
+	 */
+	public static class LeastRequests extends LoadBalancer {
+		public LeastRequests(ProxyTarget[] targets) {
+			super(targets);
+		}
+
+		@Override
+		protected ProxyTarget choose(HttpServletRequest servletRequest) {
+			int offset = ThreadLocalRandom.current().nextInt(targets.length);
+			ProxyTarget result = null;
+			int min = Integer.MAX_VALUE;
+			for (int i = 0; i < targets.length; i++) {
+				ProxyTarget target = targets[(offset + i) % targets.length];
+				int outstanding = target.getOutstanding();
+				if (outstanding < min) {
+					result = target;
+					min = outstanding;
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The cheaper of two random targets, by {@link ProxyTarget#getCost()}:
+	 * latency EWMA times requests in flight. Unlike picking the cheapest of
+	 * all, it doesn't send every request to the same target until its
+	 * latency catches up.
+	 */
+	public static class PowerOfTwoChoices extends LoadBalancer {
+		public PowerOfTwoChoices(ProxyTarget[] targets) {
+			super(targets);
+		}
+
+		@Override
+		protected ProxyTarget choose(HttpServletRequest servletRequest) {
+			if (targets.length == 1)
+				return targets[0];
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int a = random.nextInt(targets.length);
+			int b = random.nextInt(targets.length - 1);
+			if (b >= a)
+				b++;
+			return targets[a].getCost() <= targets[b].getCost() ? targets[a] : targets[b];
+		}
+	}
+
+	/**
+	 * Sticky sessions: the target is picked by the value of a request header
+	 * or cookie, on a hash ring so that adding or removing a target only
+	 * moves the keys of that target. Requests without the key are balanced
+	 * round robin.
+	 */
+	public static class ConsistentHash extends LoadBalancer {
+		/** Points of each target on the ring. */
+		public static final int REPLICAS = 100;
+
+		protected final String hashHeader;
+		protected final String hashCookie;
+		/** Sorted hashes of the points of the ring. */
+		protected final int[] ring;
+		/** Target of each point of the ring. */
+		protected final ProxyTarget[] ringTargets;
+		protected final RoundRobin fallback;
+
+		public ConsistentHash(ProxyTarget[] targets, String hashHeader, String hashCookie) {
+			super(targets);
+			if (hashHeader == null && hashCookie == null)
+				throw new IllegalArgumentException("Consistent hashing needs a header or a cookie");
+			this.hashHeader = hashHeader;
+			this.hashCookie = hashCookie;
+			fallback = new RoundRobin(targets);
+
+			long[] points = new long[targets.length * REPLICAS];
+			for (int i = 0; i < targets.length; i++)
+				for (int j = 0; j < REPLICAS; j++)
+					// the hash in the high bits, the target in the low ones
+					points[i * REPLICAS + j] = ((long) hash(targets[i].getUri() + '#' + j) << 32) | i;
+			Arrays.sort(points);
+			ring = new int[points.length];
+			ringTargets = new ProxyTarget[points.length];
+			for (int i = 0; i < points.length; i++) {
+				ring[i] = (int) (points[i] >> 32);
+				ringTargets[i] = targets[(int) points[i]];
+			}
+		}
+
+		@Override
+		protected ProxyTarget choose(HttpServletRequest servletRequest) {
+			String key = key(servletRequest);
+			if (key == null)
+				return fallback.choose(servletRequest);
+
+			int index = Arrays.binarySearch(ring, hash(key));
+			if (index < 0)
+				index = -index - 1;
+			return ringTargets[index == ring.length ? 0 : index];
+		}
+
+		/** The value hashed, {@code null} if the request has none. */
+		protected String key(HttpServletRequest servletRequest) {
+			if (hashHeader != null) {
+				String value = servletRequest.getHeader(hashHeader);
+				if (value != null)
+					return value;
+			}
+			if (hashCookie != null) {
+				Cookie[] cookies = servletRequest.getCookies();
+				if (cookies != null)
+					for (Cookie cookie : cookies)
+						if (hashCookie.equals(cookie.getName()))
+							return cookie.getValue();
+			}
+			return null;
+		}
+
+		/** FNV-1a, finished with the MurmurHash3 mix to spread similar keys. */
+		protected static int hash(String key) {
+			int h = 0x811c9dc5;
+			for (int i = 0; i < key.length(); i++) {
+				h ^= key.charAt(i);
+				h *= 0x01000193;
+			}
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h;
+		}
+	}
+}
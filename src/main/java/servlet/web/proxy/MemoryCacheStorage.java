@@ -0,0 +1,150 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.Resource;
+
+/**
+ * On-heap {@link HttpCacheStorage} bounded by the total size of the cached
+ * entries (bodies and headers) rather than by their number, evicting the
+ * least recently used entries first.
+ */
+public class MemoryCacheStorage implements HttpCacheStorage {
+	/** Estimated fixed overhead of an entry: key, status line, dates, map node. */
+	protected static final int ENTRY_OVERHEAD = 256;
+
+	protected final long maxBytes;
+	/** Access ordered, so the eldest entry is the least recently used one. */
+	protected final LinkedHashMap<String, HttpCacheEntry> entries;
+	protected long bytes;
+
+	public MemoryCacheStorage(long maxBytes) {
+		super();
+		this.maxBytes = maxBytes;
+		entries = new LinkedHashMap<>(64, 0.75f, true);
+	}
+
+	@Override
+	public synchronized void putEntry(String key, HttpCacheEntry entry) throws IOException {
+		if (!fits(entry)) {
+			removeEntry(key);
+			rejected(key, entry);
+			return;
+		}
+
+		HttpCacheEntry previous = entries.put(key, entry);
+		if (previous != null) {
+			bytes -= sizeOf(previous);
+			removed(key, previous);
+		}
+		bytes += sizeOf(entry);
+		added(key, entry);
+		evict();
+	}
+
+	@Override
+	public synchronized HttpCacheEntry getEntry(String key) {
+		return entries.get(key);
+	}
+
+	@Override
+	public synchronized void removeEntry(String key) {
+		HttpCacheEntry previous = entries.remove(key);
+		if (previous != null) {
+			bytes -= sizeOf(previous);
+			removed(key, previous);
+		}
+	}
+
+	@Override
+	public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback)
+			throws IOException, HttpCacheUpdateException {
+		putEntry(key, callback.update(entries.get(key)));
+	}
+
+	public synchronized void clear() {
+		Iterator<Map.Entry<String, HttpCacheEntry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, HttpCacheEntry> entry = iterator.next();
+			iterator.remove();
+			bytes -= sizeOf(entry.getValue());
+			removed(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public synchronized int getEntries() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** Removes the least recently used entries until the storage is no longer full. */
+	protected void evict() {
+		Iterator<Map.Entry<String, HttpCacheEntry>> iterator = entries.entrySet().iterator();
+		while (isFull() && iterator.hasNext()) {
+			Map.Entry<String, HttpCacheEntry> entry = iterator.next();
+			if (!isEvictable(entry.getValue()))
+				continue;
+			iterator.remove();
+			bytes -= sizeOf(entry.getValue());
+			removed(entry.getKey(), entry.getValue());
+		}
+	}
+
+	protected boolean isFull() {
+		return bytes > maxBytes;
+	}
+
+	/** Whether evicting the entry makes room, while the storage {@link #isFull() is full}. */
+	protected boolean isEvictable(HttpCacheEntry entry) {
+		return true;
+	}
+
+	/** Whether the entry can be stored at all. */
+	protected boolean fits(HttpCacheEntry entry) {
+		return sizeOf(entry) <= maxBytes;
+	}
+
+	/** Called when {@code entry} was stored under {@code key}. */
+	protected void added(String key, HttpCacheEntry entry) {
+	}
+
+	/**
+	 * Called when {@code entry} was removed, evicted or replaced by another
+	 * entry (in which case {@code key} is still present).
+	 */
+	protected void removed(String key, HttpCacheEntry entry) {
+	}
+
+	/** Called when {@code entry} was not stored because it does not {@link #fits(HttpCacheEntry) fit}. */
+	protected void rejected(String key, HttpCacheEntry entry) {
+	}
+
+	/** Approximate heap size of the entry. */
+	protected long sizeOf(HttpCacheEntry entry) {
+		long result = ENTRY_OVERHEAD;
+		Resource resource = entry.getResource();
+		if (resource != null)
+			result += resource.length();
+		for (Header header : entry.getAllHeaders())
+			result += 2 * (header.getName().length() + header.getValue().length());
+		for (Map.Entry<String, String> variant : entry.getVariantMap().entrySet())
+			result += 2 * (variant.getKey().length() + variant.getValue().length());
+
+		return result;
+	}
+}
@@ -0,0 +1,20 @@
+package servlet.web.proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Receives the timings of the stages of every proxied exchange (see
+ * {@link HTTPProxyClient#setMetricsListener(ProxyMetricsListener)}). It is
+ * called on the request path, so implementations have to be cheap and
+ * thread-safe. Without a listener no timing is taken at all.
+ * 
+ * @see ProxyStageMetrics
+ */
+@FunctionalInterface
+public interface ProxyMetricsListener {
+	/**
+	 * @param nanos
+	 *            the duration of the stage in nanoseconds
+	 */
+	void onStage(HttpServletRequest servletRequest, ProxyStage stage, long nanos);
+}
@@ -12,27 +12,84 @@ import org.apache.commons.lang3.mutable.MutableBoolean;
 public class ProxyServlet extends AbstractProxyServlet {
 	protected static final long serialVersionUID = -6050461015977571649L;
 	
-	/** The parameter name for the target (destination) URI to proxy to. */
+	/**
+	 * The parameter name for the target (destination) URI to proxy to, or
+	 * several equivalent ones separated by whitespace which are balanced by
+	 * the {@link #P_LOAD_BALANCER}.
+	 */
 	protected static final String P_TARGET_URI = "targetUri";
+	/**
+	 * A parameter name to set the load balancing strategy of several targets:
+	 * {@code roundRobin} (the default), {@code leastRequests},
+	 * {@code powerOfTwoChoices}, {@code consistentHash} or the class name of
+	 * a {@link LoadBalancer} with a {@code ProxyTarget[]} constructor
+	 */
+	public static final String P_LOAD_BALANCER = "loadBalancer";
+	/** A parameter name to set the request header hashed by {@code consistentHash} */
+	public static final String P_LOAD_BALANCER_HASH_HEADER = "loadBalancer.hashHeader";
+	/** A parameter name to set the cookie hashed by {@code consistentHash}, if the header is missing */
+	public static final String P_LOAD_BALANCER_HASH_COOKIE = "loadBalancer.hashCookie";
 	
 	protected String targetUri;
 	protected URI targetUriObj;
+	/** {@code null} if there is a single target. */
+	protected LoadBalancer loadBalancer;
 	
 	@Override
 	public void init() throws ServletException {
-		targetUri = getConfigParam(P_TARGET_URI);
-		if (targetUri == null)
+		String targetUris = getConfigParam(P_TARGET_URI);
+		if (targetUris == null || targetUris.trim().isEmpty())
 			throw new ServletException(P_TARGET_URI + " is required.");
+		String[] uris = targetUris.trim().split("\\s+");
 		
+		targetUri = uris[0];
 		targetUriObj = getTargetObj(targetUri);
 		if (targetUriObj==null)
 			throw new ServletException(P_TARGET_URI + " is not valid.");
 		
 		super.init();
+		ProxyTarget[] targets = new ProxyTarget[uris.length];
+		for (int i = 0; i < uris.length; i++) {
+			URI uriObj = i == 0 ? targetUriObj : getTargetObj(uris[i]);
+			if (uriObj == null)
+				throw new ServletException(P_TARGET_URI + " " + uris[i] + " is not valid.");
+			targets[i] = proxyClient.getTargets().get(uriObj);
+			if (!targets[i].isAllowed())
+				throw new ServletException(P_TARGET_URI + " " + uris[i] + " is not allowed by " + P_ALLOWED_TARGETS);
+			proxyClient.getRewritePlan(uris[i], null);
+		}
+		if (targets.length > 1) {
+			loadBalancer = createLoadBalancer(targets);
+			proxyClient.setLoadBalancer(loadBalancer);
+		}
+	}
+	
+	/** Called from {@link #init()} if there are several targets. */
+	protected LoadBalancer createLoadBalancer(ProxyTarget[] targets) throws ServletException {
+		String strategy = getConfigParam(P_LOAD_BALANCER);
+		if (strategy == null)
+			strategy = "roundRobin";
+		try {
+			if (strategy.indexOf('.') != -1)
+				return (LoadBalancer) Class.forName(strategy).getConstructor(ProxyTarget[].class)
+						.newInstance((Object) targets);
+			return LoadBalancer.create(strategy, targets, getConfigParam(P_LOAD_BALANCER_HASH_HEADER),
+					getConfigParam(P_LOAD_BALANCER_HASH_COOKIE));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			throw new ServletException(P_LOAD_BALANCER + " " + strategy + " is not valid: " + e, e);
+		}
+	}
+	
+	public LoadBalancer getLoadBalancer() {
+		return loadBalancer;
 	}
 	
 	@Override
 	protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws ServletException, IOException {
-		doService(servletRequest, servletResponse, targetUri, targetUriObj, servletRequest.getPathInfo(), new MutableBoolean(true), null, false, null, null);
+		if (loadBalancer != null) {
+			ProxyTarget target = loadBalancer.select(servletRequest);
+			doService(servletRequest, servletResponse, target.getUri(), target.getUriObj(), servletRequest.getPathInfo(), new MutableBoolean(true), null, false, null, null);
+		} else
+			doService(servletRequest, servletResponse, targetUri, targetUriObj, servletRequest.getPathInfo(), new MutableBoolean(true), null, false, null, null);
 	}
 }
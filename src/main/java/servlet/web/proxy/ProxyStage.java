@@ -0,0 +1,24 @@
+package servlet.web.proxy;
+
+/**
+ * The stages of the proxy pipeline reported to a {@link ProxyMetricsListener}.
+ */
+public enum ProxyStage {
+	/** Rewriting the request URI for the target. */
+	REWRITE_URI,
+	/** Copying the request headers (including X-Forwarded-*). */
+	COPY_REQUEST_HEADERS,
+	/** Executing the request until the response headers of the target arrived. */
+	EXECUTE,
+	/**
+	 * From the start of the exchange until the status and headers are passed
+	 * to the client.
+	 */
+	FIRST_BYTE,
+	/** Copying the (unfiltered) response body to the client. */
+	BODY_COMPLETE,
+	/** Copying the response body to the client through the content filter. */
+	FILTER,
+	/** The whole exchange. */
+	TOTAL
+}
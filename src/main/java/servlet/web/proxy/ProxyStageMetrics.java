@@ -0,0 +1,49 @@
+package servlet.web.proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * {@link ProxyMetricsListener} recording the timings of every stage into a
+ * {@link LatencyHistogram}, giving a per stage latency breakdown.
+ */
+public class ProxyStageMetrics implements ProxyMetricsListener, ProxyStageMetricsMBean {
+	protected static final ProxyStage[] STAGES = ProxyStage.values();
+
+	protected final LatencyHistogram[] histograms;
+
+	public ProxyStageMetrics() {
+		super();
+		histograms = new LatencyHistogram[STAGES.length];
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new LatencyHistogram();
+	}
+
+	@Override
+	public void onStage(HttpServletRequest servletRequest, ProxyStage stage, long nanos) {
+		histograms[stage.ordinal()].record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(ProxyStage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	@Override
+	public String[] getStages() {
+		String[] result = new String[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++)
+			result[i] = STAGES[i] + ": " + histograms[i].snapshot();
+
+		return result;
+	}
+
+	@Override
+	public double getP99(String stage) {
+		return getHistogram(ProxyStage.valueOf(stage)).snapshot().getMillisAtPercentile(99);
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms)
+			histogram.reset();
+	}
+}
@@ -0,0 +1,13 @@
+package servlet.web.proxy;
+
+/**
+ * JMX view of {@link ProxyStageMetrics}. Latencies are in milliseconds.
+ */
+public interface ProxyStageMetricsMBean {
+	/** One line per stage: {@code STAGE: count=.., mean=.., p50=.., ...}. */
+	String[] getStages();
+
+	double getP99(String stage);
+
+	void reset();
+}
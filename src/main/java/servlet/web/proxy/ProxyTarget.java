@@ -0,0 +1,110 @@
+package servlet.web.proxy;
+
+import java.net.URI;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+
+/**
+ * A target URI parsed once: the {@link URI}, the {@link HttpHost} requests
+ * are executed against and the value of the Host header sent to it.
+ * <p>
+ * The state of the target server, its circuit breaker, concurrency limiter
+ * and load for the {@link LoadBalancer}, is kept by its {@link TargetHost},
+ * shared with the other targets on the same host when they come from the
+ * same {@link ProxyTargets}.
+ * </p>
+ */
+public class ProxyTarget {
+	/** Time constant of the latency EWMA. */
+	public static final long LATENCY_DECAY_NANOS = TargetHost.LATENCY_DECAY_NANOS;
+
+	protected final String uri;
+	protected final URI uriObj;
+	protected final HttpHost host;
+	protected final String hostHeader;
+	protected final boolean allowed;
+	protected TargetHost targetHost;
+
+	/** A target with a state of its own. */
+	public ProxyTarget(URI uriObj, boolean allowed) {
+		super();
+		this.uriObj = uriObj;
+		this.allowed = allowed;
+		uri = uriObj.toString();
+		host = URIUtils.extractHost(uriObj);
+		if (host == null)
+			throw new IllegalArgumentException("No host in target " + uri);
+		hostHeader = host.getPort() != -1 ? host.getHostName() + ":" + host.getPort() : host.getHostName();
+		targetHost = new TargetHost(host);
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public URI getUriObj() {
+		return uriObj;
+	}
+
+	public HttpHost getHost() {
+		return host;
+	}
+
+	public String getHostHeader() {
+		return hostHeader;
+	}
+
+	/** Whether the host is allowed by the {@link ProxyTargets} which created the target. */
+	public boolean isAllowed() {
+		return allowed;
+	}
+
+	/** The state of the target server. */
+	public TargetHost getTargetHost() {
+		return targetHost;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return targetHost.getCircuitBreaker();
+	}
+
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return targetHost.getConcurrencyLimiter();
+	}
+
+	/** Whether requests may be sent to this target, i.e. its circuit is not open. */
+	public boolean isAvailable() {
+		return targetHost.isAvailable();
+	}
+
+	/** Number of requests to the host of this target in flight. */
+	public int getOutstanding() {
+		return targetHost.getOutstanding();
+	}
+
+	/** @see TargetHost#onRequestStart() */
+	public long onRequestStart() {
+		return targetHost.onRequestStart();
+	}
+
+	/** @see TargetHost#onRequestEnd(long) */
+	public long onRequestEnd(long start) {
+		return targetHost.onRequestEnd(start);
+	}
+
+	/** @see TargetHost#getLatencyEwma() */
+	public double getLatencyEwma() {
+		return targetHost.getLatencyEwma();
+	}
+
+	/** @see TargetHost#getCost() */
+	public double getCost() {
+		return targetHost.getCost();
+	}
+
+	@Override
+	public String toString() {
+		return uri;
+	}
+}
@@ -0,0 +1,218 @@
+package servlet.web.proxy;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Bounded cache of the {@link ProxyTarget}s, by target URI, so that a target
+ * computed per request (from a template or a cookie) is parsed once. When
+ * full, an arbitrary target is evicted.
+ * <p>
+ * It also checks the targets against an allow-list of hosts, once when a
+ * target is parsed: comma separated host names ({@code api.example.com}),
+ * host names and ports ({@code api.example.com:8080}, a target without port
+ * has the default one of its scheme) or domains ({@code *.example.com}).
+ * Without allow-list, all the hosts are allowed.
+ * Targets which are not allowed are not cached.
+ * </p>
+ * <p>
+ * The targets on the same scheme, host and port share a {@link TargetHost},
+ * so that the circuit breaker and the concurrency limiter see all the
+ * requests to a server, whatever their URI. The hosts are kept apart from
+ * the targets: when there are {@code maxSize} of them, only a host without
+ * state worth keeping is evicted.
+ * </p>
+ */
+public class ProxyTargets {
+	protected final int maxSize;
+	/** Lower case host names and host:port. */
+	protected final Set<String> allowedHosts;
+	/** Lower case suffixes, e.g. .example.com */
+	protected final List<String> allowedDomains;
+	protected final ConcurrentMap<String, ProxyTarget> targets;
+	/** By {@link #hostKey(HttpHost)}. */
+	protected final ConcurrentMap<HttpHost, TargetHost> hosts;
+	protected volatile CircuitBreaker.Config circuitBreakerConfig;
+	protected volatile ConcurrencyLimiter.Config concurrencyLimiterConfig;
+
+	/** @param allowedTargets the allow-list, null for none */
+	public ProxyTargets(int maxSize, String allowedTargets) {
+		super();
+		this.maxSize = maxSize;
+		targets = new ConcurrentHashMap<>();
+		hosts = new ConcurrentHashMap<>();
+		if (allowedTargets == null) {
+			allowedHosts = null;
+			allowedDomains = null;
+			return;
+		}
+
+		allowedHosts = new HashSet<>();
+		allowedDomains = new ArrayList<>();
+		for (String allowed : allowedTargets.split(",")) {
+			allowed = allowed.trim().toLowerCase(Locale.ROOT);
+			if (allowed.startsWith("*."))
+				allowedDomains.add(allowed.substring(1));
+			else if (!allowed.isEmpty())
+				allowedHosts.add(allowed);
+		}
+	}
+
+	/** The target of {@code uri}, see {@link ProxyTarget#isAllowed()}. */
+	public ProxyTarget get(String uri) throws URISyntaxException {
+		ProxyTarget result = targets.get(uri);
+		if (result == null)
+			result = add(new URI(uri));
+		return result;
+	}
+
+	/** The target of {@code uriObj}, see {@link ProxyTarget#isAllowed()}. */
+	public ProxyTarget get(URI uriObj) {
+		ProxyTarget result = targets.get(uriObj.toString());
+		if (result == null)
+			result = add(uriObj);
+		return result;
+	}
+
+	protected ProxyTarget add(URI uriObj) {
+		ProxyTarget result = new ProxyTarget(uriObj, true);
+		if (!isAllowed(result.getHost()))
+			return new ProxyTarget(uriObj, false);
+		HttpHost key = hostKey(result.getHost());
+		TargetHost targetHost = hosts.get(key);
+		if (targetHost == null) {
+			if (hosts.size() >= maxSize)
+				evictIdleHost();
+			targetHost = hosts.computeIfAbsent(key, k -> newTargetHost(result.getHost()));
+		}
+		result.targetHost = targetHost;
+
+		if (targets.size() >= maxSize) {
+			Iterator<String> iterator = targets.keySet().iterator();
+			if (iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+			}
+		}
+		ProxyTarget previous = targets.putIfAbsent(result.getUri(), result);
+		return previous != null ? previous : result;
+	}
+
+	/**
+	 * Forgets a host whose state can be rebuilt (see
+	 * {@link TargetHost#isIdle()}), with its targets. If there is none, the
+	 * hosts exceed {@code maxSize} rather than resetting an open circuit.
+	 */
+	protected void evictIdleHost() {
+		for (Map.Entry<HttpHost, TargetHost> entry : hosts.entrySet())
+			if (entry.getValue().isIdle() && hosts.remove(entry.getKey(), entry.getValue())) {
+				targets.values().removeIf(target -> target.targetHost == entry.getValue());
+				return;
+			}
+	}
+
+	/** The state of {@code host}, created with the first target on it. */
+	protected TargetHost newTargetHost(HttpHost host) {
+		TargetHost result = new TargetHost(host);
+		CircuitBreaker.Config config = circuitBreakerConfig;
+		if (config != null)
+			result.circuitBreaker = config.newCircuitBreaker(host.toURI());
+		ConcurrencyLimiter.Config limiterConfig = concurrencyLimiterConfig;
+		if (limiterConfig != null)
+			result.concurrencyLimiter = limiterConfig.newConcurrencyLimiter();
+		return result;
+	}
+
+	/** {@code host} with an explicit port, {@code http://a} and {@code http://a:80} are the same host. */
+	protected static HttpHost hostKey(HttpHost host) {
+		if (host.getPort() != -1)
+			return host;
+		return new HttpHost(host.getHostName(), defaultPort(host), host.getSchemeName());
+	}
+
+	/** The port of {@code host}, or the default one of its scheme. */
+	protected static int defaultPort(HttpHost host) {
+		if (host.getPort() != -1)
+			return host.getPort();
+		if ("http".equalsIgnoreCase(host.getSchemeName()))
+			return 80;
+		if ("https".equalsIgnoreCase(host.getSchemeName()))
+			return 443;
+		return -1;
+	}
+
+	public boolean isAllowed(HttpHost host) {
+		if (allowedHosts == null)
+			return true;
+
+		String hostName = host.getHostName().toLowerCase(Locale.ROOT);
+		if (allowedHosts.contains(hostName) || allowedHosts.contains(hostName + ":" + defaultPort(host)))
+			return true;
+		for (String domain : allowedDomains)
+			if (hostName.endsWith(domain))
+				return true;
+		return false;
+	}
+
+	public CircuitBreaker.Config getCircuitBreakerConfig() {
+		return circuitBreakerConfig;
+	}
+
+	/**
+	 * Gives each host a {@link CircuitBreaker}, {@code null} for none. The
+	 * targets parsed so far are dropped.
+	 */
+	public void setCircuitBreakerConfig(CircuitBreaker.Config circuitBreakerConfig) {
+		this.circuitBreakerConfig = circuitBreakerConfig;
+		clear();
+	}
+
+	public ConcurrencyLimiter.Config getConcurrencyLimiterConfig() {
+		return concurrencyLimiterConfig;
+	}
+
+	/**
+	 * Gives each host a {@link ConcurrencyLimiter}, {@code null} for none.
+	 * The targets parsed so far are dropped.
+	 */
+	public void setConcurrencyLimiterConfig(ConcurrencyLimiter.Config concurrencyLimiterConfig) {
+		this.concurrencyLimiterConfig = concurrencyLimiterConfig;
+		clear();
+	}
+
+	/** The cached targets. */
+	public Collection<ProxyTarget> values() {
+		return Collections.unmodifiableCollection(targets.values());
+	}
+
+	/** The hosts of the targets, see {@link TargetHost}. */
+	public Collection<TargetHost> hosts() {
+		return Collections.unmodifiableCollection(hosts.values());
+	}
+
+	public int size() {
+		return targets.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void clear() {
+		targets.clear();
+		hosts.clear();
+	}
+}
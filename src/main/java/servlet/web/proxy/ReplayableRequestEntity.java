@@ -0,0 +1,221 @@
+package servlet.web.proxy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Repeatable request body, unlike an {@code InputStreamEntity} of the
+ * servlet input: the body is still streamed to the target, but the bytes
+ * read are recorded so the request can be sent again, e.g. after a stale
+ * pooled connection failed or to another target. A replay sends the
+ * recorded bytes, then goes on reading the servlet input if the previous
+ * attempt did not read all of it.
+ * <p>
+ * The recording is kept in memory up to {@code memoryThreshold} bytes, a
+ * larger body is spilled to a temporary file in {@code directory}. Once the
+ * body exceeds {@code maxBytes} the recording is dropped and the entity is
+ * not repeatable anymore, the current attempt streams the rest of the body
+ * through. {@link #close()} deletes the temporary file.
+ * </p>
+ */
+public class ReplayableRequestEntity extends AbstractHttpEntity implements Closeable {
+	private static final byte[] EMPTY = new byte[0];
+
+	protected final InputStream source;
+	protected final long length;
+	protected final int memoryThreshold;
+	protected final long maxBytes;
+	protected final File directory;
+
+	protected byte[] memory = EMPTY;
+	protected File file;
+	protected OutputStream fileOut;
+	/** Number of bytes read from the source, and recorded unless {@code overflow}. */
+	protected long recorded;
+	protected boolean sourceDone;
+	protected boolean overflow;
+	protected int attempts;
+
+	/**
+	 * @param length the content length, negative if unknown
+	 * @param maxBytes max size of the recording, negative for no limit
+	 * @param directory directory of the temporary file, {@code null} for
+	 *        the default temporary directory
+	 */
+	public ReplayableRequestEntity(InputStream source, long length, int memoryThreshold, long maxBytes,
+			File directory) {
+		super();
+		this.source = source;
+		this.length = length;
+		this.memoryThreshold = memoryThreshold;
+		this.maxBytes = maxBytes;
+		this.directory = directory;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return !overflow;
+	}
+
+	@Override
+	public long getContentLength() {
+		return length;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return !sourceDone;
+	}
+
+	/** Whether the recording was spilled to a file. */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/** The temporary file of the recording, {@code null} if it is in memory. */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns a stream of the whole body. Only one stream may be read at a
+	 * time, a new one starts over from the first byte.
+	 *
+	 * @throws IOException if the body was too large to be recorded and was
+	 *         already (partly) sent
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		if (overflow && attempts > 0)
+			throw new IOException("Request body larger than " + maxBytes + " bytes cannot be replayed");
+		attempts++;
+		if (fileOut != null)
+			fileOut.flush();
+		return new ReplayInputStream();
+	}
+
+	@Override
+	public void writeTo(OutputStream outStream) throws IOException {
+		byte[] buffer = HTTPProxyClientUtils.copyBuffer.get();
+		try (InputStream in = getContent()) {
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				outStream.write(buffer, 0, read);
+		}
+	}
+
+	/** Deletes the temporary file, the entity is not repeatable anymore. */
+	@Override
+	public void close() {
+		drop();
+		overflow = true;
+	}
+
+	protected void record(byte[] b, int off, int len) throws IOException {
+		if (overflow)
+			return;
+		if (maxBytes >= 0 && recorded + len > maxBytes) {
+			drop();
+			overflow = true;
+			return;
+		}
+
+		if (file == null && recorded + len > memoryThreshold)
+			spill();
+		if (fileOut != null)
+			fileOut.write(b, off, len);
+		else {
+			int size = (int) recorded + len;
+			if (size > memory.length) {
+				int capacity = Math.max(size, Math.min(memoryThreshold, Math.max(4096, memory.length * 2)));
+				if (length >= 0 && length <= memoryThreshold)
+					capacity = Math.max(size, (int) length);
+				memory = Arrays.copyOf(memory, capacity);
+			}
+			System.arraycopy(b, off, memory, (int) recorded, len);
+		}
+	}
+
+	protected void spill() throws IOException {
+		file = File.createTempFile("proxy-request", ".body", directory);
+		fileOut = new FileOutputStream(file);
+		fileOut.write(memory, 0, (int) recorded);
+		memory = null;
+	}
+
+	protected void drop() {
+		memory = null;
+		if (fileOut != null) {
+			try {
+				fileOut.close();
+			} catch (IOException e) {
+				// deleted anyway
+			}
+			fileOut = null;
+		}
+		if (file != null && !file.delete() && file.exists())
+			ProxyLogger.logger().warn("Cannot delete the request body file " + file);
+	}
+
+	/** Reads the recording, then the source while recording it. */
+	protected class ReplayInputStream extends InputStream {
+		protected long position;
+		protected FileChannel channel;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			if (!overflow && position < recorded) {
+				int result = (int) Math.min(len, recorded - position);
+				if (file == null)
+					System.arraycopy(memory, (int) position, b, off, result);
+				else {
+					if (channel == null)
+						channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					result = channel.read(ByteBuffer.wrap(b, off, result), position);
+				}
+				position += result;
+				return result;
+			}
+			if (sourceDone)
+				return -1;
+
+			int result = source.read(b, off, len);
+			if (result == -1) {
+				sourceDone = true;
+				if (fileOut != null)
+					fileOut.flush();
+				return -1;
+			}
+			record(b, off, result);
+			recorded += result;
+			position += result;
+			return result;
+		}
+
+		/** Leaves the source open, the container closes the servlet input. */
+		@Override
+		public void close() throws IOException {
+			if (channel != null)
+				channel.close();
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Single-flight execution of identical GET and HEAD requests: while a
+ * request is in flight, identical requests (same method, URI, Host header
+ * and values of the {@code keyHeaders}) wait for its response instead of
+ * going to the target. They receive the same status and headers, and
+ * stream the body while the first request is still reading it.
+ * <p>
+ * The body is buffered for the followers up to {@code maxBytes}: a body
+ * without Content-Length or larger than that is not shared, the followers
+ * then execute their own request. Neither are responses private to the
+ * client, i.e. setting a cookie or marked {@code private} or
+ * {@code no-store}, responses varying on headers that are not part of the
+ * key, and failures before the response arrived.
+ * </p>
+ */
+public class RequestCoalescer implements RequestCoalescerMBean {
+	/** Default {@code keyHeaders}: content negotiation and credentials. */
+	public static final String DEFAULT_KEY_HEADERS = "Accept,Accept-Encoding,Accept-Language,Authorization,Cookie";
+
+	/** Executes the request of the leader. */
+	@FunctionalInterface
+	public interface Execution {
+		HttpResponse execute() throws IOException;
+	}
+
+	protected final long maxBytes;
+	/** Lower case names. */
+	protected final Set<String> keyHeaders;
+	protected final ConcurrentMap<String, Flight> flights;
+	protected final LongAdder leaders;
+	protected final LongAdder followers;
+
+	public RequestCoalescer(long maxBytes, String keyHeaders) {
+		super();
+		this.maxBytes = maxBytes;
+		this.keyHeaders = new TreeSet<>();
+		for (String keyHeader : keyHeaders.split(","))
+			if (!keyHeader.trim().isEmpty())
+				this.keyHeaders.add(keyHeader.trim().toLowerCase(Locale.ROOT));
+		flights = new ConcurrentHashMap<>();
+		leaders = new LongAdder();
+		followers = new LongAdder();
+	}
+
+	/** Whether the request can share a response: GET or HEAD without body. */
+	public boolean isCoalescable(HttpRequest proxyRequest) {
+		String method = proxyRequest.getRequestLine().getMethod();
+		if (!"GET".equals(method) && !"HEAD".equals(method))
+			return false;
+		if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) proxyRequest).getEntity();
+			return entity == null || entity.getContentLength() == 0;
+		}
+
+		return true;
+	}
+
+	public String key(HttpRequest proxyRequest) {
+		StringBuilder result = new StringBuilder(128);
+		result.append(proxyRequest.getRequestLine().getMethod()).append(' ')
+				.append(proxyRequest.getRequestLine().getUri());
+		// a preserved Host names another virtual host of the same target
+		if (!keyHeaders.contains("host")) {
+			result.append("\nhost:");
+			for (Header header : proxyRequest.getHeaders(HttpHeaders.HOST))
+				result.append(header.getValue()).append(',');
+		}
+		for (String keyHeader : keyHeaders) {
+			result.append('\n').append(keyHeader).append(':');
+			for (Header header : proxyRequest.getHeaders(keyHeader))
+				result.append(header.getValue()).append(',');
+		}
+
+		return result.toString();
+	}
+
+	/**
+	 * Executes the request, or waits for the response of an identical
+	 * request in flight.
+	 */
+	public HttpResponse execute(String key, Execution execution) throws IOException {
+		Flight flight = new Flight();
+		Flight leader = flights.putIfAbsent(key, flight);
+		if (leader != null) {
+			HttpResponse response = leader.follow();
+			if (response != null) {
+				followers.increment();
+				return response;
+			}
+			// not shareable, on our own
+			return execution.execute();
+		}
+
+		leaders.increment();
+		HttpResponse response;
+		try {
+			response = execution.execute();
+		} catch (IOException | RuntimeException | Error e) {
+			flights.remove(key, flight);
+			flight.abandon();
+			throw e;
+		}
+
+		if (!isShareable(response)) {
+			flights.remove(key, flight);
+			flight.abandon();
+			return response;
+		}
+		flight.start(response, () -> flights.remove(key, flight));
+		return response;
+	}
+
+	protected boolean isShareable(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		// the followers could not fall back once their response is committed
+		if (entity != null && (entity.getContentLength() < 0 || entity.getContentLength() > maxBytes))
+			return false;
+
+		// e.g. a session issued to the leader
+		if (response.containsHeader("Set-Cookie"))
+			return false;
+		for (Header cacheControl : response.getHeaders(HttpHeaders.CACHE_CONTROL))
+			for (HeaderElement element : cacheControl.getElements())
+				if ("private".equalsIgnoreCase(element.getName()) || "no-store".equalsIgnoreCase(element.getName()))
+					return false;
+
+		for (Header vary : response.getHeaders(HttpHeaders.VARY))
+			for (HeaderElement element : vary.getElements())
+				if (!keyHeaders.contains(element.getName().toLowerCase(Locale.ROOT)))
+					return false;
+
+		return true;
+	}
+
+	/** Whether the body of {@code response} is shared with followers. */
+	public static boolean isLeader(HttpResponse response) {
+		return response.getEntity() instanceof Flight.LeaderEntity;
+	}
+
+	@Override
+	public long getLeaders() {
+		return leaders.sum();
+	}
+
+	@Override
+	public long getFollowers() {
+		return followers.sum();
+	}
+
+	@Override
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	/**
+	 * A request in flight: the response of the leader and the body read so
+	 * far. Followers block on it until the headers, then the next bytes, are
+	 * available.
+	 */
+	protected class Flight {
+		protected StatusLine statusLine;
+		protected Header[] headers;
+		protected HttpEntity entity;
+		protected final List<byte[]> chunks = new ArrayList<>();
+		protected long length;
+		/** The response arrived, or won't be shared. */
+		protected boolean started;
+		protected boolean abandoned;
+		protected boolean complete;
+		protected IOException failure;
+		protected Runnable onComplete;
+
+		/** The response of the leader, {@code null} if it is not shared. */
+		protected synchronized HttpResponse follow() throws IOException {
+			while (!started)
+				await();
+			if (abandoned)
+				return null;
+
+			BasicHttpResponse result = new BasicHttpResponse(statusLine);
+			result.setHeaders(headers);
+			if (entity != null) {
+				BasicHttpEntity followerEntity = new BasicHttpEntity();
+				followerEntity.setContent(new FollowerInputStream());
+				followerEntity.setContentLength(entity.getContentLength());
+				followerEntity.setChunked(entity.isChunked());
+				followerEntity.setContentType(entity.getContentType());
+				followerEntity.setContentEncoding(entity.getContentEncoding());
+				result.setEntity(followerEntity);
+			}
+			return result;
+		}
+
+		protected synchronized void start(HttpResponse response, Runnable onComplete) {
+			this.statusLine = response.getStatusLine();
+			this.headers = response.getAllHeaders();
+			this.entity = response.getEntity();
+			this.onComplete = onComplete;
+			started = true;
+			if (entity != null)
+				response.setEntity(new LeaderEntity(entity));
+			else
+				complete(null);
+			notifyAll();
+		}
+
+		protected synchronized void abandon() {
+			started = true;
+			abandoned = true;
+			notifyAll();
+		}
+
+		protected synchronized void append(byte[] b, int off, int len) {
+			if (complete)
+				return;
+			if (length + len > maxBytes) {
+				complete(new IOException("Body too large to be shared"));
+				return;
+			}
+			byte[] chunk = new byte[len];
+			System.arraycopy(b, off, chunk, 0, len);
+			chunks.add(chunk);
+			length += len;
+			notifyAll();
+		}
+
+		protected synchronized void complete(IOException failure) {
+			if (complete)
+				return;
+			complete = true;
+			this.failure = failure;
+			if (failure != null)
+				chunks.clear();
+			onComplete.run();
+			notifyAll();
+		}
+
+		protected void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		/** The entity of the leader, recording what it reads. */
+		protected class LeaderEntity extends HttpEntityWrapper {
+			protected InputStream content;
+
+			public LeaderEntity(HttpEntity wrappedEntity) {
+				super(wrappedEntity);
+			}
+
+			@Override
+			public synchronized InputStream getContent() throws IOException {
+				if (content == null)
+					content = new LeaderInputStream(super.getContent());
+				return content;
+			}
+		}
+
+		protected class LeaderInputStream extends InputStream {
+			protected final InputStream in;
+
+			public LeaderInputStream(InputStream in) {
+				super();
+				this.in = in;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int result;
+				try {
+					result = in.read(b, off, len);
+				} catch (IOException e) {
+					complete(e);
+					throw e;
+				}
+				if (result == -1)
+					complete(null);
+				else if (result > 0)
+					append(b, off, result);
+				return result;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return in.available();
+			}
+
+			/** Reads the rest of the body for the followers, e.g. if the client of the leader went away. */
+			@Override
+			public void close() throws IOException {
+				try {
+					byte[] buffer = HTTPProxyClientUtils.copyBuffer.get();
+					while (!isComplete() && read(buffer, 0, buffer.length) != -1)
+						;
+				} finally {
+					complete(new IOException("Leader request closed"));
+					in.close();
+				}
+			}
+
+			protected boolean isComplete() {
+				synchronized (Flight.this) {
+					return complete;
+				}
+			}
+		}
+
+		protected class FollowerInputStream extends InputStream {
+			protected int chunk;
+			protected int offset;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+
+				synchronized (Flight.this) {
+					while (chunk >= chunks.size() && !complete)
+						await();
+					if (failure != null)
+						throw new IOException("Shared response failed: " + failure.getMessage(), failure);
+					if (chunk >= chunks.size())
+						return -1;
+
+					byte[] current = chunks.get(chunk);
+					int result = Math.min(len, current.length - offset);
+					System.arraycopy(current, offset, b, off, result);
+					offset += result;
+					if (offset == current.length) {
+						chunk++;
+						offset = 0;
+					}
+					return result;
+				}
+			}
+
+			@Override
+			public int available() {
+				synchronized (Flight.this) {
+					return chunk < chunks.size() ? chunks.get(chunk).length - offset : 0;
+				}
+			}
+		}
+	}
+}
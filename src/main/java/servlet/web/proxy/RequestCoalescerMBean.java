@@ -0,0 +1,14 @@
+package servlet.web.proxy;
+
+/**
+ * JMX view of {@link RequestCoalescer}.
+ */
+public interface RequestCoalescerMBean {
+	/** Requests which went to the target, possibly followed by identical ones. */
+	long getLeaders();
+
+	/** Requests which got the response of an identical request. */
+	long getFollowers();
+
+	int getInFlight();
+}
@@ -0,0 +1,109 @@
+package servlet.web.proxy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheStorage;
+
+/**
+ * Statistics of the response cache of a proxy client (see
+ * {@link AbstractProxyServlet#P_RESPONSE_CACHE}): hits, misses and
+ * revalidations, and the size of the cache if its storage is a
+ * {@link MemoryCacheStorage} or a {@link DiskCacheStorage}.
+ */
+public class ResponseCacheStats implements ResponseCacheStatsMBean {
+	protected final HttpCacheStorage storage;
+	protected final LongAdder hits;
+	protected final LongAdder misses;
+	protected final LongAdder validated;
+	protected final LongAdder moduleResponses;
+
+	public ResponseCacheStats(HttpCacheStorage storage) {
+		super();
+		this.storage = storage;
+		hits = new LongAdder();
+		misses = new LongAdder();
+		validated = new LongAdder();
+		moduleResponses = new LongAdder();
+	}
+
+	public HttpCacheStorage getStorage() {
+		return storage;
+	}
+
+	public void record(CacheResponseStatus status) {
+		if (status == null)
+			return;
+
+		switch (status) {
+		case CACHE_HIT:
+			hits.increment();
+			break;
+		case CACHE_MISS:
+			misses.increment();
+			break;
+		case VALIDATED:
+			validated.increment();
+			break;
+		case CACHE_MODULE_RESPONSE:
+			moduleResponses.increment();
+			break;
+		}
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public long getValidated() {
+		return validated.sum();
+	}
+
+	@Override
+	public long getModuleResponses() {
+		return moduleResponses.sum();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long hits = getHits() + getValidated();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public int getEntries() {
+		return storage instanceof MemoryCacheStorage ? ((MemoryCacheStorage) storage).getEntries() : -1;
+	}
+
+	@Override
+	public long getBytes() {
+		return storage instanceof MemoryCacheStorage ? ((MemoryCacheStorage) storage).getBytes() : -1;
+	}
+
+	@Override
+	public long getDiskBytes() {
+		return storage instanceof DiskCacheStorage ? ((DiskCacheStorage) storage).getDiskBytes() : -1;
+	}
+
+	@Override
+	public void resetCounters() {
+		hits.reset();
+		misses.reset();
+		validated.reset();
+		moduleResponses.reset();
+	}
+
+	@Override
+	public void clear() {
+		if (storage instanceof MemoryCacheStorage)
+			((MemoryCacheStorage) storage).clear();
+	}
+}
@@ -0,0 +1,32 @@
+package servlet.web.proxy;
+
+/**
+ * JMX view of {@link ResponseCacheStats}.
+ */
+public interface ResponseCacheStatsMBean {
+	long getHits();
+
+	long getMisses();
+
+	/** Requests answered by the target with 304 after revalidating a cached entry. */
+	long getValidated();
+
+	/** Responses generated by the cache itself, e.g. 504 for {@code only-if-cached}. */
+	long getModuleResponses();
+
+	double getHitRatio();
+
+	/** Number of cached entries, -1 if unknown. */
+	int getEntries();
+
+	/** Size of the cached entries in bytes, -1 if unknown. */
+	long getBytes();
+
+	/** Size of the bodies in the disk tier in bytes, -1 if there is none. */
+	long getDiskBytes();
+
+	void resetCounters();
+
+	/** Removes all entries from the cache. */
+	void clear();
+}
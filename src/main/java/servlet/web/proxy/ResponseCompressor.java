@@ -0,0 +1,384 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+/**
+ * Compresses the responses the target sent uncompressed, when the client
+ * accepts it. Only bodies of {@code mimeTypes} are compressed, and only once
+ * they reach {@code minSize} bytes: the first bytes are held back until then,
+ * a smaller body is sent as is with its length. The compression streams, the
+ * body is never held as a whole.
+ * <p>
+ * The {@link Deflater}s, whose native memory is costly to allocate, are
+ * pooled. The encoding is gzip, {@link #getEncoding()} and
+ * {@link #encode(OutputStream, Deflater)} can be overridden for another one.
+ * </p>
+ */
+public class ResponseCompressor {
+	public static final String DEFAULT_MIME_TYPES = "text/*,application/json,application/javascript,"
+			+ "application/xml,application/xhtml+xml,image/svg+xml";
+
+	/** Header of a gzip member: magic, deflate, no flags, no time, unknown OS. */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	protected final int minSize;
+	protected final int level;
+	/** Lower case mime types. */
+	protected final Set<String> mimeTypes = new HashSet<>();
+	/** Lower case prefixes of the types ending with {@code /*}, e.g. text/ */
+	protected final Set<String> mimeTypePrefixes = new HashSet<>();
+	protected final BlockingQueue<Deflater> deflaters;
+
+	/**
+	 * @param minSize size under which a body is not compressed
+	 * @param level the {@link Deflater} level
+	 * @param mimeTypes comma separated types compressed, {@code text/*} for
+	 *        all text types
+	 * @param poolSize max number of idle {@link Deflater}s kept
+	 */
+	public ResponseCompressor(int minSize, int level, String mimeTypes, int poolSize) {
+		super();
+		this.minSize = minSize;
+		this.level = level;
+		for (String mimeType : mimeTypes.split(",")) {
+			mimeType = mimeType.trim().toLowerCase(Locale.ROOT);
+			if (mimeType.endsWith("/*"))
+				mimeTypePrefixes.add(mimeType.substring(0, mimeType.length() - 1));
+			else if (!mimeType.isEmpty())
+				this.mimeTypes.add(mimeType);
+		}
+		deflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+	}
+
+	/** The content coding produced. */
+	public String getEncoding() {
+		return "gzip";
+	}
+
+	/** Whether the Accept-Encoding header of the client allows the encoding. */
+	public boolean isAccepted(HttpServletRequest servletRequest) {
+		String acceptEncoding = servletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		if (acceptEncoding == null)
+			return false;
+
+		String encoding = getEncoding();
+		boolean result = false;
+		for (String coding : acceptEncoding.split(",")) {
+			int semicolon = coding.indexOf(';');
+			String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+			boolean accepted = semicolon < 0 || qValue(coding.substring(semicolon + 1)) > 0;
+			if (name.equalsIgnoreCase(encoding))
+				// an explicit coding wins over *
+				return accepted;
+			if (name.equals("*"))
+				result = accepted;
+		}
+		return result;
+	}
+
+	protected static double qValue(String parameters) {
+		for (String parameter : parameters.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.startsWith("q=") || parameter.startsWith("Q="))
+				try {
+					return Double.parseDouble(parameter.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+		}
+		return 1;
+	}
+
+	/**
+	 * Whether the body of {@code proxyResponse} would be compressed for a
+	 * client accepting it: it has a body of a compressible type, not encoded
+	 * already nor too small, and the target didn't forbid transformations.
+	 * The response then varies with Accept-Encoding.
+	 */
+	public boolean isCompressible(HttpResponse proxyResponse) {
+		int statusCode = proxyResponse.getStatusLine().getStatusCode();
+		if (proxyResponse.getEntity() == null || statusCode < HttpStatus.SC_OK
+				|| statusCode == HttpStatus.SC_NO_CONTENT || statusCode == HttpStatus.SC_PARTIAL_CONTENT
+				|| statusCode == HttpStatus.SC_NOT_MODIFIED)
+			return false;
+
+		Header contentEncoding = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+		if (contentEncoding != null && !contentEncoding.getValue().trim().equalsIgnoreCase("identity"))
+			return false;
+		if (proxyResponse.containsHeader(HttpHeaders.CONTENT_RANGE))
+			return false;
+		for (Header cacheControl : proxyResponse.getHeaders(HttpHeaders.CACHE_CONTROL))
+			if (cacheControl.getValue().toLowerCase(Locale.ROOT).contains("no-transform"))
+				return false;
+
+		long length = proxyResponse.getEntity().getContentLength();
+		if (length >= 0 && length < minSize)
+			return false;
+
+		Header contentType = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+		if (contentType == null)
+			return false;
+		String mimeType = contentType.getValue();
+		int semicolon = mimeType.indexOf(';');
+		if (semicolon >= 0)
+			mimeType = mimeType.substring(0, semicolon);
+		mimeType = mimeType.trim().toLowerCase(Locale.ROOT);
+		// events must reach the client at once
+		if (mimeType.equals("text/event-stream"))
+			return false;
+		if (mimeTypes.contains(mimeType))
+			return true;
+		int slash = mimeType.indexOf('/');
+		return slash > 0 && mimeTypePrefixes.contains(mimeType.substring(0, slash + 1));
+	}
+
+	/**
+	 * Adds Accept-Encoding to the Vary header of {@code servletResponse},
+	 * unless the one copied from {@code proxyResponse} has it already.
+	 */
+	public void addVary(HttpResponse proxyResponse, HttpServletResponse servletResponse) {
+		for (Header vary : proxyResponse.getHeaders(HttpHeaders.VARY))
+			for (String name : vary.getValue().split(",")) {
+				name = name.trim();
+				if (name.equals("*") || name.equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING))
+					return;
+			}
+		servletResponse.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+	}
+
+	/**
+	 * Wraps {@code servletResponse} so that its output stream compresses the
+	 * body of {@code proxyResponse}. The Content-Length of the target must
+	 * not have been copied.
+	 */
+	public CompressingResponse wrap(HttpServletResponse servletResponse, HttpResponse proxyResponse) {
+		Header etag = proxyResponse.getFirstHeader(HttpHeaders.ETAG);
+		return new CompressingResponse(servletResponse, etag != null ? etag.getValue() : null);
+	}
+
+	protected Deflater acquireDeflater() {
+		Deflater result = deflaters.poll();
+		return result != null ? result : new Deflater(level, true);
+	}
+
+	protected void releaseDeflater(Deflater deflater) {
+		deflater.reset();
+		if (!deflaters.offer(deflater))
+			deflater.end();
+	}
+
+	/** The encoding stream writing to {@code out}, flushable. */
+	protected DeflaterOutputStream encode(OutputStream out, Deflater deflater) throws IOException {
+		return new GzipOutputStream(out, deflater);
+	}
+
+	/** Releases the pooled {@link Deflater}s. */
+	public void destroy() {
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null)
+			deflater.end();
+	}
+
+	/**
+	 * A response whose body is compressed once it reaches {@code minSize}
+	 * bytes. {@link #finish()} must be called after the body, or
+	 * {@link #release()} if it could not be written.
+	 */
+	public class CompressingResponse extends HttpServletResponseWrapper {
+		/** The ETag copied, {@code null} for none. */
+		protected final String etag;
+		protected CompressingOutputStream outputStream;
+
+		public CompressingResponse(HttpServletResponse servletResponse, String etag) {
+			super(servletResponse);
+			this.etag = etag;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (outputStream == null)
+				outputStream = new CompressingOutputStream((HttpServletResponse) getResponse(), etag);
+			return outputStream;
+		}
+
+		/** Whether the body is being compressed. */
+		public boolean isCompressing() {
+			return outputStream != null && outputStream.encoder != null;
+		}
+
+		/** Writes the rest of the body. */
+		public void finish() throws IOException {
+			if (outputStream != null)
+				outputStream.finish();
+		}
+
+		/** Gives the {@link Deflater} back, the body is left unfinished. */
+		public void release() {
+			if (outputStream != null)
+				outputStream.release();
+		}
+	}
+
+	protected class CompressingOutputStream extends ServletOutputStream {
+		protected final HttpServletResponse servletResponse;
+		protected final String etag;
+		protected final ServletOutputStream out;
+		/** The first bytes, held back until {@code minSize} is reached. */
+		protected final byte[] pending;
+		protected int pendingLength;
+		protected Deflater deflater;
+		protected DeflaterOutputStream encoder;
+		protected boolean finished;
+
+		public CompressingOutputStream(HttpServletResponse servletResponse, String etag) throws IOException {
+			super();
+			this.servletResponse = servletResponse;
+			this.etag = etag;
+			out = servletResponse.getOutputStream();
+			pending = new byte[Math.max(1, minSize)];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (encoder != null) {
+				encoder.write(b, off, len);
+				return;
+			}
+			if (pendingLength + len < pending.length) {
+				System.arraycopy(b, off, pending, pendingLength, len);
+				pendingLength += len;
+				return;
+			}
+
+			startEncoding();
+			encoder.write(pending, 0, pendingLength);
+			encoder.write(b, off, len);
+		}
+
+		protected void startEncoding() throws IOException {
+			servletResponse.setHeader(HttpHeaders.CONTENT_ENCODING, getEncoding());
+			// the bytes differ from the ones the strong validator is for
+			if (etag != null && !etag.startsWith("W/"))
+				servletResponse.setHeader(HttpHeaders.ETAG, "W/" + etag);
+			deflater = acquireDeflater();
+			encoder = encode(out, deflater);
+		}
+
+		/**
+		 * Flushes the compressed bytes. The bytes held back are compressed
+		 * from now on, as the client waits for them (e.g. server-sent events).
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (encoder == null && pendingLength > 0 && !finished) {
+				startEncoding();
+				encoder.write(pending, 0, pendingLength);
+			}
+			if (encoder != null) {
+				encoder.flush();
+				out.flush();
+			}
+		}
+
+		public void finish() throws IOException {
+			if (finished)
+				return;
+			finished = true;
+			if (encoder != null)
+				try {
+					encoder.finish();
+				} finally {
+					release();
+				}
+			else {
+				if (!servletResponse.isCommitted())
+					servletResponse.setContentLength(pendingLength);
+				out.write(pending, 0, pendingLength);
+			}
+			out.flush();
+		}
+
+		public void release() {
+			if (deflater != null) {
+				releaseDeflater(deflater);
+				deflater = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+		}
+
+		@Override
+		public boolean isReady() {
+			return out.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			out.setWriteListener(writeListener);
+		}
+	}
+
+	/**
+	 * gzip on a {@link Deflater} of the pool, which {@link #finish()} leaves
+	 * usable. Flushing syncs the compressed output.
+	 */
+	protected static class GzipOutputStream extends DeflaterOutputStream {
+		protected final CRC32 crc = new CRC32();
+
+		public GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+			super(out, deflater, HTTPProxyClientUtils.COPY_BUFFER_SIZE, true);
+			out.write(GZIP_HEADER);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			crc.update(b, off, len);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (def.finished())
+				return;
+			super.finish();
+			writeInt((int) crc.getValue());
+			writeInt((int) def.getBytesRead());
+		}
+
+		/** Little-endian, as gzip wants it. */
+		protected void writeInt(int value) throws IOException {
+			out.write(value & 0xff);
+			out.write((value >> 8) & 0xff);
+			out.write((value >> 16) & 0xff);
+			out.write((value >> 24) & 0xff);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * When and how often a failed request to the target is sent again. Only
+ * idempotent methods are retried, with a repeatable body if they have one
+ * (see {@link ReplayableRequestEntity}), after a connection failure, a
+ * stale pooled connection ({@link NoHttpResponseException}) or one of the
+ * {@code retryStatuses}. Read timeouts are not retried, the target may
+ * still be working on the request.
+ * <p>
+ * The attempts are spaced by an exponential backoff with full jitter. A
+ * retry budget shared by all requests keeps the retries from amplifying an
+ * outage: each request earns {@code budgetRatio} retries, each retry spends
+ * one, and {@code minRetriesPerSecond} are always available so that low
+ * traffic can be retried too. The budget is only updated with atomic
+ * operations.
+ * </p>
+ */
+public class RetryPolicy implements RetryPolicyMBean {
+	/** Default {@code retryStatuses}: the target or a gateway in front of it is unavailable. */
+	public static final String DEFAULT_RETRY_STATUSES = "502,503,504";
+	/** Methods without side effects, or whose side effects don't add up (RFC 7231, sec 4.2.2). */
+	protected static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(
+			Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+	protected final int maxAttempts;
+	protected final long backoffMillis;
+	protected final long maxBackoffMillis;
+	protected final Set<Integer> retryStatuses;
+	protected final double budgetRatio;
+	protected final int minRetriesPerSecond;
+	/** Max retries saved up in the budget. */
+	protected final double maxBalance;
+
+	/** Retries available, the bits of a double. */
+	protected final AtomicLong balance;
+	protected final AtomicLong lastRefill;
+
+	protected final LongAdder requests;
+	protected final LongAdder retries;
+	protected final LongAdder recovered;
+	protected final LongAdder budgetExhausted;
+
+	/**
+	 * @param maxAttempts max number of attempts, including the first one
+	 * @param backoffMillis backoff before the first retry, doubled for each
+	 *        further one
+	 * @param retryStatuses comma separated status codes of the target which
+	 *        are retried
+	 */
+	public RetryPolicy(int maxAttempts, long backoffMillis, long maxBackoffMillis, String retryStatuses,
+			double budgetRatio, int minRetriesPerSecond) {
+		super();
+		this.maxAttempts = maxAttempts;
+		this.backoffMillis = backoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.retryStatuses = new HashSet<>();
+		for (String status : retryStatuses.split(","))
+			if (!status.trim().isEmpty())
+				this.retryStatuses.add(Integer.valueOf(status.trim()));
+		this.budgetRatio = budgetRatio;
+		this.minRetriesPerSecond = minRetriesPerSecond;
+		maxBalance = Math.max(minRetriesPerSecond, 10 * minRetriesPerSecond + 100 * budgetRatio);
+		balance = new AtomicLong(Double.doubleToRawLongBits(minRetriesPerSecond));
+		lastRefill = new AtomicLong(System.nanoTime());
+		requests = new LongAdder();
+		retries = new LongAdder();
+		recovered = new LongAdder();
+		budgetExhausted = new LongAdder();
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/** Whether the request may be sent again: idempotent, with a repeatable body. */
+	public boolean isRetryable(HttpRequest proxyRequest) {
+		if (maxAttempts < 2
+				|| !IDEMPOTENT_METHODS.contains(proxyRequest.getRequestLine().getMethod().toUpperCase(Locale.ROOT)))
+			return false;
+		if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) proxyRequest).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+
+		return true;
+	}
+
+	/** Whether the failure happened before the target could process the request. */
+	public boolean isRetryable(IOException e) {
+		return e instanceof ConnectException || e instanceof ConnectTimeoutException
+				|| e instanceof NoHttpResponseException;
+	}
+
+	public boolean isRetryable(int statusCode) {
+		return retryStatuses.contains(statusCode);
+	}
+
+	/** Records a request which may be retried, it earns its share of the budget. */
+	public void onRequest() {
+		requests.increment();
+		addToBalance(budgetRatio, false);
+	}
+
+	/** Spends a retry of the budget, {@code false} if it is exhausted. */
+	public boolean tryRetry() {
+		long now = System.nanoTime();
+		long last = lastRefill.getAndAccumulate(now, Math::max);
+		if (!addToBalance(minRetriesPerSecond * (double) Math.max(0, now - last) / 1e9, true)) {
+			budgetExhausted.increment();
+			return false;
+		}
+		retries.increment();
+		return true;
+	}
+
+	/**
+	 * Adds {@code amount} to the balance, up to {@code maxBalance}, and
+	 * spends a retry of it if asked to.
+	 *
+	 * @return whether a retry was spent
+	 */
+	protected boolean addToBalance(double amount, boolean spend) {
+		long current;
+		double next;
+		boolean spent;
+		do {
+			current = balance.get();
+			next = Math.min(maxBalance, Double.longBitsToDouble(current) + amount);
+			spent = spend && next >= 1;
+			if (spent)
+				next--;
+		} while (!balance.compareAndSet(current, Double.doubleToRawLongBits(next)));
+		return spent;
+	}
+
+	public void onRecovered() {
+		recovered.increment();
+	}
+
+	/** The backoff before the retry following {@code attempt}, full jitter. */
+	public long backoffMillis(int attempt) {
+		long ceiling = backoffMillis << Math.min(attempt - 1, 30);
+		if (ceiling <= 0 || ceiling > maxBackoffMillis)
+			ceiling = maxBackoffMillis;
+		return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/** Sleeps the backoff before the retry following {@code attempt}. */
+	public void backoff(int attempt) throws InterruptedIOException {
+		long millis = backoffMillis(attempt);
+		if (millis <= 0)
+			return;
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	@Override
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	@Override
+	public long getRecovered() {
+		return recovered.sum();
+	}
+
+	@Override
+	public long getBudgetExhausted() {
+		return budgetExhausted.sum();
+	}
+
+	@Override
+	public double getBudgetBalance() {
+		return Double.longBitsToDouble(balance.get());
+	}
+
+	@Override
+	public void resetCounters() {
+		requests.reset();
+		retries.reset();
+		recovered.reset();
+		budgetExhausted.reset();
+	}
+}
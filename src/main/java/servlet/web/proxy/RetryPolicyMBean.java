@@ -0,0 +1,22 @@
+package servlet.web.proxy;
+
+/**
+ * JMX view of {@link RetryPolicy}.
+ */
+public interface RetryPolicyMBean {
+	/** Requests which were allowed to be retried. */
+	long getRequests();
+
+	long getRetries();
+
+	/** Requests which failed or got a retryable status and then succeeded on a retry. */
+	long getRecovered();
+
+	/** Retries refused because the retry budget was exhausted. */
+	long getBudgetExhausted();
+
+	/** Retries currently available in the budget. */
+	double getBudgetBalance();
+
+	void resetCounters();
+}
@@ -0,0 +1,22 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+
+/**
+ * The request was not sent to the target, which is known to be unable to
+ * handle it right now. The client gets a 503 with a Retry-After header.
+ */
+public class ServiceUnavailableException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	protected final long retryAfterSeconds;
+
+	public ServiceUnavailableException(String message, long retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
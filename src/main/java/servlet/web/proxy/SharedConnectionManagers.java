@@ -0,0 +1,67 @@
+package servlet.web.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Registry of named connection pools shared by several proxy clients (e.g.
+ * servlets proxying to the same backend). A pool is created by the first
+ * client acquiring it, so its configuration wins, and is shut down when the
+ * last client releases it.
+ */
+public final class SharedConnectionManagers {
+	protected static class Entry {
+		protected final PoolingHttpClientConnectionManager connectionManager;
+		protected final IdleConnectionEvictor evictor;
+		protected int references;
+
+		protected Entry(PoolingHttpClientConnectionManager connectionManager, IdleConnectionEvictor evictor) {
+			super();
+			this.connectionManager = connectionManager;
+			this.evictor = evictor;
+		}
+	}
+
+	private static final Map<String, Entry> entries = new HashMap<>();
+
+	private SharedConnectionManagers() {
+		super();
+	}
+
+	/**
+	 * Returns the pool registered under {@code name}, creating it (and its
+	 * idle connection evictor, if any) on first use.
+	 */
+	public static synchronized PoolingHttpClientConnectionManager acquire(String name,
+			Supplier<PoolingHttpClientConnectionManager> connectionManagerFactory,
+			Function<PoolingHttpClientConnectionManager, IdleConnectionEvictor> evictorFactory) {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			PoolingHttpClientConnectionManager connectionManager = connectionManagerFactory.get();
+			IdleConnectionEvictor evictor = evictorFactory.apply(connectionManager);
+			if (evictor != null)
+				evictor.start();
+			entry = new Entry(connectionManager, evictor);
+			entries.put(name, entry);
+		}
+		entry.references++;
+
+		return entry.connectionManager;
+	}
+
+	/** Releases the pool, it is shut down if no longer used. */
+	public static synchronized void release(String name) {
+		Entry entry = entries.get(name);
+		if (entry != null && --entry.references == 0) {
+			entries.remove(name);
+			if (entry.evictor != null)
+				entry.evictor.shutdown();
+			entry.connectionManager.shutdown();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package servlet.web.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+
+/**
+ * The state of a target server, shared by all the {@link ProxyTarget}s on
+ * the same scheme, host and port: its {@link CircuitBreaker} and
+ * {@link ConcurrencyLimiter}, and its load for the {@link LoadBalancer}, the
+ * requests in flight and a peak EWMA of the latency, which follows an
+ * increase of the latency at once and a decrease over
+ * {@link #LATENCY_DECAY_NANOS}. Both are updated without locking.
+ */
+public class TargetHost {
+	/** Time constant of the latency EWMA. */
+	public static final long LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	protected final HttpHost host;
+	protected final AtomicInteger outstanding = new AtomicInteger();
+	/** Latency EWMA in nanoseconds, the bits of a double. */
+	protected final AtomicLong latencyEwma = new AtomicLong(Double.doubleToRawLongBits(0));
+	protected volatile long lastLatency = System.nanoTime();
+	/** {@code null} without circuit breaking. */
+	protected CircuitBreaker circuitBreaker;
+	/** {@code null} without concurrency limit. */
+	protected ConcurrencyLimiter concurrencyLimiter;
+
+	public TargetHost(HttpHost host) {
+		super();
+		this.host = host;
+	}
+
+	public HttpHost getHost() {
+		return host;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/** Whether requests may be sent to this host, i.e. its circuit is not open. */
+	public boolean isAvailable() {
+		return circuitBreaker == null || circuitBreaker.isAvailable();
+	}
+
+	/**
+	 * Whether this host can be forgotten without losing anything: no
+	 * request in flight, its circuit closed and its concurrency limit not
+	 * backed off.
+	 */
+	public boolean isIdle() {
+		return outstanding.get() == 0
+				&& (circuitBreaker == null || circuitBreaker.getState() == CircuitBreaker.CLOSED)
+				&& (concurrencyLimiter == null || concurrencyLimiter.isIdle());
+	}
+
+	/** Number of requests to this host in flight. */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Counts a request to this host in flight.
+	 *
+	 * @return the start time to pass to {@link #onRequestEnd(long)}
+	 */
+	public long onRequestStart() {
+		outstanding.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/** @return the duration of the request in nanoseconds */
+	public long onRequestEnd(long start) {
+		outstanding.decrementAndGet();
+		long now = System.nanoTime();
+		long elapsed = now - lastLatency;
+		lastLatency = now;
+		double sample = now - start;
+		double weight = Math.exp(-Math.max(0, elapsed) / (double) LATENCY_DECAY_NANOS);
+		long current;
+		double next;
+		do {
+			current = latencyEwma.get();
+			double ewma = Double.longBitsToDouble(current);
+			next = sample > ewma ? sample : ewma * weight + sample * (1 - weight);
+		} while (!latencyEwma.compareAndSet(current, Double.doubleToRawLongBits(next)));
+		return now - start;
+	}
+
+	/**
+	 * The latency EWMA in nanoseconds, decayed since the last request so
+	 * that a host which was slow gets requests again.
+	 */
+	public double getLatencyEwma() {
+		double elapsed = Math.max(0, System.nanoTime() - lastLatency);
+		return Double.longBitsToDouble(latencyEwma.get()) * Math.exp(-elapsed / LATENCY_DECAY_NANOS);
+	}
+
+	/** The expected wait for a new request: latency times requests in flight. */
+	public double getCost() {
+		return (getLatencyEwma() + 1) * (outstanding.get() + 1);
+	}
+
+	@Override
+	public String toString() {
+		return host.toURI();
+	}
+}
@@ -0,0 +1,93 @@
+package servlet.web.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Base class for character oriented {@link ContentFilter.Transformer}s. The
+ * body is decoded incrementally and handed to {@link #transform} in chunks.
+ * Characters left unconsumed in the chunk (e.g. a tag split across two chunks)
+ * are kept and prepended to the next one.
+ */
+public abstract class TextTransformer implements ContentFilter.Transformer {
+	protected static final int CHUNK_SIZE = 8 * 1024;
+
+	protected final CharsetDecoder decoder;
+	protected final Writer out;
+
+	protected ByteBuffer bytes;
+	protected CharBuffer chars;
+
+	public TextTransformer(Charset charset, OutputStream out) {
+		super();
+		decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.out = new OutputStreamWriter(out, charset);
+
+		bytes = ByteBuffer.allocate(CHUNK_SIZE);
+		chars = CharBuffer.allocate(CHUNK_SIZE);
+	}
+
+	/**
+	 * Transforms the decoded characters available in {@code in}, writing the
+	 * result to {@code out}. Characters that cannot be decided on yet may be
+	 * left in {@code in}; they are passed again together with the next chunk.
+	 * 
+	 * @param endOfInput
+	 *            {@code true} for the last call, all characters have to be
+	 *            consumed then
+	 */
+	protected abstract void transform(CharBuffer in, boolean endOfInput, Writer out) throws IOException;
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, bytes.remaining());
+			bytes.put(b, off, n);
+			off += n;
+			len -= n;
+
+			bytes.flip();
+			decode(false);
+			bytes.compact();
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		bytes.flip();
+		decode(true);
+		while (decoder.flush(chars) == CoderResult.OVERFLOW)
+			drain(false);
+		drain(true);
+		out.flush();
+	}
+
+	protected void decode(boolean endOfInput) throws IOException {
+		while (decoder.decode(bytes, chars, endOfInput) == CoderResult.OVERFLOW)
+			drain(false);
+		drain(false);
+	}
+
+	protected void drain(boolean endOfInput) throws IOException {
+		chars.flip();
+		transform(chars, endOfInput, out);
+		chars.compact();
+		// the transformer holds back more than a chunk, make room for more
+		if (!chars.hasRemaining()) {
+			CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+			chars.flip();
+			larger.put(chars);
+			chars = larger;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package servlet.web.proxy;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A URI template (<a href="http://tools.ietf.org/html/rfc6570">RFC 6570</a>)
+ * compiled once into literal and expression segments, expanded with the
+ * values of its variables by index instead of by name.
+ * <p>
+ * Supported expressions:
+ * </p>
+ * <ul>
+ * <li>{@code {var}}: the value as is (the historical behavior of
+ * {@link URITemplateProxyServlet}, so that a value can be e.g. a path), the
+ * variable is required.</li>
+ * <li>{@code {+var}}, {@code {#var}}: reserved expansion, {@code {.var}},
+ * {@code {/var}}, {@code {;var}}, {@code {?var}}, {@code {&var}}: as in the
+ * RFC. The variables of these expressions are optional: undefined ones are
+ * left out.</li>
+ * <li>several variables separated by commas, e.g. {@code {?x,y}}, and a
+ * prefix of the value, e.g. {@code {var:3}}.</li>
+ * <li>a default value, not in the RFC: {@code {var=default}}, used when the
+ * variable is undefined.</li>
+ * </ul>
+ */
+public class URITemplate {
+	protected static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	protected static final String OPERATORS = "+#./;?&";
+
+	protected final String template;
+	/** String (literal) or Expression, in order. */
+	protected final Object[] segments;
+	protected final String[] variableNames;
+	/** Estimate of the length of an expansion. */
+	protected final int length;
+
+	public URITemplate(String template) {
+		super();
+		this.template = template;
+		List<Object> segments = new ArrayList<>();
+		List<String> variableNames = new ArrayList<>();
+		int start = 0;
+		int open;
+		while ((open = template.indexOf('{', start)) >= 0) {
+			int close = template.indexOf('}', open);
+			if (close < 0)
+				throw new IllegalArgumentException("Unclosed expression at " + open + " in " + template);
+			if (open > start)
+				segments.add(template.substring(start, open));
+			segments.add(new Expression(template.substring(open + 1, close), variableNames));
+			start = close + 1;
+		}
+		if (start < template.length())
+			segments.add(template.substring(start));
+
+		this.segments = segments.toArray();
+		this.variableNames = variableNames.toArray(new String[0]);
+		length = template.length() + 16 * this.variableNames.length;
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	public int getVariableCount() {
+		return variableNames.length;
+	}
+
+	public String getVariableName(int index) {
+		return variableNames[index];
+	}
+
+	/** Index of the variable, -1 if it isn't one. */
+	public int indexOf(String name) {
+		for (int i = 0; i < variableNames.length; i++)
+			if (variableNames[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Index of the variable named by {@code in} from {@code start} to
+	 * {@code end}, -1 if it isn't one. Doesn't create the name.
+	 */
+	public int indexOf(CharSequence in, int start, int end) {
+		int length = end - start;
+		for (int i = 0; i < variableNames.length; i++) {
+			String name = variableNames[i];
+			if (name.length() != length)
+				continue;
+			int j = 0;
+			while (j < length && name.charAt(j) == in.charAt(start + j))
+				j++;
+			if (j == length)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Expands the template with {@code values}, indexed like the variables
+	 * (null: undefined). Returns null if a required variable is undefined, see
+	 * {@link #getMissingVariable(String[])}.
+	 */
+	public String expand(String[] values) {
+		StringBuilder out = new StringBuilder(length);
+		for (Object segment : segments) {
+			if (segment instanceof String)
+				out.append((String) segment);
+			else if (!((Expression) segment).expand(values, out))
+				return null;
+		}
+		return out.toString();
+	}
+
+	/** The first required variable undefined in {@code values}, if any. */
+	public String getMissingVariable(String[] values) {
+		for (Object segment : segments)
+			if (segment instanceof Expression) {
+				Expression expression = (Expression) segment;
+				if (expression.operator == 0)
+					for (Variable variable : expression.variables)
+						if (values[variable.index] == null && variable.defaultValue == null)
+							return variable.name;
+			}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+
+	/**
+	 * Decodes a form encoded ({@code application/x-www-form-urlencoded})
+	 * name or value of a query string as UTF-8, leaving a malformed one as
+	 * is.
+	 */
+	public static String decode(String in, int start, int end) {
+		String s = in.substring(start, end);
+		if (s.indexOf('%') < 0 && s.indexOf('+') < 0)
+			return s;
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (IllegalArgumentException | UnsupportedEncodingException e) {
+			return s;
+		}
+	}
+
+	protected static class Variable {
+		protected final String name;
+		protected final int index;
+		protected final String defaultValue;
+		/** Code points of the value to keep, 0 for all. */
+		protected final int prefix;
+
+		protected Variable(String name, int index, String defaultValue, int prefix) {
+			super();
+			this.name = name;
+			this.index = index;
+			this.defaultValue = defaultValue;
+			this.prefix = prefix;
+		}
+	}
+
+	protected static class Expression {
+		/** 0 for a simple expression. */
+		protected final char operator;
+		protected final Variable[] variables;
+		protected final String first;
+		protected final char separator;
+		protected final boolean named;
+		protected final String ifEmpty;
+		protected final boolean allowReserved;
+
+		protected Expression(String expression, List<String> variableNames) {
+			super();
+			if (!expression.isEmpty() && OPERATORS.indexOf(expression.charAt(0)) >= 0) {
+				operator = expression.charAt(0);
+				expression = expression.substring(1);
+			} else {
+				operator = 0;
+			}
+			first = operator == 0 || operator == '+' ? "" : String.valueOf(operator);
+			separator = operator == '.' || operator == '/' || operator == ';' ? operator
+					: operator == '?' || operator == '&' ? '&' : ',';
+			named = operator == ';' || operator == '?' || operator == '&';
+			ifEmpty = operator == '?' || operator == '&' ? "=" : "";
+			allowReserved = operator == '+' || operator == '#';
+
+			String[] specs = expression.split(",");
+			variables = new Variable[specs.length];
+			for (int i = 0; i < specs.length; i++) {
+				String spec = specs[i].trim();
+				String defaultValue = null;
+				int equals = spec.indexOf('=');
+				if (equals >= 0) {
+					defaultValue = spec.substring(equals + 1);
+					spec = spec.substring(0, equals);
+				}
+				int prefix = 0;
+				int colon = spec.indexOf(':');
+				if (colon >= 0) {
+					try {
+						prefix = Integer.parseInt(spec.substring(colon + 1));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid prefix in {" + expression + "}", e);
+					}
+					spec = spec.substring(0, colon);
+				}
+				if (spec.endsWith("*"))// explode: single values only
+					spec = spec.substring(0, spec.length() - 1);
+				if (spec.isEmpty())
+					throw new IllegalArgumentException("Empty variable name in {" + expression + "}");
+
+				int index = variableNames.indexOf(spec);
+				if (index < 0) {
+					index = variableNames.size();
+					variableNames.add(spec);
+				}
+				variables[i] = new Variable(spec, index, defaultValue, prefix);
+			}
+		}
+
+		/** Returns false if a required variable is undefined. */
+		protected boolean expand(String[] values, StringBuilder out) {
+			boolean defined = false;
+			for (Variable variable : variables) {
+				String value = values[variable.index];
+				if (value == null)
+					value = variable.defaultValue;
+				if (value == null) {
+					if (operator == 0)
+						return false;
+					continue;
+				}
+				if (variable.prefix > 0 && value.codePointCount(0, value.length()) > variable.prefix)
+					value = value.substring(0, value.offsetByCodePoints(0, variable.prefix));
+
+				if (defined)
+					out.append(separator);
+				else
+					out.append(first);
+				defined = true;
+				if (named) {
+					appendEncoded(out, variable.name, false);
+					if (value.isEmpty()) {
+						out.append(ifEmpty);
+						continue;
+					}
+					out.append('=');
+				}
+				if (operator == 0)
+					out.append(value);
+				else
+					appendEncoded(out, value, allowReserved);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Appends {@code value}, percent-encoding in UTF-8 the characters other
+	 * than the unreserved ones (and the reserved ones and existing escapes if
+	 * {@code allowReserved}).
+	 */
+	protected static void appendEncoded(StringBuilder out, String value, boolean allowReserved) {
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (isUnreserved(c) || allowReserved && (isReserved(c) || c == '%' && isEscape(value, i))) {
+				out.append(c);
+				continue;
+			}
+			int end = i + 1;
+			if (Character.isHighSurrogate(c) && end < length && Character.isLowSurrogate(value.charAt(end)))
+				end++;
+			for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8))
+				out.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+			i = end - 1;
+		}
+	}
+
+	protected static boolean isUnreserved(char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '.'
+				|| c == '_' || c == '~';
+	}
+
+	protected static boolean isReserved(char c) {
+		return ":/?#[]@!$&'()*+,;=".indexOf(c) >= 0;
+	}
+
+	protected static boolean isEscape(String value, int i) {
+		return i + 2 < value.length() && Character.digit(value.charAt(i + 1), 16) >= 0
+				&& Character.digit(value.charAt(i + 2), 16) >= 0;
+	}
+}
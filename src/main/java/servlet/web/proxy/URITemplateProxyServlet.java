@@ -17,33 +17,26 @@
 package servlet.web.proxy;
 
 import org.apache.commons.lang3.mutable.MutableBoolean;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URLEncodedUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A proxy servlet in which the target URI is templated from incoming request
  * parameters. The format adheres to the
- * <a href="http://tools.ietf.org/html/rfc6570">URI Template RFC</a>, "Level 1".
+ * <a href="http://tools.ietf.org/html/rfc6570">URI Template RFC</a>, see
+ * {@link URITemplate} for the supported expressions.
  * Example:
  * 
  * <pre>
- *   targetUri = http://{host}:{port}/{path}
+ *   targetUri = http://{host}:{port=80}/{path}{?lang}
  * </pre>
  * 
  * --which has the template variables. The incoming request must contain query
- * args of these names. They are removed when the request is sent to the target.
+ * args of the required ones (here host and path). They are removed when the
+ * request is sent to the target.
  */
 public class URITemplateProxyServlet extends AbstractProxyServlet {
 	protected static final long serialVersionUID = -1765247685360288946L;
@@ -51,24 +44,20 @@ public class URITemplateProxyServlet extends AbstractProxyServlet {
 	/*
 	 * Rich: It might be a nice addition to have some syntax that allowed a
 	 * proxy arg to be "optional", that is, don't fail if not present, just
-	 * return the empty string or a given default. But I don't see anything in
-	 * the spec that supports this kind of construct. Notionally, it might look
-	 * like {?host:google.com} would return the value of the URL parameter
-	 * "?hostProxyArg=somehost.com" if defined, but if not defined, return
-	 * "google.com". Similarly, {?host} could return the value of hostProxyArg
-	 * or empty string if not present. But that's not how the spec works. So for
-	 * now we will require a proxy arg to be present if defined for this proxy
-	 * URL.
+	 * return the empty string or a given default.
+	 * Now {host=google.com} uses "google.com" if the host parameter is not
+	 * given, and the variables of expressions with an operator, e.g. {?host}
+	 * or {/path}, are optional as in the spec. A plain {host} is required.
 	 */
 	protected static final String P_TARGET_URI = "targetUri";
 	
 	public static final String P_DOMAIN = "domain";
 	protected String doDomain = "localhost";
 	
-	protected static final Pattern TEMPLATE_PATTERN = Pattern.compile("\\{(.+?)\\}");
 	protected static final String ATTR_QUERY_STRING = URITemplateProxyServlet.class.getSimpleName() + ".queryString";
 
 	protected String templateUri;// has {name} parts
+	protected URITemplate template;
 
 	@Override
 	protected void createProxyClient() {
@@ -81,6 +70,12 @@ public class URITemplateProxyServlet extends AbstractProxyServlet {
 		if (templateUri == null)
 			throw new ServletException(P_TARGET_URI + " is required.");
 		
+		try {
+			template = new URITemplate(templateUri);
+		} catch (IllegalArgumentException e) {
+			throw new ServletException(P_TARGET_URI + " is not a valid template: " + e.getMessage(), e);
+		}
+		
 		String doDomainStr = getConfigParam(P_DOMAIN);
 		if (doDomainStr != null)
 			doDomain = doDomainStr;
@@ -103,74 +98,83 @@ public class URITemplateProxyServlet extends AbstractProxyServlet {
 		 * proxy parameters in the query string and not have to add them to a
 		 * URL encoded form attachment.
 		 */
-		String requestQueryString = servletRequest.getQueryString();
-		String queryString = "";
-		if (requestQueryString != null)
-			queryString = "?" + requestQueryString;//no "?" but might have "#"
-
-		int hash = queryString.indexOf('#');
-		if (hash >= 0) {
-			queryString = queryString.substring(0, hash);
-		}
-		List<NameValuePair> pairs;
-		try {
-			// note: HttpClient 4.2 lets you parse the string without building
-			// the URI
-			pairs = URLEncodedUtils.parse(new URI(queryString), "UTF-8");
-		} catch (URISyntaxException e) {
-			throw new ServletException("Unexpected URI parsing error on " + queryString, e);
-		}
-		LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
-		for (NameValuePair pair : pairs) {
-			params.put(pair.getName(), pair.getValue());
-		}
+		String queryString = servletRequest.getQueryString();
+		String[] values = new String[template.getVariableCount()];
+		String newQueryString = parseQueryString(queryString, values);
 
 		// Now rewrite the URL
-		StringBuffer urlBuf = new StringBuffer();// note: StringBuilder isn't
-													// supported by Matcher
-		Matcher matcher = TEMPLATE_PATTERN.matcher(templateUri);
-		while (matcher.find()) {
-			String arg = matcher.group(1);
-			String replacement = params.remove(arg);// note we remove
-			if (replacement == null) {
-				if (oldTargetUri==null)
-					throw new ServletException("Missing HTTP parameter " + arg + " to fill the template");
-				else
-					return false;
-			}
-			matcher.appendReplacement(urlBuf, replacement);
+		String temporaryTargetUri = template.expand(values);
+		if (temporaryTargetUri == null) {
+			if (oldTargetUri==null)
+				throw new ServletException("Missing HTTP parameter " + template.getMissingVariable(values) + " to fill the template");
+			else
+				return false;
 		}
-		matcher.appendTail(urlBuf);
-		
-		String temporaryTargetUri = urlBuf.toString();
-		URI temporaryTargetUriObj = null;
-		try {
-			temporaryTargetUriObj = new URI(temporaryTargetUri);
-		} catch (Exception e) {
-			throw new ServletException("Rewritten targetUri is invalid: " + temporaryTargetUri, e);
+		ProxyTarget target = getTarget(temporaryTargetUri);
+		if (!target.isAllowed()) {
+			servletResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return true;
 		}
 
-		// Determine the new query string based on removing the used names
-		StringBuilder newQueryBuf = new StringBuilder(queryString.length());
-		for (Map.Entry<String, String> nameVal : params.entrySet()) {
-			if (newQueryBuf.length() > 0)
-				newQueryBuf.append('&');
-			newQueryBuf.append(nameVal.getKey()).append('=');
-			if (nameVal.getValue() != null)
-				newQueryBuf.append(nameVal.getValue());
-		}
-		servletRequest.setAttribute(ATTR_QUERY_STRING, newQueryBuf.toString());
+		servletRequest.setAttribute(ATTR_QUERY_STRING, newQueryString);
 		
 		TargetUriCookie.set(servletRequest, servletResponse, doDomain, temporaryTargetUri);
 		// TODO: replaceFirst("uri")
 		String pathInfo = servletRequest.getPathInfo();
 		if (pathInfo!=null)
 			pathInfo = servletRequest.getPathInfo().replace("uri", "");
-		doService(servletRequest, servletResponse, temporaryTargetUri, temporaryTargetUriObj, pathInfo, new MutableBoolean(true), null, false, null, null);
+		doService(servletRequest, servletResponse, temporaryTargetUri, target.getUriObj(), pathInfo, new MutableBoolean(true), null, false, null, null);
 		
 		return true;
 	}
 
+	/**
+	 * Parses the query string in one pass: the decoded values of the
+	 * template variables are stored in {@code values} (the last one if
+	 * repeated), the other parameters are returned as they are, in order.
+	 * A fragment is ignored.
+	 */
+	protected String parseQueryString(String queryString, String[] values) {
+		if (queryString == null)
+			return "";
+		int end = queryString.indexOf('#');
+		if (end < 0)
+			end = queryString.length();
+
+		StringBuilder newQuery = null;
+		int start = 0;
+		while (start < end) {
+			int next = queryString.indexOf('&', start);
+			if (next < 0 || next > end)
+				next = end;
+			int equals = queryString.indexOf('=', start);
+			int nameEnd = equals >= 0 && equals < next ? equals : next;
+			int index = template.indexOf(queryString, start, nameEnd);
+			if (index < 0 && queryString.lastIndexOf('%', nameEnd - 1) >= start)
+				index = template.indexOf(URITemplate.decode(queryString, start, nameEnd));
+			if (index >= 0) {
+				values[index] = nameEnd < next ? URITemplate.decode(queryString, nameEnd + 1, next) : null;
+			} else if (next > start) {
+				if (newQuery == null)
+					newQuery = new StringBuilder(end - start);
+				else
+					newQuery.append('&');
+				newQuery.append(queryString, start, next);
+			}
+			start = next + 1;
+		}
+		return newQuery != null ? newQuery.toString() : "";
+	}
+
+	/** The target of an expanded template or of the cookie, parsed once (see {@link ProxyTargets}). */
+	protected ProxyTarget getTarget(String targetUri) throws ServletException {
+		try {
+			return proxyClient.getTargets().get(targetUri);
+		} catch (Exception e) {
+			throw new ServletException("Rewritten targetUri is invalid: " + targetUri, e);
+		}
+	}
+
 	@Override
 	protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws ServletException, IOException {
 		String temporaryTargetUri = TargetUriCookie.get(servletRequest);
@@ -180,15 +184,14 @@ public class URITemplateProxyServlet extends AbstractProxyServlet {
 			executed = execute(servletRequest, servletResponse, temporaryTargetUri);
 		}
 		if (!executed) {
-			URI temporaryTargetUriObj = null;
-			try {
-				temporaryTargetUriObj = new URI(temporaryTargetUri);
-			} catch (Exception e) {
-				throw new ServletException("Rewritten targetUri is invalid: " + temporaryTargetUri, e);
+			ProxyTarget target = getTarget(temporaryTargetUri);
+			if (!target.isAllowed()) {
+				servletResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+				return;
 			}
 			TargetUriCookie.set(servletRequest, servletResponse, doDomain, temporaryTargetUri);
 			servletRequest.setAttribute(ATTR_QUERY_STRING, servletRequest.getQueryString());
-			doService(servletRequest, servletResponse, temporaryTargetUri, temporaryTargetUriObj, servletRequest.getPathInfo(), new MutableBoolean(true), null, false, null, null);
+			doService(servletRequest, servletResponse, temporaryTargetUri, target.getUriObj(), servletRequest.getPathInfo(), new MutableBoolean(true), null, false, null, null);
 		}
 	}
 }
@@ -0,0 +1,102 @@
+package servlet.web.proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * What the URL rewriting needs to know about a target URI and a servlet
+ * mapping, computed once instead of on every request and Location header:
+ * the path prefix of the {@code urlPattern} and the sizes of the URLs to
+ * build.
+ */
+public class UrlRewritePlan {
+	protected final String targetUri;
+	protected final String urlPattern;
+	/** {@code urlPattern} without the wildcard, e.g. {@code /api} for {@code /api/*}. */
+	protected final String patternPrefix;
+
+	public UrlRewritePlan(String targetUri, String urlPattern) {
+		super();
+		this.targetUri = targetUri;
+		this.urlPattern = urlPattern;
+		patternPrefix = urlPattern != null ? urlPattern.replace("/*", "") : "";
+	}
+
+	/** Whether the plan is the one of {@code targetUri} and {@code urlPattern}. */
+	public boolean matches(String targetUri, String urlPattern) {
+		return (this.targetUri == targetUri || this.targetUri.equals(targetUri))
+				&& (this.urlPattern == urlPattern || this.urlPattern != null && this.urlPattern.equals(urlPattern));
+	}
+
+	public String getTargetUri() {
+		return targetUri;
+	}
+
+	public String getPatternPrefix() {
+		return patternPrefix;
+	}
+
+	/**
+	 * A builder starting with the target URI, large enough for the path and
+	 * the query of {@code servletRequest} (plus a few escapes).
+	 */
+	public StringBuilder newRequestUri(HttpServletRequest servletRequest) {
+		String pathInfo = servletRequest.getPathInfo();
+		String queryString = servletRequest.getQueryString();
+		int capacity = targetUri.length() + 32 + (pathInfo != null ? pathInfo.length() : 0)
+				+ (queryString != null ? queryString.length() : 0);
+		return new StringBuilder(capacity).append(targetUri);
+	}
+
+	/**
+	 * Index in the path info of the request of the path to append to the
+	 * target URI, i.e. after the prefix of the {@code urlPattern}.
+	 */
+	public int getPathInfoStart() {
+		return patternPrefix.length();
+	}
+
+	/**
+	 * For a redirect response from the target server, translates
+	 * {@code theUrl} to one the original client can use: a URL pointing to
+	 * the target is rewritten to point to this servlet.
+	 */
+	public String rewriteUrlFromResponse(HttpServletRequest servletRequest, String theUrl,
+			boolean withRequestPathInfo) {
+		if (!theUrl.startsWith(targetUri))
+			return theUrl;
+
+		/*-
+		 * The URL points back to the back-end server.
+		 * Instead of returning it verbatim we replace the target path with our
+		 * source path in a way that should instruct the original client to
+		 * request the URL pointed through this Proxy.
+		 * The scheme and authority are the ones of the current request (as in
+		 * its getRequestURL()), followed by this servlet's path and the path
+		 * from the returned URL after the base target URL.
+		 */
+		String scheme = servletRequest.getScheme();
+		String serverName = servletRequest.getServerName();
+		String contextPath = servletRequest.getContextPath();
+		String servletPath = servletRequest.getServletPath();
+		StringBuilder url = new StringBuilder(scheme.length() + serverName.length() + contextPath.length()
+				+ servletPath.length() + patternPrefix.length() + theUrl.length() - targetUri.length() + 16);
+		url.append(scheme).append("://");
+		if (serverName.indexOf(':') >= 0 && serverName.charAt(0) != '[')
+			url.append('[').append(serverName).append(']');// IPv6
+		else
+			url.append(serverName);
+		int port = servletRequest.getServerPort();
+		if (port > 0 && !(port == 80 && "http".equalsIgnoreCase(scheme))
+				&& !(port == 443 && "https".equalsIgnoreCase(scheme)))
+			url.append(':').append(port);
+		// Context path starts with a / if it is not blank
+		url.append(contextPath);
+		// Servlet path starts with a / if it is not blank
+		url.append(servletPath);
+		// Added by David A. Bauer, handles urlPattern, if given
+		if (servletRequest.getPathInfo() != null && withRequestPathInfo)
+			url.append(patternPrefix);
+		url.append(theUrl, targetUri.length(), theUrl.length());
+		return url.toString();
+	}
+}
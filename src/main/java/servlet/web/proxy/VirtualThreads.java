@@ -0,0 +1,48 @@
+package servlet.web.proxy;
+
+import static servlet.web.proxy.ProxyLogger.logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads (JDK 21+) while building against Java 8. The
+ * executor is looked up reflectively, so no multi-release JAR is needed.
+ */
+public final class VirtualThreads {
+	private VirtualThreads() {
+		super();
+	}
+
+	/** Whether the running JVM supports virtual threads. */
+	public static boolean isSupported() {
+		return lookup() != null;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task, or
+	 * returns {@code null} if the running JVM doesn't support virtual threads.
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		ExecutorService result = null;
+
+		Method method = lookup();
+		if (method != null) {
+			try {
+				result = (ExecutorService) method.invoke(null);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				logger().info("Virtual threads are not available: " + e, e);
+			}
+		}
+
+		return result;
+	}
+
+	private static Method lookup() {
+		try {
+			return Class.forName("java.util.concurrent.Executors").getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -7,7 +7,23 @@ import org.junit.runner.RunWith;
 @Suite.SuiteClasses({
 	ProxyServletTest.class,
 	ModifyHeadersProxyServletTest.class,
-	URITemplateProxyServletTest.class
+	URITemplateProxyServletTest.class,
+	ContentFilterProxyServletTest.class,
+	AsyncProxyServletTest.class,
+	LatencyHistogramTest.class,
+	ResponseCacheProxyServletTest.class,
+	RequestCoalescerTest.class,
+	URITemplateTest.class,
+	ProxyTargetsTest.class,
+	ReplayableRequestEntityTest.class,
+	RetryProxyServletTest.class,
+	LoadBalancerTest.class,
+	CircuitBreakerTest.class,
+	ConcurrencyLimiterTest.class,
+	ResponseCompressorTest.class,
+	ContentDecompressionProxyServletTest.class,
+	Http2ClientTest.class,
+	ConnectionPoolTest.class
 })
 public class AllTests {
 
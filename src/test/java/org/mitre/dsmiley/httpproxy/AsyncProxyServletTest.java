@@ -0,0 +1,214 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import servlet.web.proxy.ProxyServlet;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests the async mode in a servlet 3.1 container (httpunit doesn't support async)
+ */
+public class AsyncProxyServletTest {
+  protected LocalTestServer localTestServer;
+  protected Server server;
+  protected CloseableHttpClient client;
+  protected String sourceBaseUri;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/targetPath*", new ProxyServletTest.RequestInfoHandler());
+
+    client = HttpClients.createDefault();
+    startProxy(ProxyServlet.class, ProxyServlet.P_ASYNC);
+  }
+
+  protected void startProxy(Class<? extends ProxyServlet> servletClass, String modeParam, String... params) throws Exception {
+    if (server != null)
+      server.stop();
+    server = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/");
+    ServletHolder holder = new ServletHolder(servletClass);
+    holder.setAsyncSupported(true);
+    holder.setInitParameter(modeParam, "true");
+    holder.setInitParameter(ProxyServlet.P_LOG, "true");
+    for (int i = 0; i < params.length; i += 2)
+      holder.setInitParameter(params[i], params[i + 1]);
+    holder.setInitParameter("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    context.addServlet(holder, "/proxyMe/*");
+    server.setHandler(context);
+    server.start();
+
+    sourceBaseUri = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/proxyMe";
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.stop();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    try (CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri + "/p?q=v"))) {
+      assertEquals(200, rsp.getStatusLine().getStatusCode());
+      assertTrue(EntityUtils.toString(rsp.getEntity()).startsWith("REQUESTLINE: GET /targetPath/p?q=v HTTP/1.1"));
+    }
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    HttpPost post = new HttpPost(sourceBaseUri + "/p");
+    post.setEntity(new StringEntity("some body"));
+    try (CloseableHttpResponse rsp = client.execute(post)) {
+      assertEquals(200, rsp.getStatusLine().getStatusCode());
+      String text = EntityUtils.toString(rsp.getEntity());
+      assertTrue(text.startsWith("REQUESTLINE: POST /targetPath/p HTTP/1.1"));
+      assertTrue(text.endsWith("some body"));
+    }
+  }
+
+  @Test
+  public void testExecutor() throws Exception {
+    startProxy(ExecutorProxyServlet.class, ProxyServlet.P_VIRTUAL_THREADS);
+    testGet();
+    testPost();
+    assertTrue(ExecutorProxyServlet.executed.get() >= 2);
+  }
+
+  @Test
+  public void testLargeBody() throws Exception {
+    final byte[] body = new byte[4 * 1024 * 1024 + 3];
+    for (int i = 0; i < body.length; i++)
+      body[i] = (byte) i;
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setChunked(true);
+        response.setEntity(entity);
+      }
+    });
+
+    try (CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri))) {
+      assertEquals(200, rsp.getStatusLine().getStatusCode());
+      HttpEntity entity = rsp.getEntity();
+      assertTrue(Arrays.equals(body, EntityUtils.toByteArray(entity)));
+    }
+  }
+
+  @Test
+  public void testLargeRequestBody() throws Exception {
+    final byte[] body = new byte[3 * 1024 * 1024 + 5];
+    for (int i = 0; i < body.length; i++)
+      body[i] = (byte) (i * 7);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        byte[] received = EntityUtils.toByteArray(entity);
+        response.setEntity(new StringEntity((Arrays.equals(body, received) ? "same" : "different " + received.length)
+            + (request.containsHeader("Transfer-Encoding") ? " chunked" : "")));
+      }
+    });
+
+    for (boolean chunked : new boolean[] { false, true }) {
+      HttpPost post = new HttpPost(sourceBaseUri + "/p");
+      ByteArrayEntity entity = new ByteArrayEntity(body);
+      entity.setChunked(chunked);
+      post.setEntity(entity);
+      try (CloseableHttpResponse rsp = client.execute(post)) {
+        assertEquals(200, rsp.getStatusLine().getStatusCode());
+        assertEquals(chunked ? "same chunked" : "same", EntityUtils.toString(rsp.getEntity()));
+      }
+    }
+  }
+
+  @Test
+  public void testServerErrorsOpenCircuit() throws Exception {
+    startProxy(ProxyServlet.class, ProxyServlet.P_ASYNC, ProxyServlet.P_CIRCUIT_BREAKER, "true",
+        ProxyServlet.P_CIRCUIT_BREAKER_MINIMUM_CALLS, "4");
+    final AtomicInteger received = new AtomicInteger();
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        received.incrementAndGet();
+        response.setStatusCode(HttpStatus.SC_BAD_GATEWAY);
+      }
+    });
+
+    for (int i = 0; i < 4; i++)
+      try (CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri + "/p"))) {
+        assertEquals(HttpStatus.SC_BAD_GATEWAY, rsp.getStatusLine().getStatusCode());
+      }
+    try (CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri + "/p"))) {
+      assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getStatusLine().getStatusCode());
+    }
+    assertEquals(4, received.get());
+  }
+
+  /** Uses platform threads, so the dispatch can be tested on any JDK. */
+  @SuppressWarnings({ "serial" })
+  public static class ExecutorProxyServlet extends ProxyServlet {
+    static final AtomicInteger executed = new AtomicInteger();
+
+    @Override
+    protected ExecutorService createExecutor() {
+      return new ThreadPoolExecutor(0, 4, 1, TimeUnit.SECONDS, new SynchronousQueue<Runnable>()) {
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+          executed.incrementAndGet();
+        }
+      };
+    }
+  }
+}
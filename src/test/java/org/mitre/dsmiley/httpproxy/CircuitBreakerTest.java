@@ -0,0 +1,226 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.CircuitBreaker;
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.ProxyTarget;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests {@link CircuitBreaker} and the health checks
+ */
+public class CircuitBreakerTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+  private volatile int healthStatus = HttpStatus.SC_OK;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setEntity(new StringEntity("live"));
+      }
+    });
+    localTestServer.register("/health", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setStatusCode(healthStatus);
+      }
+    });
+    localTestServer.start();
+    servletRunner = new ServletRunner();
+    sc = servletRunner.newClient();
+    sc.setExceptionsThrownOnErrorStatus(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testStates() throws Exception {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(new CircuitBreaker.Config(10, 4, 0.5, 1000, 2, 50, 2), "test");
+    for (int i = 0; i < 3; i++) {
+      assertTrue(circuitBreaker.tryAcquire());
+      circuitBreaker.onResult(i != 0, 0);
+    }
+    assertEquals(CircuitBreaker.CLOSED, circuitBreaker.getState());
+    assertTrue(circuitBreaker.tryAcquire());
+    circuitBreaker.onResult(false, 0);
+    assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+    assertFalse(circuitBreaker.tryAcquire());
+    assertEquals(1, circuitBreaker.getRejected());
+
+    // half-open, a failed trial opens it again
+    Thread.sleep(60);
+    assertTrue(circuitBreaker.tryAcquire());
+    assertEquals(CircuitBreaker.HALF_OPEN, circuitBreaker.getState());
+    circuitBreaker.onResult(false, 0);
+    assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+
+    // the trials succeed
+    Thread.sleep(60);
+    assertTrue(circuitBreaker.tryAcquire());
+    assertTrue(circuitBreaker.tryAcquire());
+    assertFalse(circuitBreaker.tryAcquire());
+    circuitBreaker.onResult(true, 0);
+    circuitBreaker.onResult(true, 0);
+    assertEquals(CircuitBreaker.CLOSED, circuitBreaker.getState());
+    assertEquals(0, circuitBreaker.getCalls());
+  }
+
+  @Test
+  public void testCancelledTrial() throws Exception {
+    final CircuitBreaker circuitBreaker = new CircuitBreaker(new CircuitBreaker.Config(10, 1, 0.5, 1000, 2, 50, 1), "test");
+    circuitBreaker.onResult(false, 0);
+    Thread.sleep(60);
+    assertTrue(circuitBreaker.tryAcquire());
+    assertEquals(CircuitBreaker.HALF_OPEN, circuitBreaker.getState());
+
+    // rejected while the trial is in flight
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 100; j++)
+            assertFalse(circuitBreaker.tryAcquire());
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(400, circuitBreaker.getRejected());
+
+    // the trial is cancelled, the next request is a trial again
+    circuitBreaker.release();
+    assertTrue(circuitBreaker.isAvailable());
+    assertTrue(circuitBreaker.tryAcquire());
+    circuitBreaker.onResult(true, 0);
+    assertEquals(CircuitBreaker.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testSlowCalls() throws Exception {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(new CircuitBreaker.Config(10, 4, 0.5, 1000, 0.5, 50, 2), "test");
+    for (int i = 0; i < 4; i++)
+      circuitBreaker.onResult(true, i % 2 == 0 ? 2000000000L : 0);
+    assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testFailFast() throws Exception {
+    register("/closed/*", closedUri());
+
+    for (int i = 0; i < 4; i++) {
+      try {
+        sc.getResponse("http://localhost/closed/a");
+      } catch (IOException e) {
+        // connection refused
+      }
+    }
+    WebResponse rsp = sc.getResponse("http://localhost/closed/a");
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getResponseCode());
+    assertTrue(Integer.parseInt(rsp.getHeaderField("Retry-After")) > 0);
+  }
+
+  @Test
+  public void testRouteElsewhere() throws Exception {
+    register("/balanced/*", closedUri() + " " + liveUri());
+
+    int live = 0;
+    for (int i = 0; i < 20; i++) {
+      try {
+        WebResponse rsp = sc.getResponse("http://localhost/balanced/a");
+        if (rsp.getResponseCode() == HttpStatus.SC_OK)
+          live++;
+      } catch (IOException e) {
+        // connection refused
+      }
+    }
+    // the closed target fails the first 2 times of the minimum calls
+    assertTrue(live >= 16);
+  }
+
+  @Test
+  public void testHealthCheck() throws Exception {
+    Properties servletProps = register("/checked/*", liveUri());
+    servletProps.setProperty(ProxyServlet.P_HEALTH_CHECK_PATH, "/health");
+    servletProps.setProperty(ProxyServlet.P_HEALTH_CHECK_INTERVAL, "100000");
+    servletRunner.registerServlet("/checked/*", ProxyServlet.class.getName(), servletProps);
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/checked/a").getServlet();
+    ProxyTarget target = servlet.getProxyClient().getTargets().values().iterator().next();
+
+    healthStatus = HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    servlet.getProxyClient().getHealthChecker().checkAll();
+    assertEquals(CircuitBreaker.OPEN, target.getCircuitBreaker().getState());
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, sc.getResponse("http://localhost/checked/a").getResponseCode());
+
+    healthStatus = HttpStatus.SC_OK;
+    servlet.getProxyClient().getHealthChecker().checkAll();
+    assertEquals(CircuitBreaker.HALF_OPEN, target.getCircuitBreaker().getState());
+    assertEquals("live", sc.getResponse("http://localhost/checked/a").getText());
+  }
+
+  private Properties register(String pattern, String targetUri) {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", targetUri);
+    servletProps.setProperty(ProxyServlet.P_CIRCUIT_BREAKER, "true");
+    servletProps.setProperty(ProxyServlet.P_CIRCUIT_BREAKER_MINIMUM_CALLS, "4");
+    servletRunner.registerServlet(pattern, ProxyServlet.class.getName(), servletProps);
+    return servletProps;
+  }
+
+  private String liveUri() {
+    return "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath";
+  }
+
+  private static String closedUri() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return "http://localhost:" + socket.getLocalPort() + "/targetPath";
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.ConcurrencyLimiter;
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.ServiceUnavailableException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests {@link ConcurrencyLimiter}
+ */
+public class ConcurrencyLimiterTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setEntity(new StringEntity("live"));
+      }
+    });
+    localTestServer.start();
+    servletRunner = new ServletRunner();
+    sc = servletRunner.newClient();
+    sc.setExceptionsThrownOnErrorStatus(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testAimd() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Config(4, 1, 8, 1000, 0.5, 0, 0));
+    assertEquals(4, limiter.getLimit());
+
+    // the limit grows by one per window of requests while it is used
+    for (int i = 0; i < 4; i++)
+      assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    for (int i = 0; i < 4; i++)
+      limiter.onResult(true, 0);
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(4, limiter.getLimit());
+    for (int i = 0; i < 8; i++) {
+      assertTrue(limiter.tryAcquire());
+      assertTrue(limiter.tryAcquire());
+      assertTrue(limiter.tryAcquire());
+      limiter.onResult(true, 0);
+      limiter.onResult(true, 0);
+      limiter.onResult(true, 0);
+    }
+    assertEquals(6, limiter.getLimit());
+
+    // a failure or a slow request halves it
+    assertTrue(limiter.tryAcquire());
+    limiter.onResult(false, 0);
+    assertEquals(3, limiter.getLimit());
+    assertTrue(limiter.tryAcquire());
+    limiter.onResult(false, 0);
+    assertEquals(1, limiter.getLimit());
+    assertTrue(limiter.tryAcquire());
+    limiter.onResult(false, 0);
+    assertEquals(1, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testBackoffOncePerWindow() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Config(8, 1, 8, 1000, 0.5, 0, 0));
+    for (int i = 0; i < 4; i++)
+      assertTrue(limiter.tryAcquire());
+    Thread.sleep(20);
+    long sent = System.nanoTime();
+
+    // the first failure of the window backs off, the others were sent before it
+    limiter.onResult(false, System.nanoTime() - sent);
+    assertEquals(4, limiter.getLimit());
+    limiter.onResult(false, System.nanoTime() - sent);
+    limiter.onResult(true, TimeUnit.SECONDS.toNanos(2));
+    assertEquals(4, limiter.getLimit());
+
+    // a request sent after the decrease backs off again
+    Thread.sleep(20);
+    limiter.onResult(false, 0);
+    assertEquals(2, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testShed() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Config(1, 1, 1, 1000, 0.9, 50, 1));
+    limiter.acquire();
+    long start = System.nanoTime();
+    try {
+      limiter.acquire();
+      fail();
+    } catch (ServiceUnavailableException e) {
+      assertTrue(e.getRetryAfterSeconds() > 0);
+    }
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(1, limiter.getRejected());
+    assertEquals(1, limiter.getQueued());
+  }
+
+  @Test
+  public void testQueue() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Config(1, 1, 1, 1000, 0.9, 5000, 1));
+    limiter.acquire();
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        limiter.onResult(true, 0);
+      }
+    };
+    releaser.start();
+    long start = System.nanoTime();
+    limiter.acquire();
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(5000));
+    assertEquals(1, limiter.getInFlight());
+    assertEquals(1, limiter.getQueued());
+    assertEquals(0, limiter.getRejected());
+    releaser.join();
+  }
+
+  @Test
+  public void testServlet() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT, "true");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT_INITIAL, "1");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT_MAX, "1");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT_MAX_WAIT, "0");
+    servletRunner.registerServlet("/limited/*", ProxyServlet.class.getName(), servletProps);
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/limited/a").getServlet();
+
+    assertEquals("live", sc.getResponse("http://localhost/limited/a").getText());
+    ConcurrencyLimiter limiter = servlet.getProxyClient().getTargets().values().iterator().next().getConcurrencyLimiter();
+    assertEquals(0, limiter.getInFlight());
+
+    // the slot is taken, the request is shed
+    assertTrue(limiter.tryAcquire());
+    WebResponse rsp = sc.getResponse("http://localhost/limited/a");
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getResponseCode());
+    assertEquals("1", rsp.getHeaderField("Retry-After"));
+    assertEquals(1, servlet.getProxyClient().getConcurrencyLimitStats().getRejected());
+    assertEquals(1, servlet.getProxyClient().getConcurrencyLimitStats().getLimits().length);
+  }
+
+  @Test
+  public void testSlowBody() throws Exception {
+    localTestServer.register("/slowBody*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        // the headers and the first half are sent at once, the rest late
+        response.setEntity(new InputStreamEntity(new InputStream() {
+          private int count;
+
+          @Override
+          public int read() throws IOException {
+            if (count == 10000) {
+              try {
+                Thread.sleep(300);
+              } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+              }
+            }
+            return count++ < 20000 ? 'a' : -1;
+          }
+        }));
+      }
+    });
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/slowBody");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT, "true");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT_INITIAL, "4");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT_TIMEOUT, "100");
+    servletRunner.registerServlet("/slowBody/*", ProxyServlet.class.getName(), servletProps);
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/slowBody/a").getServlet();
+
+    assertEquals(20000, sc.getResponse("http://localhost/slowBody/a").getText().length());
+    // the time to the end of the body counts, not only to the headers
+    ConcurrencyLimiter limiter = servlet.getProxyClient().getTargets().values().iterator().next().getConcurrencyLimiter();
+    assertEquals(0, limiter.getInFlight());
+    assertTrue(limiter.getLimit() < 4);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.ConnectionPoolStats;
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.SharedConnectionManagers;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests the connection pools of the proxy servlets, shared with
+ * {@link SharedConnectionManagers} by {@link AbstractProxyServlet#P_CONNECTION_POOL},
+ * and their {@link ConnectionPoolStats}
+ */
+public class ConnectionPoolTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setEntity(new StringEntity("pooled"));
+      }
+    });
+    localTestServer.start();
+    servletRunner = new ServletRunner();
+    sc = servletRunner.newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testSharedPool() throws Exception {
+    // the first servlet initialized configures the pool
+    register("/a/*", "testSharedPool", "7", "3");
+    register("/b/*", "testSharedPool", "50", "20");
+    register("/own/*", null, "7", "3");
+    AbstractProxyServlet a = servlet("/a");
+    AbstractProxyServlet b = servlet("/b");
+
+    PoolingHttpClientConnectionManager pool = a.getProxyClient().getConnectionManager();
+    assertSame(pool, b.getProxyClient().getConnectionManager());
+    assertNotSame(pool, servlet("/own").getProxyClient().getConnectionManager());
+    assertEquals(7, pool.getMaxTotal());
+    assertEquals(3, pool.getDefaultMaxPerRoute());
+    assertEquals("pooled", sc.getResponse("http://localhost/a/x").getText());
+    assertEquals("pooled", sc.getResponse("http://localhost/b/x").getText());
+
+    // still used by b
+    a.destroy();
+    assertEquals("pooled", sc.getResponse("http://localhost/b/x").getText());
+    assertEquals(1, pool.getTotalStats().getAvailable());
+
+    b.destroy();
+    try {
+      pool.requestConnection(new HttpRoute(new HttpHost("localhost", localTestServer.getServiceAddress().getPort())), null);
+      fail("the pool is still open");
+    } catch (IllegalStateException e) {
+      // shut down
+    }
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    register("/stats/*", null, "7", "3");
+    final ConnectionPoolStats stats = servlet("/stats").getProxyClient().getConnectionPoolStats();
+    final AtomicInteger leasedWhileServing = new AtomicInteger(-1);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        leasedWhileServing.set(stats.getLeased());
+        response.setEntity(new StringEntity("pooled"));
+      }
+    });
+
+    for (int i = 0; i < 3; i++)
+      assertEquals("pooled", sc.getResponse("http://localhost/stats/x").getText());
+    assertEquals(1, leasedWhileServing.get());
+    // the connection is kept alive and reused
+    assertEquals(0, stats.getLeased());
+    assertEquals(1, stats.getAvailable());
+    assertEquals(0, stats.getPending());
+    assertEquals(7, stats.getMax());
+    assertEquals(1, stats.getRouteStats().length);
+    assertEquals(3, stats.getLeaseTimeHistogram().snapshot().getCount());
+    assertEquals(1, stats.getConnectTimeHistogram().snapshot().getCount());
+    assertEquals(3, stats.getTimeToFirstByteHistogram().snapshot().getCount());
+    assertTrue(stats.getTimeToFirstByteP99() > 0);
+
+    stats.resetLatencies();
+    assertEquals(0, stats.getLeaseTimeHistogram().snapshot().getCount());
+  }
+
+  private void register(String pattern, String connectionPool, String maxConnections, String maxConnectionsPerRoute) {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    if (connectionPool != null)
+      servletProps.setProperty(ProxyServlet.P_CONNECTION_POOL, connectionPool);
+    servletProps.setProperty(ProxyServlet.P_MAX_TOTAL_CONNECTIONS, maxConnections);
+    servletProps.setProperty(ProxyServlet.P_MAX_CONNECTIONS_PER_ROUTE, maxConnectionsPerRoute);
+    servletRunner.registerServlet(pattern, ProxyServlet.class.getName(), servletProps);
+  }
+
+  private AbstractProxyServlet servlet(String path) throws Exception {
+    return (AbstractProxyServlet) sc.newInvocation("http://localhost" + path).getServlet();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.ProxyServlet;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * tests the pass-through of compressed bodies enabled by
+ * {@link AbstractProxyServlet#P_CONTENT_DECOMPRESSION}
+ */
+public class ContentDecompressionProxyServletTest {
+
+  private static final String SCRIPT;
+  private static final String PAGE;
+  static {
+    StringBuilder script = new StringBuilder();
+    StringBuilder page = new StringBuilder("<html><body>");
+    for (int i = 0; i < 1000; i++) {
+      script.append("var v").append(i).append(" = ").append(i).append(";\n");
+      page.append("<a href=\"").append(ContentFilterProxyServletTest.ContentFilterProxyServlet.TOKEN).append("/").append(i).append("\">link</a>");
+    }
+    SCRIPT = script.toString();
+    PAGE = page.append("</body></html>").toString();
+  }
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+  private byte[] gzippedScript;
+
+  @Before
+  public void setUp() throws Exception {
+    gzippedScript = gzip(SCRIPT);
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/targetPath/app.js", handler(gzippedScript, "application/javascript"));
+    localTestServer.register("/targetPath/page", handler(gzip(PAGE), "text/html"));
+    localTestServer.start();
+
+    servletRunner = new ServletRunner();
+    register("/proxyMe/*", ProxyServlet.class.getName());
+    register("/filtered/*", ContentFilterProxyServletTest.ContentFilterProxyServlet.class.getName());
+    sc = servletRunner.newClient();
+    sc.setExceptionsThrownOnErrorStatus(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testPassThrough() throws Exception {
+    WebResponse rsp = sc.getResponse(get("/proxyMe/app.js", "gzip"));
+    assertEquals("gzip", rsp.getHeaderField("Content-Encoding"));
+    assertEquals(String.valueOf(gzippedScript.length), rsp.getHeaderField("Content-Length"));
+    assertEquals("\"v1\"", rsp.getHeaderField("ETag"));
+    assertEquals(SCRIPT, rsp.getText());
+  }
+
+  @Test
+  public void testFilterRecompressed() throws Exception {
+    String expected = PAGE.replace(ContentFilterProxyServletTest.ContentFilterProxyServlet.TOKEN,
+        ContentFilterProxyServletTest.ContentFilterProxyServlet.REPLACEMENT);
+
+    WebResponse rsp = sc.getResponse(get("/filtered/page", "gzip"));
+    assertEquals("gzip", rsp.getHeaderField("Content-Encoding"));
+    assertNull(rsp.getHeaderField("Content-Length"));
+    assertEquals(expected, rsp.getText());
+
+    // the target compresses anyway, the proxy doesn't
+    rsp = sc.getResponse(get("/filtered/page", "identity"));
+    assertNull(rsp.getHeaderField("Content-Encoding"));
+    assertEquals(expected, rsp.getText());
+  }
+
+  private void register(String pattern, String servletClassName) {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_CONTENT_DECOMPRESSION, "false");
+    servletRunner.registerServlet(pattern, servletClassName, servletProps);
+  }
+
+  private static WebRequest get(String path, String acceptEncoding) {
+    WebRequest request = new GetMethodWebRequest("http://localhost" + path);
+    request.setHeaderField("Accept-Encoding", acceptEncoding);
+    return request;
+  }
+
+  private static byte[] gzip(String text) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(result)) {
+      out.write(text.getBytes("UTF-8"));
+    }
+    return result.toByteArray();
+  }
+
+  private static HttpRequestHandler handler(final byte[] body, final String contentType) {
+    return new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        ByteArrayEntity entity = new ByteArrayEntity(body, ContentType.create(contentType, "UTF-8"));
+        entity.setContentEncoding("gzip");
+        response.setEntity(entity);
+        response.setHeader("ETag", "\"v1\"");
+      }
+    };
+  }
+}
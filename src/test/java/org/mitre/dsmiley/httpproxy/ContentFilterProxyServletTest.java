@@ -0,0 +1,111 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.WebResponse;
+
+import servlet.web.proxy.ContentFilter;
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.TextTransformer;
+
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * tests the incremental {@link ContentFilter} applied to HTML content
+ */
+public class ContentFilterProxyServletTest extends ProxyServletTest {
+
+  @Override
+  public void setUp() throws Exception {
+    servletName = ContentFilterProxyServlet.class.getName();
+    super.setUp();
+  }
+
+  @Test
+  public void testFilterHtml() throws Exception {
+    // larger than a chunk, so tokens are split across chunks
+    final StringBuilder html = new StringBuilder("<html><body>");
+    final StringBuilder expected = new StringBuilder("<html><body>");
+    for (int i = 0; i < 5000; i++) {
+      html.append("<a href=\"").append(ContentFilterProxyServlet.TOKEN).append("/").append(i).append("\">ä</a>");
+      expected.append("<a href=\"").append(ContentFilterProxyServlet.REPLACEMENT).append("/").append(i).append("\">ä</a>");
+    }
+    html.append("</body></html>");
+    expected.append("</body></html>");
+
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setEntity(new StringEntity(html.toString(), ContentType.create("text/html", "UTF-8")));
+      }
+    });
+
+    WebResponse rsp = makeRequest();
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertNull(rsp.getHeaderField(HttpHeaders.CONTENT_LENGTH));
+    assertEquals(expected.toString(), rsp.getText());
+  }
+
+  private WebResponse makeRequest() throws Exception {
+    return servletRunner.newClient().getResponse(makeGetMethodRequest(sourceBaseUri));
+  }
+
+  @SuppressWarnings({ "serial" })
+  public static class ContentFilterProxyServlet extends ProxyServlet {
+    public static final String TOKEN = "http://backend";
+    public static final String REPLACEMENT = "/proxyMe";
+
+    protected final ContentFilter contentFilter = (servletRequest, charset, out) -> new TextTransformer(charset, out) {
+      @Override
+      protected void transform(CharBuffer in, boolean endOfInput, Writer out) throws IOException {
+        // hold back a possible prefix of the token
+        int end = endOfInput ? in.limit() : Math.max(in.position(), in.limit() - (TOKEN.length() - 1));
+        while (in.position() < end) {
+          if (in.remaining() >= TOKEN.length() && in.subSequence(0, TOKEN.length()).toString().equals(TOKEN)) {
+            out.write(REPLACEMENT);
+            in.position(in.position() + TOKEN.length());
+          } else
+            out.write(in.get());
+        }
+      }
+    };
+
+    @Override
+    protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws ServletException, IOException {
+      doFilteredService(servletRequest, servletResponse, targetUri, targetUriObj, servletRequest.getPathInfo(), new MutableBoolean(true), null, false, null, contentFilter);
+    }
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.PostMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.Http2Client;
+import servlet.web.proxy.ProxyServlet;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests the {@link Http2Client} enabled by {@link AbstractProxyServlet#P_HTTP2},
+ * against a target which only speaks HTTP/1.1 and one which upgrades to h2c
+ */
+public class Http2ClientTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(Http2Client.isSupported());
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        String body = request instanceof HttpEntityEnclosingRequest
+            ? EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()) : "";
+        response.setEntity(new StringEntity(request.getRequestLine().getMethod() + " "
+            + request.getRequestLine().getUri() + " " + request.getFirstHeader("X-Test").getValue() + " " + body));
+        response.setHeader("X-Target", "yes");
+        response.addHeader("Set-Cookie", "session=1; Path=/targetPath");
+        if (request.getRequestLine().getUri().contains("missing"))
+          response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+      }
+    });
+    localTestServer.register("/gzipped*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(body)) {
+          out.write("decoded body".getBytes("UTF-8"));
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(body.toByteArray());
+        entity.setContentType("text/plain");
+        response.setEntity(entity);
+        response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+      }
+    });
+    localTestServer.start();
+    servletRunner = new ServletRunner();
+    register("/proxyMe/*", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    sc = servletRunner.newClient();
+    sc.setExceptionsThrownOnErrorStatus(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (servletRunner != null)
+      servletRunner.shutDown();
+    if (localTestServer != null)
+      localTestServer.stop();
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/proxyMe").getServlet();
+    assertTrue(servlet.getProxyClient().getProxyClient() instanceof Http2Client);
+
+    for (int i = 0; i < 3; i++) {
+      WebRequest request = new GetMethodWebRequest("http://localhost/proxyMe/a/b");
+      request.setHeaderField("X-Test", "header");
+      WebResponse rsp = sc.getResponse(request);
+      assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+      assertEquals("GET /targetPath/a/b header ", rsp.getText());
+      assertEquals("yes", rsp.getHeaderField("X-Target"));
+      assertEquals("1", sc.getCookieValue("!Proxy!" + ProxyServlet.class.getName() + "session"));
+    }
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    WebRequest request = new PostMethodWebRequest("http://localhost/proxyMe/a",
+        new ByteArrayInputStream("body".getBytes("UTF-8")), "text/plain");
+    request.setHeaderField("X-Test", "header");
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals("POST /targetPath/a header body", rsp.getText());
+  }
+
+  @Test
+  public void testStatus() throws Exception {
+    WebRequest request = new GetMethodWebRequest("http://localhost/proxyMe/missing");
+    request.setHeaderField("X-Test", "header");
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(HttpStatus.SC_NOT_FOUND, rsp.getResponseCode());
+  }
+
+  @Test
+  public void testContentDecompression() throws Exception {
+    register("/gzipped/*", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/gzipped");
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/gzipped/a"));
+    assertEquals("decoded body", rsp.getText());
+    assertNull(rsp.getHeaderField(HttpHeaders.CONTENT_ENCODING));
+  }
+
+  @Test
+  public void testH2c() throws Exception {
+    try (H2cServer server = new H2cServer()) {
+      Http2Client client = new Http2Client(RequestConfig.DEFAULT);
+      try (CloseableHttpResponse rsp = client.execute(new HttpGet("http://localhost:" + server.getPort() + "/a"))) {
+        assertEquals(new ProtocolVersion("HTTP", 2, 0), rsp.getStatusLine().getProtocolVersion());
+        assertEquals("h2c body", EntityUtils.toString(rsp.getEntity()));
+      } finally {
+        client.close();
+      }
+
+      register("/h2c/*", "http://localhost:" + server.getPort() + "/targetPath");
+      for (int i = 0; i < 2; i++) {
+        WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/h2c/a"));
+        assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+        assertEquals("h2c body", rsp.getText());
+        assertEquals("h2c", rsp.getHeaderField("X-Target"));
+      }
+      assertTrue(server.upgrades.get() > 0);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testLegacyApi() throws Exception {
+    Http2Client client = new Http2Client(RequestConfig.DEFAULT);
+    assertNotNull(client.getParams());
+    assertNotNull(client.getConnectionManager().getSchemeRegistry());
+    client.getConnectionManager().closeIdleConnections(0, TimeUnit.SECONDS);
+    client.getConnectionManager().shutdown();
+  }
+
+  @Test
+  public void testConnectFailure() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    register("/closed/*", "http://localhost:" + port + "/targetPath");
+
+    try {
+      sc.getResponse(new GetMethodWebRequest("http://localhost/closed/a"));
+      fail("connected to a closed port");
+    } catch (ConnectException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Target which only answers by upgrading to h2c, every request gets the
+   * same response: HEADERS in literal HPACK, and one DATA frame.
+   */
+  private static class H2cServer implements Closeable {
+    private static final byte DATA = 0, HEADERS = 1, SETTINGS = 4, PING = 6, GOAWAY = 7;
+    private static final byte END_STREAM = 1, ACK = 1, END_HEADERS = 4;
+
+    final AtomicInteger upgrades = new AtomicInteger();
+    private final ServerSocket serverSocket = new ServerSocket(0);
+    private final Thread acceptor = new Thread(this::accept, "H2cServer");
+
+    H2cServer() throws IOException {
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+      while (!serverSocket.isClosed()) {
+        try {
+          final Socket socket = serverSocket.accept();
+          Thread connection = new Thread(() -> serve(socket), "H2cServer connection");
+          connection.setDaemon(true);
+          connection.start();
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    }
+
+    private void serve(Socket socket) {
+      try (Socket s = socket) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        OutputStream out = s.getOutputStream();
+        String head = readHead(in).toLowerCase(Locale.ROOT);
+        if (!head.contains("upgrade: h2c")) {
+          out.write("HTTP/1.1 505 HTTP Version Not Supported\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+              .getBytes("US-ASCII"));
+          return;
+        }
+        upgrades.incrementAndGet();
+        out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+            .getBytes("US-ASCII"));
+        writeFrame(out, SETTINGS, 0, 0, new byte[0]);
+        // the upgraded request is stream 1
+        writeResponse(out, 1);
+
+        in.readFully(new byte[24]);// client preface
+        while (true) {
+          int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+          byte type = in.readByte();
+          byte flags = in.readByte();
+          int stream = in.readInt() & 0x7FFFFFFF;
+          byte[] payload = new byte[length];
+          in.readFully(payload);
+          if (type == SETTINGS && (flags & ACK) == 0)
+            writeFrame(out, SETTINGS, ACK, 0, new byte[0]);
+          else if (type == PING && (flags & ACK) == 0)
+            writeFrame(out, PING, ACK, 0, payload);
+          else if (type == HEADERS)
+            writeResponse(out, stream);
+          else if (type == GOAWAY)
+            return;
+        }
+      } catch (IOException e) {
+        // disconnected
+      }
+    }
+
+    private static String readHead(DataInputStream in) throws IOException {
+      StringBuilder head = new StringBuilder();
+      while (head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n"))
+        head.append((char) in.readUnsignedByte());
+      return head.toString();
+    }
+
+    private static void writeResponse(OutputStream out, int stream) throws IOException {
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      block.write(0x88);// :status 200, from the static table
+      writeLiteral(block, "content-type", "text/plain");
+      writeLiteral(block, "x-target", "h2c");
+      writeFrame(out, HEADERS, END_HEADERS, stream, block.toByteArray());
+      writeFrame(out, DATA, END_STREAM, stream, "h2c body".getBytes("US-ASCII"));
+    }
+
+    /** Literal header field without indexing, new name, no Huffman coding. */
+    private static void writeLiteral(ByteArrayOutputStream block, String name, String value) throws IOException {
+      block.write(0);
+      block.write(name.length());
+      block.write(name.getBytes("US-ASCII"));
+      block.write(value.length());
+      block.write(value.getBytes("US-ASCII"));
+    }
+
+    private static synchronized void writeFrame(OutputStream out, byte type, int flags, int stream, byte[] payload)
+        throws IOException {
+      DataOutputStream frame = new DataOutputStream(out);
+      frame.writeByte(payload.length >> 16);
+      frame.writeShort(payload.length);
+      frame.writeByte(type);
+      frame.writeByte(flags);
+      frame.writeInt(stream);
+      frame.write(payload);
+      frame.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+
+  private void register(String pattern, String targetUri) {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", targetUri);
+    servletProps.setProperty(ProxyServlet.P_HTTP2, "true");
+    servletRunner.registerServlet(pattern, ProxyServlet.class.getName(), servletProps);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import servlet.web.proxy.LatencyHistogram;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 100000; i++)
+      histogram.record(i * 1000);
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(100000, snapshot.getCount());
+    assertEquals(100000L * 1000, snapshot.getMax());
+    assertEquals(50000.5 * 1000, snapshot.getMean(), 0.001);
+    assertWithin(50000L * 1000, snapshot.getValueAtPercentile(50));
+    assertWithin(99000L * 1000, snapshot.getValueAtPercentile(99));
+    assertWithin(99900L * 1000, snapshot.getValueAtPercentile(99.9));
+    assertEquals(100000L * 1000, snapshot.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testSmallValuesAndReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(0);
+    histogram.record(3);
+    histogram.record(-1);
+    assertEquals(2, histogram.snapshot().getCount());
+    assertEquals(3, histogram.snapshot().getValueAtPercentile(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.snapshot().getCount());
+    assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    // buckets have a relative error < 1/16
+    assertTrue(actual + " != " + expected, actual >= expected && actual <= expected + expected / 16);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.LoadBalancer;
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.ProxyTarget;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests {@link LoadBalancer} and the targets of {@link ProxyServlet}
+ */
+public class LoadBalancerTest {
+
+  private LocalTestServer[] localTestServers = new LocalTestServer[2];
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    for (int i = 0; i < localTestServers.length; i++) {
+      final String name = "server" + i;
+      localTestServers[i] = new LocalTestServer(null, null);
+      localTestServers[i].register("/targetPath*", new HttpRequestHandler() {
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+          response.setEntity(new StringEntity(name));
+        }
+      });
+      localTestServers[i].start();
+    }
+    servletRunner = new ServletRunner();
+    sc = servletRunner.newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    for (LocalTestServer localTestServer : localTestServers)
+      localTestServer.stop();
+  }
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    register(null);
+
+    Map<String, Integer> counts = new HashMap<>();
+    for (int i = 0; i < 10; i++) {
+      String body = sc.getResponse("http://localhost/proxyMe/a").getText();
+      counts.put(body, counts.containsKey(body) ? counts.get(body) + 1 : 1);
+    }
+    assertEquals(5, (int) counts.get("server0"));
+    assertEquals(5, (int) counts.get("server1"));
+  }
+
+  @Test
+  public void testConsistentHash() throws Exception {
+    Properties servletProps = register("consistentHash");
+    servletProps.setProperty(ProxyServlet.P_LOAD_BALANCER_HASH_HEADER, "X-Session");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+
+    Set<String> servers = new HashSet<>();
+    for (int i = 0; i < 20; i++) {
+      GetMethodWebRequest request = new GetMethodWebRequest("http://localhost/proxyMe/a");
+      request.setHeaderField("X-Session", "session" + i);
+      String body = sc.getResponse(request).getText();
+      assertEquals(body, sc.getResponse(request).getText());
+      servers.add(body);
+    }
+    assertEquals(2, servers.size());
+  }
+
+  @Test
+  public void testLeastRequests() throws Exception {
+    ProxyTarget[] targets = targets(3);
+    LoadBalancer loadBalancer = LoadBalancer.create("leastRequests", targets, null, null);
+
+    targets[0].onRequestStart();
+    targets[2].onRequestStart();
+    for (int i = 0; i < 10; i++)
+      assertSame(targets[1], loadBalancer.select(null));
+    targets[1].onRequestStart();
+    targets[1].onRequestStart();
+    assertNotEquals(targets[1], loadBalancer.select(null));
+  }
+
+  @Test
+  public void testPowerOfTwoChoices() throws Exception {
+    ProxyTarget[] targets = targets(2);
+    LoadBalancer loadBalancer = LoadBalancer.create("powerOfTwoChoices", targets, null, null);
+
+    // target 0 is slow
+    targets[0].onRequestEnd(targets[0].onRequestStart() - 1000000000L);
+    targets[1].onRequestEnd(targets[1].onRequestStart() - 1000000L);
+    assertTrue(targets[0].getLatencyEwma() > targets[1].getLatencyEwma());
+    for (int i = 0; i < 10; i++)
+      assertSame(targets[1], loadBalancer.select(null));
+  }
+
+  private Properties register(String strategy) {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", uri(0) + " \n " + uri(1));
+    if (strategy != null)
+      servletProps.setProperty(ProxyServlet.P_LOAD_BALANCER, strategy);
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    return servletProps;
+  }
+
+  private String uri(int server) {
+    return "http://localhost:" + localTestServers[server].getServiceAddress().getPort() + "/targetPath";
+  }
+
+  private static ProxyTarget[] targets(int count) {
+    ProxyTarget[] result = new ProxyTarget[count];
+    for (int i = 0; i < count; i++)
+      result[i] = new ProxyTarget(URI.create("http://target" + i + ":8080/"), true);
+    return result;
+  }
+}
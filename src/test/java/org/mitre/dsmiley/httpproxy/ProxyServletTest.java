@@ -20,10 +20,15 @@ import com.meterware.httpunit.GetMethodWebRequest;
 import com.meterware.httpunit.PostMethodWebRequest;
 import com.meterware.httpunit.WebRequest;
 import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.InvocationContext;
 import com.meterware.servletunit.ServletRunner;
 import com.meterware.servletunit.ServletUnitClient;
 
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.HTTPProxyClientUtils;
 import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.ProxyStage;
+import servlet.web.proxy.ProxyStageMetrics;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,6 +42,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.localserver.LocalTestServer;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
@@ -46,6 +52,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.xml.sax.SAXException;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -54,10 +64,12 @@ import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -451,6 +463,126 @@ public class ProxyServletTest
     assertEquals(sourceBaseUri + "/test/", rsp.getHeaderField(HttpHeaders.LOCATION));
   }
 
+  @Test
+  public void testStreamedChunkedBody() throws Exception {
+    final byte[] body = new byte[1024 * 1024 + 17];
+    for (int i = 0; i < body.length; i++)
+      body[i] = (byte) ('a' + i % 26);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setChunked(true);
+        entity.setContentType("application/octet-stream");
+        response.setEntity(entity);
+      }
+    });
+
+    WebResponse rsp = sc.getResponse(makeGetMethodRequest(sourceBaseUri));
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    InputStream is = rsp.getInputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = is.read(buffer)) != -1)
+      received.write(buffer, 0, read);
+    assertTrue(Arrays.equals(body, received.toByteArray()));
+  }
+
+  @Test
+  public void testClientGoneMidBody() throws Exception {
+    final long size = 256L * 1024 * 1024;
+    final AtomicLong sent = new AtomicLong();
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        InputStreamEntity entity = new InputStreamEntity(new InputStream() {
+          public int read() {
+            return sent.getAndIncrement() < size ? 'a' : -1;
+          }
+          public int read(byte[] b, int off, int len) {
+            int result = (int) Math.min(len, size - sent.get());
+            if (result <= 0)
+              return -1;
+            Arrays.fill(b, off, off + result, (byte) 'a');
+            sent.addAndGet(result);
+            return result;
+          }
+        }, size);
+        entity.setContentType("application/octet-stream");
+        response.setEntity(entity);
+      }
+    });
+
+    InvocationContext invocation = sc.newInvocation(makeGetMethodRequest(sourceBaseUri));
+    HttpServletResponse gone = new HttpServletResponseWrapper(invocation.getResponse()) {
+      public ServletOutputStream getOutputStream() {
+        return new ServletOutputStream() {
+          private int written;
+          public void write(int b) throws IOException {
+            if (++written > 64 * 1024)
+              throw new IOException("Broken pipe");
+          }
+          public boolean isReady() {
+            return true;
+          }
+          public void setWriteListener(WriteListener writeListener) {
+          }
+        };
+      }
+    };
+    try {
+      invocation.getServlet().service(invocation.getRequest(), gone);
+    } catch (IOException e) {
+      // the client went away
+    }
+    // the rest of the body was not read
+    assertTrue(sent.get() < size);
+  }
+
+  @Test
+  public void testStageMetrics() throws Exception {
+    servletRunner = new ServletRunner();
+
+    Properties servletProps = new Properties();
+    servletProps.setProperty("http.protocol.handle-redirects", "false");
+    servletProps.setProperty(ProxyServlet.P_METRICS, "true");
+    setUpServlet(servletProps);
+
+    sc = servletRunner.newClient();
+    sc.getClientProperties().setAutoRedirect(false);
+
+    GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri);
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation(req).getServlet();
+    ProxyStageMetrics metrics = (ProxyStageMetrics) servlet.getProxyClient().getMetricsListener();
+    execAssert(req);
+
+    assertEquals(1, metrics.getHistogram(ProxyStage.EXECUTE).snapshot().getCount());
+    assertEquals(1, metrics.getHistogram(ProxyStage.TOTAL).snapshot().getCount());
+    assertTrue(metrics.getHistogram(ProxyStage.TOTAL).snapshot().getMax()
+        >= metrics.getHistogram(ProxyStage.EXECUTE).snapshot().getMax());
+  }
+
+  @Test
+  public void testEncodeUriQuery() throws Exception {
+    String valid = "a=b&c=%20d?e/f";
+    assertTrue(valid == HTTPProxyClientUtils.encodeUriQuery(valid, false));
+    assertEquals("a=b&c=%2520d", HTTPProxyClientUtils.encodeUriQuery("a=b&c=%20d", true).toString());
+    assertEquals("q=a%20b%7Cc%22d", HTTPProxyClientUtils.encodeUriQuery("q=a b|c\"d", false).toString());
+    // non-ASCII control and space characters in UTF-8, others left to URI
+    assertEquals("a=%C2%A0b%E2%80%83c\u00fc", HTTPProxyClientUtils.encodeUriQuery("a=\u00a0b\u2003c\u00fc", false).toString());
+    assertEquals("/x/y%20z", HTTPProxyClientUtils.encodeUriQuery("y z", true, new StringBuilder("/x/")).toString());
+  }
+
+  @Test
+  public void testGetRealCookie() throws Exception {
+    String header = "JSESSIONID=1; !Proxy!proxytoken=a=b==;theme = dark , !Proxy!proxyempty=; !Proxy!proxy=x; novalue";
+    assertEquals("token=a=b==; empty=", HTTPProxyClientUtils.getRealCookie("proxy", header, false, null));
+    assertEquals("JSESSIONID=1; !Proxy!proxytoken=a=b==; theme=dark; !Proxy!proxyempty=; !Proxy!proxy=x",
+        HTTPProxyClientUtils.getRealCookie("proxy", header, true, null));
+    assertEquals("empty=", HTTPProxyClientUtils.rewriteRequestCookies(header, "!Proxy!proxy", false,
+        name -> name.endsWith("token")));
+    assertEquals("", HTTPProxyClientUtils.getRealCookie("other", header, false, null));
+  }
+
   @Test
   public void testPreserveHost() throws Exception {
     servletRunner = new ServletRunner();
@@ -0,0 +1,122 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import servlet.web.proxy.CircuitBreaker;
+import servlet.web.proxy.ConcurrencyLimiter;
+import servlet.web.proxy.ProxyTarget;
+import servlet.web.proxy.ProxyTargets;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests {@link ProxyTargets}
+ */
+public class ProxyTargetsTest {
+
+  @Test
+  public void testCache() throws Exception {
+    ProxyTargets targets = new ProxyTargets(2, null);
+    ProxyTarget target = targets.get("http://localhost:8080/a");
+    assertEquals("localhost:8080", target.getHostHeader());
+    assertEquals(8080, target.getHost().getPort());
+    assertTrue(target.isAllowed());
+    assertSame(target, targets.get("http://localhost:8080/a"));
+    assertSame(target, targets.get(new URI("http://localhost:8080/a")));
+    assertEquals("example.com", targets.get("https://example.com/").getHostHeader());
+
+    targets.get("http://other/");
+    assertEquals(2, targets.size());
+  }
+
+  @Test
+  public void testAllowList() throws Exception {
+    ProxyTargets targets = new ProxyTargets(10, "api.example.com, localhost:8080, *.internal.net");
+    assertTrue(targets.get("http://API.example.com/x").isAllowed());
+    assertTrue(targets.get("http://localhost:8080/x").isAllowed());
+    assertTrue(targets.get("http://a.b.internal.net/x").isAllowed());
+    assertFalse(targets.get("http://localhost:9090/x").isAllowed());
+    assertFalse(targets.get("http://evil.com/internal.net").isAllowed());
+    // refused targets are not cached
+    assertEquals(3, targets.size());
+  }
+
+  @Test
+  public void testAllowListDefaultPort() throws Exception {
+    ProxyTargets targets = new ProxyTargets(10, "web.example.com:80, secure.example.com:443");
+    assertTrue(targets.get("http://web.example.com/x").isAllowed());
+    assertTrue(targets.get("https://secure.example.com/x").isAllowed());
+    assertTrue(targets.get("https://secure.example.com:443/x").isAllowed());
+    assertFalse(targets.get("https://web.example.com/x").isAllowed());
+    assertFalse(targets.get("http://secure.example.com/x").isAllowed());
+  }
+
+  @Test
+  public void testSharedHost() throws Exception {
+    ProxyTargets targets = new ProxyTargets(10, null);
+    targets.setCircuitBreakerConfig(new CircuitBreaker.Config(10, 4, 0.5, 1000, 2, 50, 2));
+    targets.setConcurrencyLimiterConfig(new ConcurrencyLimiter.Config(20, 1, 200, 2000, 0.9, 100, 50));
+    ProxyTarget a = targets.get("http://localhost:8080/a");
+    ProxyTarget b = targets.get("http://LOCALHOST:8080/b?q=1");
+    assertSame(a.getTargetHost(), b.getTargetHost());
+    assertSame(a.getCircuitBreaker(), b.getCircuitBreaker());
+    assertSame(a.getConcurrencyLimiter(), b.getConcurrencyLimiter());
+    assertSame(targets.get("http://example.com/").getTargetHost(), targets.get("http://example.com:80/x").getTargetHost());
+    assertNotSame(a.getTargetHost(), targets.get("http://localhost:8081/a").getTargetHost());
+    assertNotSame(a.getTargetHost(), targets.get("https://localhost:8080/a").getTargetHost());
+    assertEquals(4, targets.hosts().size());
+
+    // the requests to both URIs count
+    b.onRequestStart();
+    assertEquals(1, a.getOutstanding());
+  }
+
+  @Test
+  public void testHostEviction() throws Exception {
+    ProxyTargets targets = new ProxyTargets(2, null);
+    targets.setCircuitBreakerConfig(new CircuitBreaker.Config(10, 4, 0.5, 1000, 2, 50, 2));
+    ProxyTarget a = targets.get("http://a/");
+    targets.get("http://b/");
+    a.getCircuitBreaker().onProbeFailure();
+
+    // b is forgotten, not the open circuit of a
+    ProxyTarget c = targets.get("http://c/");
+    assertEquals(2, targets.hosts().size());
+    assertSame(a.getTargetHost(), targets.get("http://a/x").getTargetHost());
+    assertEquals(CircuitBreaker.OPEN, targets.get("http://a/").getCircuitBreaker().getState());
+
+    // nothing to forget
+    c.onRequestStart();
+    targets.get("http://d/");
+    assertEquals(3, targets.hosts().size());
+    assertSame(c.getTargetHost(), targets.get("http://c/").getTargetHost());
+  }
+
+  @Test(expected = URISyntaxException.class)
+  public void testInvalid() throws Exception {
+    new ProxyTargets(10, null).get("http://a b/");
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import servlet.web.proxy.ReplayableRequestEntity;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests {@link ReplayableRequestEntity}
+ */
+public class ReplayableRequestEntityTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testMemory() throws Exception {
+    byte[] body = body(1000);
+    ReplayableRequestEntity entity = entity(body, 4096, -1);
+
+    assertTrue(entity.isRepeatable());
+    assertTrue(Arrays.equals(body, write(entity)));
+    assertTrue(Arrays.equals(body, write(entity)));
+    assertFalse(entity.isSpilled());
+    assertNull(entity.getFile());
+  }
+
+  @Test
+  public void testSpill() throws Exception {
+    byte[] body = body(100000);
+    ReplayableRequestEntity entity = entity(body, 4096, -1);
+
+    assertTrue(Arrays.equals(body, write(entity)));
+    assertTrue(entity.isSpilled());
+    File file = entity.getFile();
+    assertEquals(temporaryFolder.getRoot(), file.getParentFile());
+    assertEquals(body.length, file.length());
+    assertTrue(Arrays.equals(body, write(entity)));
+
+    entity.close();
+    assertFalse(file.exists());
+    assertFalse(entity.isRepeatable());
+  }
+
+  @Test
+  public void testReplayAfterPartialRead() throws Exception {
+    byte[] body = body(20000);
+    ReplayableRequestEntity entity = entity(body, 4096, -1);
+
+    // the first attempt fails after 10000 bytes
+    InputStream in = entity.getContent();
+    byte[] partial = new byte[10000];
+    IOUtils.readFully(in, partial);
+    in.close();
+
+    assertTrue(Arrays.equals(body, write(entity)));
+    assertTrue(Arrays.equals(body, IOUtils.toByteArray(entity.getContent())));
+    entity.close();
+  }
+
+  @Test
+  public void testMaxBytes() throws Exception {
+    byte[] body = body(20000);
+    ReplayableRequestEntity entity = entity(body, 4096, 10000);
+
+    assertTrue(entity.isRepeatable());
+    assertTrue(Arrays.equals(body, write(entity)));
+    assertFalse(entity.isRepeatable());
+    assertEquals(0, temporaryFolder.getRoot().list().length);
+    try {
+      entity.getContent();
+      fail("replayed a body larger than maxBytes");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private ReplayableRequestEntity entity(byte[] body, int memoryThreshold, long maxBytes) {
+    return new ReplayableRequestEntity(new ByteArrayInputStream(body), body.length, memoryThreshold, maxBytes,
+        temporaryFolder.getRoot());
+  }
+
+  private static byte[] write(ReplayableRequestEntity entity) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    return out.toByteArray();
+  }
+
+  private static byte[] body(int length) {
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++)
+      result[i] = (byte) (i * 31);
+    return result;
+  }
+}
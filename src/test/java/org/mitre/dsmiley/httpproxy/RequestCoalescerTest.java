@@ -0,0 +1,231 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import servlet.web.proxy.RequestCoalescer;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests {@link RequestCoalescer}
+ */
+public class RequestCoalescerTest {
+
+  private static final int FOLLOWERS = 4;
+
+  private final RequestCoalescer coalescer = new RequestCoalescer(1024 * 1024, RequestCoalescer.DEFAULT_KEY_HEADERS);
+  private final AtomicInteger executions = new AtomicInteger();
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Test
+  public void testKey() throws Exception {
+    BasicHttpRequest a = new BasicHttpRequest("GET", "http://localhost/a");
+    a.addHeader("Cookie", "user=1");
+    BasicHttpRequest b = new BasicHttpRequest("GET", "http://localhost/a");
+    b.addHeader("Cookie", "user=2");
+    b.addHeader("X-Other", "ignored");
+    BasicHttpRequest c = new BasicHttpRequest("GET", "http://localhost/a");
+    c.addHeader("Cookie", "user=1");
+    c.addHeader("X-Other", "ignored");
+
+    assertNotEquals(coalescer.key(a), coalescer.key(b));
+    assertEquals(coalescer.key(a), coalescer.key(c));
+    // another virtual host of the target
+    c.addHeader("Host", "other.example.com");
+    assertNotEquals(coalescer.key(a), coalescer.key(c));
+    assertTrue(coalescer.isCoalescable(a));
+    assertFalse(coalescer.isCoalescable(new BasicHttpRequest("POST", "http://localhost/a")));
+  }
+
+  @Test
+  public void testFollowersShareResponse() throws Exception {
+    final byte[] body = new byte[100000];
+    for (int i = 0; i < body.length; i++)
+      body[i] = (byte) i;
+
+    List<byte[]> bodies = run(new RequestCoalescer.Execution() {
+      public HttpResponse execute() throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.setHeader("X-Test", "leader");
+        response.setEntity(new ByteArrayEntity(body));
+        return response;
+      }
+    });
+
+    assertEquals(1, executions.get());
+    assertEquals(FOLLOWERS, coalescer.getFollowers());
+    assertEquals(0, coalescer.getInFlight());
+    for (byte[] received : bodies)
+      assertTrue(Arrays.equals(body, received));
+  }
+
+  @Test
+  public void testVaryNotInKey() throws Exception {
+    run(new RequestCoalescer.Execution() {
+      public HttpResponse execute() throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.setHeader(HttpHeaders.VARY, "X-Custom");
+        response.setEntity(new ByteArrayEntity(new byte[10]));
+        return response;
+      }
+    });
+
+    assertEquals(1 + FOLLOWERS, executions.get());
+    assertEquals(0, coalescer.getFollowers());
+  }
+
+  @Test
+  public void testBodyTooLarge() throws Exception {
+    run(new RequestCoalescer.Execution() {
+      public HttpResponse execute() throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.setEntity(new ByteArrayEntity(new byte[2 * 1024 * 1024]));
+        return response;
+      }
+    });
+
+    assertEquals(1 + FOLLOWERS, executions.get());
+  }
+
+  @Test
+  public void testUnknownLength() throws Exception {
+    run(new RequestCoalescer.Execution() {
+      public HttpResponse execute() throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(new byte[10]));
+        response.setEntity(entity);
+        return response;
+      }
+    });
+
+    assertEquals(1 + FOLLOWERS, executions.get());
+    assertEquals(0, coalescer.getFollowers());
+  }
+
+  @Test
+  public void testSetCookie() throws Exception {
+    final AtomicInteger sessions = new AtomicInteger();
+    List<byte[]> bodies = run(new RequestCoalescer.Execution() {
+      public HttpResponse execute() throws IOException {
+        String session = Integer.toString(sessions.incrementAndGet());
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.setHeader("Set-Cookie", "session=" + session);
+        response.setEntity(new ByteArrayEntity(session.getBytes()));
+        return response;
+      }
+    });
+
+    // each anonymous client got its own session
+    assertEquals(1 + FOLLOWERS, executions.get());
+    assertEquals(0, coalescer.getFollowers());
+    Set<String> received = new HashSet<>();
+    for (byte[] body : bodies)
+      received.add(new String(body));
+    assertEquals(1 + FOLLOWERS, received.size());
+  }
+
+  @Test
+  public void testPrivate() throws Exception {
+    for (final String cacheControl : new String[] {"private, max-age=60", "no-store"}) {
+      RequestCoalescer privateCoalescer = new RequestCoalescer(1024 * 1024, RequestCoalescer.DEFAULT_KEY_HEADERS);
+      HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+      response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+      response.setEntity(new ByteArrayEntity(new byte[10]));
+      final HttpResponse leaderResponse = response;
+      privateCoalescer.execute("GET /a", new RequestCoalescer.Execution() {
+        public HttpResponse execute() throws IOException {
+          return leaderResponse;
+        }
+      });
+      // not registered for followers
+      assertEquals(0, privateCoalescer.getInFlight());
+    }
+  }
+
+  /**
+   * Executes the leader and the followers, the leader response is released
+   * once all followers wait for it. Returns the bodies.
+   */
+  private List<byte[]> run(final RequestCoalescer.Execution execution) throws Exception {
+    final RequestCoalescer.Execution blocking = new RequestCoalescer.Execution() {
+      public HttpResponse execute() throws IOException {
+        executions.incrementAndGet();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return execution.execute();
+      }
+    };
+    Callable<byte[]> request = new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        HttpResponse response = coalescer.execute("GET /a", blocking);
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        return EntityUtils.toByteArray(response.getEntity());
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(1 + FOLLOWERS);
+    try {
+      List<Future<byte[]>> futures = new ArrayList<>();
+      futures.add(executor.submit(request));
+      while (executions.get() == 0)
+        Thread.sleep(1);
+      for (int i = 0; i < FOLLOWERS; i++)
+        futures.add(executor.submit(request));
+      Thread.sleep(200);// followers are waiting
+      release.countDown();
+
+      List<byte[]> result = new ArrayList<>();
+      for (Future<byte[]> future : futures)
+        result.add(future.get());
+      return result;
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.CacheFileResource;
+import servlet.web.proxy.DiskCacheStorage;
+import servlet.web.proxy.MemoryCacheStorage;
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.ProxyTarget;
+import servlet.web.proxy.ResponseCacheStats;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests the response cache enabled by {@link AbstractProxyServlet#P_RESPONSE_CACHE}
+ */
+public class ResponseCacheProxyServletTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+  private String sourceBaseUri;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_RESPONSE_CACHE, "true");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    sourceBaseUri = "http://localhost/proxyMe";
+
+    sc = servletRunner.newClient();
+    sc.getClientProperties().setAutoRedirect(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testFreshResponseIsCached() throws Exception {
+    final AtomicInteger requests = register("max-age=60", null);
+
+    assertEquals("body 1", get("/a", null).getText());
+    assertEquals("body 1", get("/a", null).getText());
+    assertEquals(1, requests.get());
+    assertEquals(1, getStats().getHits());
+    assertEquals(1, getStats().getMisses());
+
+    // another URI is another entry
+    assertEquals("body 2", get("/b", null).getText());
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testNoStore() throws Exception {
+    final AtomicInteger requests = register("no-store", null);
+
+    get("/a", null);
+    get("/a", null);
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testRevalidation() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final String[] ifNoneMatch = new String[1];
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        requests.incrementAndGet();
+        Header header = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+        ifNoneMatch[0] = header == null ? null : header.getValue();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=0, must-revalidate");
+        response.setHeader(HttpHeaders.ETAG, "\"v1\"");
+        if ("\"v1\"".equals(ifNoneMatch[0]))
+          response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+        else
+          response.setEntity(new StringEntity("content"));
+      }
+    });
+
+    assertEquals("content", get("/a", null).getText());
+    assertNull(ifNoneMatch[0]);
+
+    WebResponse rsp = get("/a", null);
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertEquals("content", rsp.getText());
+    assertEquals("\"v1\"", ifNoneMatch[0]);
+    assertEquals(2, requests.get());
+    assertEquals(1, getStats().getValidated());
+  }
+
+  @Test
+  public void testVary() throws Exception {
+    final AtomicInteger requests = register("max-age=60", HttpHeaders.ACCEPT_LANGUAGE);
+
+    assertEquals("body 1", get("/a", "en").getText());
+    assertEquals("body 2", get("/a", "fr").getText());
+    assertEquals("body 1", get("/a", "en").getText());
+    assertEquals("body 2", get("/a", "fr").getText());
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testCircuitBreakerBehindCache() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_RESPONSE_CACHE, "true");
+    servletProps.setProperty(ProxyServlet.P_CIRCUIT_BREAKER, "true");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT, "true");
+    servletRunner.registerServlet("/guarded/*", ProxyServlet.class.getName(), servletProps);
+    final AtomicInteger requests = register("max-age=60", null);
+
+    assertEquals("body 1", sc.getResponse("http://localhost/guarded/a").getText());
+    assertEquals("body 1", sc.getResponse("http://localhost/guarded/a").getText());
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/guarded/a").getServlet();
+    ProxyTarget target = servlet.getProxyClient().getTargets().values().iterator().next();
+    // the cache hit is no outcome of the target
+    assertEquals(1, target.getCircuitBreaker().getCalls());
+    assertEquals(0, target.getConcurrencyLimiter().getInFlight());
+
+    // an open circuit doesn't keep the cache from answering
+    target.getCircuitBreaker().onProbeFailure();
+    sc.setExceptionsThrownOnErrorStatus(false);
+    assertEquals("body 1", sc.getResponse("http://localhost/guarded/a").getText());
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, sc.getResponse("http://localhost/guarded/b").getResponseCode());
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testDiskTier() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_RESPONSE_CACHE, "true");
+    servletProps.setProperty(ProxyServlet.P_RESPONSE_CACHE_DIRECTORY, temporaryFolder.getRoot().getPath());
+    servletProps.setProperty(ProxyServlet.P_RESPONSE_CACHE_FILE_THRESHOLD, "1000");
+    servletRunner.registerServlet("/diskProxy/*", ProxyServlet.class.getName(), servletProps);
+
+    final StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 10000; i++)
+      body.append((char) ('a' + i % 26));
+    final AtomicInteger requests = new AtomicInteger();
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        requests.incrementAndGet();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=60");
+        response.setEntity(new StringEntity(body.toString()));
+      }
+    });
+
+    assertEquals(body.toString(), sc.getResponse("http://localhost/diskProxy/a").getText());
+    WebResponse rsp = sc.getResponse("http://localhost/diskProxy/a");
+    assertEquals(body.toString(), rsp.getText());
+    assertEquals(1, requests.get());
+
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/diskProxy/a").getServlet();
+    assertEquals(body.length(), servlet.getProxyClient().getResponseCacheStats().getDiskBytes());
+  }
+
+  @Test
+  public void testDiskCacheStorageReload() throws Exception {
+    File directory = temporaryFolder.getRoot();
+    DiskCacheStorage storage = new DiskCacheStorage(100000, directory, 5000, 100);
+    storage.putEntry("small", entry(storage, 50));
+    storage.putEntry("a", entry(storage, 2000));
+    storage.putEntry("b", entry(storage, 2000));
+    storage.putEntry("c", entry(storage, 2000));// evicts a
+    assertNull(storage.getEntry("a"));
+    assertEquals(4000, storage.getDiskBytes());
+
+    DiskCacheStorage reloaded = new DiskCacheStorage(100000, directory, 5000, 100);
+    assertEquals(3, reloaded.getEntries());
+    assertEquals(4000, reloaded.getDiskBytes());
+    assertNull(reloaded.getEntry("a"));
+    assertEquals(50, reloaded.getEntry("small").getResource().length());
+    HttpCacheEntry b = reloaded.getEntry("b");
+    assertTrue(b.getResource() instanceof CacheFileResource);
+    assertEquals(2000, IOUtils.toByteArray(b.getResource().getInputStream()).length);
+
+    reloaded.removeEntry("b");
+    assertEquals(2, new DiskCacheStorage(100000, directory, 5000, 100).getEntries());
+  }
+
+  @Test
+  public void testDiskCacheStorageRemovalWhileReading() throws Exception {
+    DiskCacheStorage storage = new DiskCacheStorage(100000, temporaryFolder.getRoot(), 5000, 100);
+    storage.putEntry("a", entry(storage, 2000));
+    storage.putEntry("b", entry(storage, 2000));
+
+    // evicted between the lookup and the read
+    HttpCacheEntry a = storage.getEntry("a");
+    storage.removeEntry("a");
+    assertEquals(2000, IOUtils.toByteArray(a.getResource().getInputStream()).length);
+
+    // without the delay after lookups, only readers keep the file
+    storage = new DiskCacheStorage(100000, temporaryFolder.getRoot(), 5000, 100) {
+      @Override
+      protected boolean canDelete(CacheFileResource body) {
+        return !body.isInUse(0);
+      }
+    };
+    File file = ((CacheFileResource) storage.getEntry("b").getResource()).getFile();
+    InputStream in = storage.getEntry("b").getResource().getInputStream();
+    storage.removeEntry("b");
+    assertTrue(file.exists());
+    assertEquals(2000, IOUtils.toByteArray(in).length);
+    in.close();
+    storage.clear();
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testMemoryCacheStorageEviction() throws Exception {
+    MemoryCacheStorage storage = new MemoryCacheStorage(2000);
+    storage.putEntry("a", entry(600));
+    storage.putEntry("b", entry(600));
+    storage.getEntry("a");// b is now the least recently used
+    storage.putEntry("c", entry(600));
+
+    assertNotNull(storage.getEntry("a"));
+    assertNull(storage.getEntry("b"));
+    assertNotNull(storage.getEntry("c"));
+    assertEquals(2, storage.getEntries());
+
+    // too large to be cached at all
+    storage.putEntry("d", entry(5000));
+    assertNull(storage.getEntry("d"));
+    assertEquals(2, storage.getEntries());
+  }
+
+  private AtomicInteger register(final String cacheControl, final String vary) {
+    final AtomicInteger requests = new AtomicInteger();
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        if (vary != null)
+          response.setHeader(HttpHeaders.VARY, vary);
+        response.setEntity(new StringEntity("body " + requests.incrementAndGet()));
+      }
+    });
+    return requests;
+  }
+
+  private WebResponse get(String path, String acceptLanguage) throws Exception {
+    GetMethodWebRequest request = new GetMethodWebRequest(sourceBaseUri + path);
+    if (acceptLanguage != null)
+      request.setHeaderField(HttpHeaders.ACCEPT_LANGUAGE, acceptLanguage);
+    return sc.getResponse(request);
+  }
+
+  private ResponseCacheStats getStats() throws Exception {
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation(sourceBaseUri).getServlet();
+    return servlet.getProxyClient().getResponseCacheStats();
+  }
+
+  private static HttpCacheEntry entry(int length) {
+    return entry(new HeapResource(new byte[length]));
+  }
+
+  private static HttpCacheEntry entry(DiskCacheStorage storage, int length) throws IOException {
+    return entry(storage.generate("id", new ByteArrayInputStream(new byte[length]), null));
+  }
+
+  private static HttpCacheEntry entry(Resource resource) {
+    Date now = new Date();
+    return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+        new Header[0], resource);
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.ResponseCompressor;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests {@link ResponseCompressor}
+ */
+public class ResponseCompressorTest {
+
+  private static final String JSON;
+  static {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 1000; i++)
+      json.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"}");
+    JSON = json.append(']').toString();
+  }
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/targetPath/json", handler(JSON, "application/json", null));
+    localTestServer.register("/targetPath/small", handler("{}", "application/json", null));
+    localTestServer.register("/targetPath/image", handler(JSON, "image/png", null));
+    localTestServer.register("/targetPath/noTransform", handler(JSON, "text/plain", "no-transform"));
+    localTestServer.start();
+
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_COMPRESSION, "true");
+    servletProps.setProperty(ProxyServlet.P_COMPRESSION_POOL_SIZE, "1");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    sc = servletRunner.newClient();
+    sc.setExceptionsThrownOnErrorStatus(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testCompressed() throws Exception {
+    for (int i = 0; i < 3; i++) {// the Deflater is reused
+      WebResponse rsp = sc.getResponse(get("/proxyMe/json", "gzip, deflate"));
+      assertEquals("gzip", rsp.getHeaderField("Content-Encoding"));
+      assertEquals("Accept-Encoding", rsp.getHeaderField("Vary"));
+      assertNull(rsp.getHeaderField("Content-Length"));
+      assertEquals("W/\"v1\"", rsp.getHeaderField("ETag"));
+      assertEquals(JSON, rsp.getText());
+    }
+  }
+
+  @Test
+  public void testNotAccepted() throws Exception {
+    WebResponse rsp = sc.getResponse(get("/proxyMe/json", "gzip;q=0, deflate"));
+    assertNull(rsp.getHeaderField("Content-Encoding"));
+    assertEquals("Accept-Encoding", rsp.getHeaderField("Vary"));
+    assertEquals(JSON, rsp.getText());
+
+    rsp = sc.getResponse(get("/proxyMe/json", "identity"));
+    assertNull(rsp.getHeaderField("Content-Encoding"));
+    assertEquals("\"v1\"", rsp.getHeaderField("ETag"));
+  }
+
+  @Test
+  public void testNotCompressible() throws Exception {
+    for (String path : new String[] { "/proxyMe/small", "/proxyMe/image", "/proxyMe/noTransform" }) {
+      WebResponse rsp = sc.getResponse(get(path, "gzip"));
+      assertNull(path, rsp.getHeaderField("Content-Encoding"));
+      assertNull(path, rsp.getHeaderField("Vary"));
+    }
+  }
+
+  @Test
+  public void testIsAccepted() throws Exception {
+    ResponseCompressor compressor = new ResponseCompressor(0, 6, ResponseCompressor.DEFAULT_MIME_TYPES, 1);
+    assertTrue(compressor.isCompressible(response("text/html; charset=UTF-8")));
+    assertTrue(compressor.isCompressible(response("application/json")));
+    assertFalse(compressor.isCompressible(response("text/event-stream")));
+    assertFalse(compressor.isCompressible(response("video/mp4")));
+    assertFalse(compressor.isCompressible(response(null)));
+  }
+
+  @Test
+  public void testFlushBelowMinSize() throws Exception {
+    ResponseCompressor compressor = new ResponseCompressor(1000, 6, ResponseCompressor.DEFAULT_MIME_TYPES, 1);
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final Map<String, String> headers = new HashMap<>();
+    HttpServletResponse servletResponse = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getOutputStream"))
+              return new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                  body.write(b);
+                }
+
+                @Override
+                public boolean isReady() {
+                  return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+              };
+            if (method.getName().equals("setHeader"))
+              headers.put((String) args[0], (String) args[1]);
+            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+          }
+        });
+
+    ResponseCompressor.CompressingResponse rsp = compressor.wrap(servletResponse, response("application/json"));
+    rsp.getOutputStream().write("data: 1\n\n".getBytes("UTF-8"));
+    rsp.getOutputStream().flush();
+    // sent compressed although below minSize
+    assertTrue(rsp.isCompressing());
+    assertEquals("gzip", headers.get("Content-Encoding"));
+    byte[] flushed = new byte[9];
+    new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(body.toByteArray(), 10, body.size() - 10),
+        new Inflater(true))).readFully(flushed);
+    assertEquals("data: 1\n\n", new String(flushed, "UTF-8"));
+
+    rsp.getOutputStream().write("data: 2\n\n".getBytes("UTF-8"));
+    rsp.finish();
+    assertEquals("data: 1\n\ndata: 2\n\n",
+        IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())), "UTF-8"));
+  }
+
+  private static WebRequest get(String path, String acceptEncoding) {
+    WebRequest request = new GetMethodWebRequest("http://localhost" + path);
+    request.setHeaderField("Accept-Encoding", acceptEncoding);
+    return request;
+  }
+
+  private static HttpResponse response(String contentType) {
+    HttpResponse response = new BasicHttpResponse(org.apache.http.HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity(JSON, ContentType.TEXT_PLAIN));
+    if (contentType != null)
+      response.setHeader("Content-Type", contentType);
+    return response;
+  }
+
+  private static HttpRequestHandler handler(final String body, final String contentType, final String cacheControl) {
+    return new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setEntity(new StringEntity(body, ContentType.create(contentType, "UTF-8")));
+        response.setHeader("ETag", "\"v1\"");
+        if (cacheControl != null)
+          response.setHeader("Cache-Control", cacheControl);
+      }
+    };
+  }
+}
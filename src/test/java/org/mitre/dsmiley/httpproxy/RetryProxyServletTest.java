@@ -0,0 +1,235 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.PostMethodWebRequest;
+import com.meterware.httpunit.PutMethodWebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+
+import servlet.web.proxy.AbstractProxyServlet;
+import servlet.web.proxy.ProxyServlet;
+import servlet.web.proxy.RetryPolicy;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests the retries enabled by {@link AbstractProxyServlet#P_RETRY}
+ */
+public class RetryProxyServletTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+  /** Bodies received by the target, "" for none. */
+  private final List<String> received = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    servletRunner = new ServletRunner();
+    register("/proxyMe/*", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+
+    sc = servletRunner.newClient();
+    sc.getClientProperties().setAutoRedirect(false);
+    sc.setExceptionsThrownOnErrorStatus(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  @Test
+  public void testRetryStatus() throws Exception {
+    failFirst(1);
+
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/proxyMe/a"));
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertEquals(2, received.size());
+    assertEquals(1, getRetryPolicy().getRetries());
+    assertEquals(1, getRetryPolicy().getRecovered());
+  }
+
+  @Test
+  public void testMaxAttempts() throws Exception {
+    failFirst(10);
+
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/proxyMe/a"));
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getResponseCode());
+    assertEquals(3, received.size());
+    assertEquals(0, getRetryPolicy().getRecovered());
+  }
+
+  @Test
+  public void testPostNotRetried() throws Exception {
+    failFirst(1);
+
+    PostMethodWebRequest request = new PostMethodWebRequest("http://localhost/proxyMe/a",
+        new ByteArrayInputStream("body".getBytes("UTF-8")), "text/plain");
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getResponseCode());
+    assertEquals(1, received.size());
+  }
+
+  @Test
+  public void testPutReplayed() throws Exception {
+    failFirst(1);
+
+    PutMethodWebRequest request = new PutMethodWebRequest("http://localhost/proxyMe/a",
+        new ByteArrayInputStream("body".getBytes("UTF-8")), "text/plain");
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertEquals(2, received.size());
+    assertEquals("body", received.get(0));
+    assertEquals("body", received.get(1));
+  }
+
+  @Test
+  public void testConnectFailure() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    register("/closed/*", "http://localhost:" + port + "/targetPath");
+
+    try {
+      sc.getResponse(new GetMethodWebRequest("http://localhost/closed/a"));
+      fail("connected to a closed port");
+    } catch (HttpHostConnectException e) {
+      // expected, after the retries
+    }
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/closed/a").getServlet();
+    assertEquals(2, servlet.getProxyClient().getRetryPolicy().getRetries());
+  }
+
+  @Test
+  public void testFailover() throws Exception {
+    failFirst(0);
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    register("/balanced/*", "http://localhost:" + port + "/targetPath http://localhost:"
+        + localTestServer.getServiceAddress().getPort() + "/targetPath");
+
+    // round robin sends every other request to the closed port first
+    for (int i = 0; i < 10; i++) {
+      WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/balanced/a"));
+      assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    }
+    assertEquals(10, received.size());
+  }
+
+  @Test
+  public void testBudget() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 0, 0, RetryPolicy.DEFAULT_RETRY_STATUSES, 0.5, 0);
+    assertFalse(policy.tryRetry());
+    policy.onRequest();
+    policy.onRequest();
+    assertTrue(policy.tryRetry());
+    assertFalse(policy.tryRetry());
+    assertEquals(2, policy.getBudgetExhausted());
+  }
+
+  @Test
+  public void testBudgetConcurrency() throws Exception {
+    final RetryPolicy policy = new RetryPolicy(3, 0, 0, RetryPolicy.DEFAULT_RETRY_STATUSES, 0.5, 0);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            policy.onRequest();
+            policy.tryRetry();
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    // no update of the budget is lost
+    assertEquals(8000, policy.getRequests());
+    assertEquals(4000, policy.getRetries() + policy.getBudgetBalance(), 0);
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    RetryPolicy policy = new RetryPolicy(10, 100, 1000, RetryPolicy.DEFAULT_RETRY_STATUSES, 0.2, 10);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(policy.backoffMillis(1) <= 100);
+      assertTrue(policy.backoffMillis(3) <= 400);
+      assertTrue(policy.backoffMillis(40) <= 1000);
+    }
+  }
+
+  private void register(String pattern, String targetUri) {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", targetUri);
+    servletProps.setProperty(ProxyServlet.P_RETRY, "true");
+    servletProps.setProperty(ProxyServlet.P_RETRY_BACKOFF, "1");
+    servletProps.setProperty(ProxyServlet.P_REPLAYABLE_BODY, "true");
+    servletRunner.registerServlet(pattern, ProxyServlet.class.getName(), servletProps);
+  }
+
+  /** The target answers 503 to the first {@code failures} requests. */
+  private void failFirst(final int failures) {
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        received.add(request instanceof HttpEntityEnclosingRequest
+            ? EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()) : "");
+        response.setStatusCode(received.size() <= failures ? HttpStatus.SC_SERVICE_UNAVAILABLE : HttpStatus.SC_OK);
+        response.setEntity(new StringEntity("attempt " + received.size()));
+      }
+    });
+  }
+
+  private RetryPolicy getRetryPolicy() throws Exception {
+    AbstractProxyServlet servlet = (AbstractProxyServlet) sc.newInvocation("http://localhost/proxyMe").getServlet();
+    return servlet.getProxyClient().getRetryPolicy();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import servlet.web.proxy.URITemplate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * tests {@link URITemplate}
+ */
+public class URITemplateTest {
+
+  @Test
+  public void testSimple() {
+    URITemplate template = new URITemplate("http://{host}:{port}/{path}");
+    assertEquals(3, template.getVariableCount());
+    assertEquals(1, template.indexOf("port"));
+    assertEquals(-1, template.indexOf("other"));
+    assertEquals(2, template.indexOf("a&path=b", 2, 6));
+
+    // values as is, e.g. a path
+    assertEquals("http://localhost:8080/a/b", template.expand(new String[]{"localhost", "8080", "a/b"}));
+    String[] missing = {"localhost", null, "a"};
+    assertNull(template.expand(missing));
+    assertEquals("port", template.getMissingVariable(missing));
+  }
+
+  @Test
+  public void testDefaults() {
+    URITemplate template = new URITemplate("http://{host=localhost}:{port=80}/x");
+    assertEquals("http://localhost:80/x", template.expand(new String[2]));
+    assertEquals("http://h:80/x", template.expand(new String[]{"h", null}));
+  }
+
+  @Test
+  public void testOperators() {
+    assertEquals("?x=a%20b&y=c%2Fd&z=c/d", expand("{?x,y,z,w}{+y}"));
+    assertEquals("/a%20b/c%2Fd", expand("{/x,y,w}"));
+    assertEquals(";x=a%20b;z", expand("{;x,w,z}"));
+    assertEquals(".a%20b#c/d", expand("{.x}{#y}"));
+    assertEquals("&x=a%20b", expand("{&x}"));
+    assertEquals("", expand("{?w}"));
+    assertEquals("c/", expand("{+y:2}"));
+    // UTF-8
+    assertEquals("?v=%C3%BC%E2%82%AC", new URITemplate("{?v}").expand(new String[]{"\u00fc\u20ac"}));
+  }
+
+  /** Expands with x="a b", y="c/d", z="" and w undefined. */
+  private static String expand(String template) {
+    URITemplate uriTemplate = new URITemplate(template);
+    String[] values = new String[uriTemplate.getVariableCount()];
+    String[][] defined = {{"x", "a b"}, {"y", "c/d"}, {"z", ""}};
+    for (String[] nameValue : defined)
+      if (uriTemplate.indexOf(nameValue[0]) >= 0)
+        values[uriTemplate.indexOf(nameValue[0])] = nameValue[1];
+    return uriTemplate.expand(values);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnclosed() {
+    new URITemplate("http://{host");
+  }
+
+  @Test
+  public void testDecode() {
+    assertEquals("a b/c", URITemplate.decode("x=a+b%2Fc", 2, 9));
+    assertEquals("100%", URITemplate.decode("100%", 0, 4));
+  }
+}